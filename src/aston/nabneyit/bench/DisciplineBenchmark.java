@@ -0,0 +1,50 @@
+package aston.nabneyit.bench;
+
+import aston.nabneyit.util.*;
+import aston.nabneyit.view.SimSetup;
+
+/**
+ * Compares the queue disciplines on the factory built by {@link SimSetup
+ * SimSetup}, with enough cheese and soup to keep the packer busy so that
+ * queues form in front of it.  For each discipline it reports the mean
+ * cost of a time step against the number of items the factory finishes,
+ * the number that spoil and the resulting profit.
+ * <p>
+ * Usage: <tt>DisciplineBenchmark [pCheese [pSoup [numTicks]]]</tt>
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class DisciplineBenchmark {
+
+	private static final long SEED = SimulationContext.DEFAULT_SEED;
+
+	public static void main(String[] args) {
+		double pCheese = args.length > 0 ? Double.parseDouble(args[0]) : 0.03;
+		double pSoup = args.length > 1 ? Double.parseDouble(args[1]) : 0.03;
+		int numTicks = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+		QueueDiscipline[] disciplines = QueueDiscipline.values();
+		// The first pass warms up the JIT and is not reported
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1)
+				System.out.println("discipline\tns/tick\tprocessed\tspoiled" +
+						"\tprofit");
+			for (int d = 0; d < disciplines.length; d++) {
+				SimSetup sim = new SimSetup(pCheese, pCheese, pSoup);
+				sim.setDiscipline(disciplines[d]);
+				LayeredFactory fac = sim.setUp(new SimulationContext(SEED));
+				if (!fac.check())
+					throw new ConnectionException("Error in set up");
+				long start = System.nanoTime();
+				for (int t = 0; t < numTicks; t++)
+					fac.tick();
+				long elapsed = System.nanoTime() - start;
+				if (pass == 1)
+					System.out.printf("%-10s\t%.1f\t%d\t\t%d\t%d%n",
+							disciplines[d], (double) elapsed / numTicks,
+							fac.totalProcessed(), fac.totalSpoiled(),
+							sim.profit(fac));
+			}
+		}
+	}
+}
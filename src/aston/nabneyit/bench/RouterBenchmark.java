@@ -0,0 +1,81 @@
+package aston.nabneyit.bench;
+
+import aston.nabneyit.model.*;
+import aston.nabneyit.util.*;
+
+/**
+ * Times an {@link IntelligentRouter IntelligentRouter} feeding layers of
+ * hundreds of machines, once keeping the outputs in a heap and once
+ * searching them for every item.  Each time step sends a burst of items
+ * through the router and then runs the machines; only the transfers are
+ * timed.
+ * <p>
+ * Usage: <tt>RouterBenchmark [numSteps]</tt>
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class RouterBenchmark {
+
+	private static final int[] WIDTHS = {16, 64, 256, 1024};
+	// Items sent in each time step, per output
+	private static final double LOAD = 0.08;
+	private static final int PROC_TIME = 10;
+
+	public static void main(String[] args) {
+		int numSteps = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		// Run everything twice and report the second pass, once the JIT has
+		// compiled both kinds of router
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1)
+				System.out.println("outputs\theap ns/item\tsearch ns/item");
+			for (int n : WIDTHS) {
+				double heap = time(n, true, numSteps);
+				double search = time(n, false, numSteps);
+				if (pass == 1)
+					System.out.printf("%d\t%.1f\t\t%.1f%n", n, heap, search);
+			}
+		}
+	}
+
+	/**
+	 * Runs a router with a number of outputs
+	 * @return mean time per transfer in nanoseconds
+	 */
+	private static double time(int n, boolean indexed, int numSteps) {
+		SimulationContext ctx = new SimulationContext(n);
+		SimClock clock = new SimClock();
+		IntelligentRouter router = new IntelligentRouter(indexed);
+		IntelligentRouter out = new IntelligentRouter();
+		Sink sink = new Sink(ctx);
+		sink.setClock(clock);
+		out.addOutputUnit(sink);
+		Machine[] machines = new Machine[n];
+		for (int i = 0; i < n; i++) {
+			machines[i] = new Machine(ctx, PROC_TIME, 0.0, 1);
+			machines[i].setClock(clock);
+			machines[i].connectOutput(out);
+			router.addOutputUnit(machines[i]);
+		}
+
+		int perStep = Math.max(1, (int) (LOAD * n));
+		long nanos = 0;
+		int id = 0;
+		for (int t = 0; t < numSteps; t++) {
+			Food[] burst = new Food[perStep];
+			for (int k = 0; k < perStep; k++) {
+				burst[k] = new Perishable(50);
+				burst[k].stamp(clock, id++);
+			}
+			long start = System.nanoTime();
+			for (int k = 0; k < perStep; k++)
+				router.transferProduct(burst[k]);
+			nanos += System.nanoTime() - start;
+			for (int i = 0; i < n; i++)
+				machines[i].tick();
+			sink.tick();
+			clock.advance();
+		}
+		return (double) nanos / ((long) perStep * numSteps);
+	}
+}
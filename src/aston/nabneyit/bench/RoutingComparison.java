@@ -0,0 +1,94 @@
+package aston.nabneyit.bench;
+
+import aston.nabneyit.model.*;
+import aston.nabneyit.util.*;
+
+/**
+ * Compares the routing strategies on a factory with one wide layer of
+ * machines that work at different rates.  For each strategy it reports
+ * the mean cost of routing an item against the number of items the
+ * factory finishes and the number that spoil, so that the cheapest
+ * strategy that keeps the factory working well can be chosen.
+ * <p>
+ * Usage: <tt>RoutingComparison [width [numTicks]]</tt>
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class RoutingComparison {
+
+	private static final String[] STRATEGIES = {"JSQ (heap)", "JSQ (search)",
+		"JSQ(2)", "JSQ(3)", "Round-robin", "Weighted"};
+	private static final int[] PROC_TIMES = {8, 12, 16, 24};
+	private static final double GEN_PROB = 0.06;
+	private static final int SPOIL_TIME = 60;
+	private static final long SEED = SimulationContext.DEFAULT_SEED;
+
+	public static void main(String[] args) {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int numTicks = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		// The first pass warms up the JIT and is not reported
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1)
+				System.out.println("strategy\tns/item\tprocessed\tspoiled");
+			for (int s = 0; s < STRATEGIES.length; s++) {
+				SimulationContext ctx = new SimulationContext(SEED);
+				TimedConnector router = new TimedConnector(
+						strategy(s, width, ctx));
+				LayeredFactory fac = makeFactory(ctx, width, router);
+				if (!fac.check())
+					throw new ConnectionException("Error in set up");
+				new EventSimulator(fac).run(numTicks);
+				if (pass == 1)
+					System.out.printf("%-12s\t%.1f\t%d\t\t%d%n", STRATEGIES[s],
+							router.nanosPerTransfer(), fac.totalProcessed(),
+							fac.totalSpoiled());
+			}
+		}
+	}
+
+	/**
+	 * Creates the connector for a strategy
+	 */
+	private static Connector strategy(int s, int width, SimulationContext ctx) {
+		// Connectors are not units, so their streams are keyed apart from
+		// the unit IDs
+		RandomStream gen = RandomStream.forKey(ctx.seed(), -1 - s);
+		switch (s) {
+		case 0:
+			return new IntelligentRouter();
+		case 1:
+			return new IntelligentRouter(false);
+		case 2:
+			return new SampledRouter(2, gen);
+		case 3:
+			return new SampledRouter(3, gen);
+		case 4:
+			return new RoundRobinRouter();
+		default:
+			// Weight each machine by the rate at which it works
+			double[] weights = new double[width];
+			for (int i = 0; i < width; i++)
+				weights[i] = 1.0 / PROC_TIMES[i % PROC_TIMES.length];
+			return new WeightedRouter(weights, gen);
+		}
+	}
+
+	/**
+	 * Builds a factory whose sources all feed one router in front of a
+	 * layer of machines, each with its own sink
+	 */
+	private static LayeredFactory makeFactory(SimulationContext ctx,
+			int width, Connector router) {
+		LayeredFactory fac = new LayeredFactory(3);
+		for (int i = 0; i < width; i++) {
+			fac.addUnit(new Source(ctx, new Perishable(SPOIL_TIME), GEN_PROB), 0);
+			fac.addUnit(new Machine(ctx, PROC_TIMES[i % PROC_TIMES.length],
+					0.001, 50), 1);
+			fac.addUnit(new Sink(ctx), 2);
+		}
+		fac.multiConnectLayers(0, router);
+		fac.directConnectLayers(1);
+		return fac;
+	}
+}
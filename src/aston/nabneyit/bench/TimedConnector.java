@@ -0,0 +1,73 @@
+package aston.nabneyit.bench;
+
+import aston.nabneyit.util.*;
+
+/**
+ * Wraps a {@link Connector Connector} and adds up the time it spends
+ * passing food on.  Units are connected to the wrapped connector, so it
+ * sees them as if it were used directly.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class TimedConnector extends Connector {
+
+	private final Connector target;
+	private long nanos = 0;
+	private long numTransfers = 0;
+
+	/**
+	 * Creates a wrapper
+	 * @param target connector to time
+	 */
+	public TimedConnector(Connector target) {
+		this.target = target;
+	}
+
+	public void addInputUnit(Unit u) {
+		target.addInputUnit(u);
+	}
+
+	public void addOutputUnit(Unit u) {
+		target.addOutputUnit(u);
+	}
+
+	public boolean check() {
+		return target.check();
+	}
+
+	public boolean canTransfer() {
+		return target.canTransfer();
+	}
+
+	public void transferProduct(Product p) {
+		long start = System.nanoTime();
+		target.transferProduct(p);
+		nanos += System.nanoTime() - start;
+		numTransfers++;
+	}
+
+	public void transferHandle(ProductStore s, int h) {
+		long start = System.nanoTime();
+		target.transferHandle(s, h);
+		nanos += System.nanoTime() - start;
+		numTransfers++;
+	}
+
+	/**
+	 * Returns the mean time taken to pass on an item, including the time
+	 * the receiving unit takes to queue it
+	 * @return time in nanoseconds
+	 */
+	public double nanosPerTransfer() {
+		return numTransfers == 0 ? 0.0 : (double) nanos / numTransfers;
+	}
+
+	public long numTransfers() {
+		return numTransfers;
+	}
+
+	public String toString() {
+		return "Timed " + target;
+	}
+}
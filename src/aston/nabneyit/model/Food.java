@@ -1,9 +1,12 @@
-
 package aston.nabneyit.model;
 
 import aston.nabneyit.util.*;
 /**
- * Defines the common functionality of food items.
+ * Defines the common functionality of food items.  Waiting time is not
+ * counted up in every time step; instead food records when it arrived in
+ * the factory against the factory's clock and works out its waiting time
+ * when asked.  Food that is not attached to a clock behaves as if the clock
+ * is stopped at zero.
  *
  * @author Ian T. Nabney
  * @version 2.0
@@ -11,22 +14,92 @@ import aston.nabneyit.util.*;
 
 public abstract class Food implements Product {
 
-	protected int waitingTime = 0;
-	protected int ID;
-	protected static int foodID = 0;
+	protected SimClock clock = null;
+	protected long arrivalTime = 0;
+	/** Time steps of ageing over and above the time measured by the clock */
+	protected int extraTime = 0;
+	protected ProductPool pool = null;
+	protected int ID = -1;
+	protected String typeName;
 
 	/**
-	 * Creates food item with unique ID
+	 * Creates food item named after its class; it gets its ID when it
+	 * enters a factory
 	 */
 	public Food() {
-		ID = foodID++;
+		typeName = getClass().getSimpleName();
+	}
+
+	/**
+	 * Creates food item of a named type, such as cheese
+	 * @param typeName name shared by all copies of the item
+	 */
+	public Food(String typeName) {
+		this.typeName = typeName;
+	}
+
+	public String typeName() {
+		return typeName;
 	}
 
 	/**
 	 * Increments waiting time
 	 */
 	public void tick() {
-		waitingTime++;
+		extraTime++;
+	}
+
+	/**
+	 * Records arrival time against the clock
+	 */
+	public void stamp(SimClock clock, int id) {
+		ID = id;
+		this.clock = clock;
+		arrivalTime = clock.now();
+		extraTime = 0;
+	}
+
+	/**
+	 * Moves the food onto another clock without changing its timing
+	 */
+	public void setClock(SimClock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Clears the ID and timing of recycled food
+	 */
+	public void reset() {
+		ID = -1;
+		clock = null;
+		arrivalTime = 0;
+		extraTime = 0;
+	}
+
+	public void setPool(ProductPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns food to its pool for reuse
+	 */
+	public void recycle() {
+		if (pool != null)
+			pool.release(this);
+	}
+
+	/**
+	 * Returns the current time of the clock that the food is timed against
+	 */
+	protected long now() {
+		return clock == null ? 0 : clock.now();
+	}
+
+	/**
+	 * Works out waiting time from the clock
+	 */
+	public int waitingTime() {
+		return (int) (now() - arrivalTime) + extraTime;
 	}
 
 	/**
@@ -35,15 +108,33 @@ public abstract class Food implements Product {
 	 */
 	public abstract boolean isRemovable();
 
+	/**
+	 * Defines the clock time at which the food item spoils
+	 */
+	public abstract long spoilDeadline();
+
 	/**
 	 * Clones food item
 	 */
 	public abstract Food copy();
 
+	/**
+	 * Copies the food together with its ID and timing
+	 */
+	public Food duplicate() {
+		Food d = copy();
+		d.ID = ID;
+		d.clock = clock;
+		d.arrivalTime = arrivalTime;
+		d.extraTime = extraTime;
+		return d;
+	}
+
 	/**
 	 * Provides string representation
 	 */
 	public String toString() {
-		return "(" + ID + "); wt=" + waitingTime;
+		return "(" + ID + "); wt=" + waitingTime();
 	}
 }
+
@@ -1,6 +1,8 @@
 
 package aston.nabneyit.model;
 
+import aston.nabneyit.util.Unit;
+
 /**
  * Defines the functionality specific to non-perishable food.
  *
@@ -16,6 +18,14 @@ public class NonPerishable extends Food {
 		super();
 	}
 
+	/**
+	 * Creates non-perishable food object of a named type
+	 * @param typeName name of the kind of food
+	 */
+	public NonPerishable(String typeName) {
+		super(typeName);
+	}
+
 	/**
 	 * Non-perishable food is never removable since it doesn't spoil
 	 */
@@ -23,8 +33,15 @@ public class NonPerishable extends Food {
 		return false;
 	}
 
+	/**
+	 * Non-perishable food never becomes removable
+	 */
+	public long spoilDeadline() {
+		return Unit.NEVER;
+	}
+
 	public Food copy() {
-		Food c = new NonPerishable();
+		Food c = new NonPerishable(typeName);
 		return c;
 	}
 
@@ -20,18 +20,35 @@ public class Perishable extends Food {
 		this.spoilTime = spoilTime;
 	}
 
+	/**
+	 * Creates perishable food item of a named type
+	 * @param typeName name of the kind of food
+	 * @param spoilTime defines the number of ticks until the item spoils
+	 */
+	public Perishable(String typeName, int spoilTime) {
+		super(typeName);
+		this.spoilTime = spoilTime;
+	}
+
 	/**
 	 * Determines if the item has spoiled and should be removed
 	 */
 	public boolean isRemovable() {
-		if (waitingTime >= spoilTime)
+		if (waitingTime() >= spoilTime)
 			return true;
 		else
 			return false;
 	}
 
+	/**
+	 * Determines the clock time at which the item spoils
+	 */
+	public long spoilDeadline() {
+		return arrivalTime - extraTime + spoilTime;
+	}
+
 	public Food copy() {
-		Food c = new Perishable(this.spoilTime);
+		Food c = new Perishable(typeName, this.spoilTime);
 		return c;
 	}
 
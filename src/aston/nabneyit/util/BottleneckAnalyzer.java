@@ -0,0 +1,297 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Works out which layer of a {@link LayeredFactory LayeredFactory} limits
+ * its output after a run, from the {@link UnitMetrics metrics} kept by its
+ * machines.  The machines must keep metrics for the whole run, so
+ * {@link LayeredFactory#useMetrics()} should be called before it starts.
+ * <p>
+ * Food that reaches a machine and is never served, because it spoils in
+ * the queue or is still waiting at the end, is demand the machine did not
+ * meet.  Some of that food arrives too old to be saved whatever the
+ * machine does, so only the share that matches the machine's load, the
+ * fraction of the time it was working or jammed, is put down to a
+ * shortage of servers.  The time that machines in the layer before spend
+ * blocked, holding finished items for which there is no room, is also
+ * demand the layer did not meet.  Adding a server to a
+ * layer meets at most one server's worth of that demand, and the extra
+ * food only leaves the factory if every later layer has spare capacity for
+ * it.  The bottleneck is the layer where a server would add most to the
+ * output.  If no layer leaves demand unmet, it is the layer whose machines
+ * are busiest, counting time jammed but not time blocked, which is spent
+ * waiting on the next layer.  Within the bottleneck layer, the busiest
+ * machine is named.
+ * <p>
+ * The estimate is first order: it ignores the randomness of arrivals and
+ * the food a new server would lose to jams of its own.  It takes one pass
+ * over the units and one over the layers, so it runs in time linear in
+ * the size of the factory.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class BottleneckAnalyzer {
+
+	// Output below this many items over the run counts as no gain
+	private static final double MIN_GAIN = 1.0;
+
+	private final LayeredFactory fac;
+	private final long elapsed;
+
+	// Totals over the machines of each layer
+	private final int[] servers;
+	private final long[] serverTime;
+	private final long[] busyTime;
+	private final long[] jammedTime;
+	private final long[] blockedTime;
+	private final long[] unserved;
+	/** Unserved items put down to a shortage of servers */
+	private final double[] shortage;
+	private final long[] served;
+	/** Items per time step the layer can serve, allowing for jams */
+	private final double[] capacity;
+	/** Items the layer could have finished in the time it was blocked */
+	private final double[] blockedItems;
+	private final double[] gain;
+
+	// Busiest machine of each layer and its position in the layer
+	private final Unit[] busiest;
+	private final int[] busiestIndex;
+	private final double[] busiestLoad;
+
+	private int bottleneck = -1;
+
+	/**
+	 * Analyses a factory at the end of a run
+	 * @param fac factory whose machines have kept metrics
+	 * @exception IllegalArgumentException if a machine has no metrics
+	 */
+	public BottleneckAnalyzer(LayeredFactory fac) {
+		this.fac = fac;
+		int n = fac.numLayers();
+		servers = new int[n];
+		serverTime = new long[n];
+		busyTime = new long[n];
+		jammedTime = new long[n];
+		blockedTime = new long[n];
+		unserved = new long[n];
+		shortage = new double[n];
+		served = new long[n];
+		capacity = new double[n];
+		blockedItems = new double[n];
+		gain = new double[n];
+		busiest = new Unit[n];
+		busiestIndex = new int[n];
+		busiestLoad = new double[n];
+
+		long start = -1;
+		for (int l = 0; l < n; l++) {
+			Iterator<Unit> i = fac.getLayer(l).iterator();
+			for (int index = 0; i.hasNext(); index++) {
+				Unit u = i.next();
+				int k;
+				int procTime;
+				long blocked;
+				if (u instanceof Machine) {
+					k = 1;
+					procTime = ((Machine) u).procTime;
+					blocked = ((Machine) u).blockedTime();
+				}
+				else if (u instanceof MultiServerMachine) {
+					k = ((MultiServerMachine) u).numServers();
+					procTime = ((MultiServerMachine) u).procTime;
+					blocked = ((MultiServerMachine) u).blockedTime();
+				}
+				else {
+					continue;
+				}
+				UnitMetrics m = u.metrics();
+				if (m == null)
+					throw new IllegalArgumentException(
+							"Machines must keep metrics for the analysis");
+				if (start < 0)
+					start = m.start();
+				add(l, index, u, m, k, Math.max(procTime, 1), blocked);
+			}
+		}
+		elapsed = start < 0 ? 0 : fac.clock().now() - start;
+		if (elapsed > 0)
+			findBottleneck();
+	}
+
+	/**
+	 * Adds a machine to the totals for its layer
+	 */
+	private void add(int l, int index, Unit u, UnitMetrics m, int k,
+			int procTime, long blocked) {
+		long time = m.busyTime() + m.idleTime() + m.jammedTime();
+		servers[l] += k;
+		serverTime[l] += time;
+		busyTime[l] += m.busyTime();
+		jammedTime[l] += m.jammedTime();
+		blockedTime[l] += blocked;
+		long taken = m.waitingTimes().count();
+		served[l] += taken;
+		long lost = u.numEntered() - taken;
+		unserved[l] += lost;
+		double load = load(m.busyTime() - blocked + m.jammedTime(), time);
+		shortage[l] += lost * load;
+		if (time > 0) {
+			double available = 1.0 - (double) m.jammedTime() / time;
+			capacity[l] += k * available / procTime;
+		}
+		blockedItems[l] += (double) blocked / procTime;
+		if (busiest[l] == null || load > busiestLoad[l]) {
+			busiest[l] = u;
+			busiestIndex[l] = index;
+			busiestLoad[l] = load;
+		}
+	}
+
+	/**
+	 * Estimates the gain from a server in each layer, working back from
+	 * the last layer so that the spare capacity after each layer is known
+	 */
+	private void findBottleneck() {
+		int n = servers.length;
+		double spareAfter = Double.MAX_VALUE;
+		for (int l = n - 1; l >= 0; l--) {
+			if (servers[l] == 0)
+				continue;
+			double unmet = shortage[l] / elapsed;
+			if (l > 0)
+				unmet += blockedItems[l - 1] / elapsed;
+			double g = Math.min(unmet, capacity[l] / servers[l]);
+			gain[l] = Math.max(0.0, Math.min(g, spareAfter));
+			double spare = Math.max(0.0,
+					capacity[l] - served[l] / (double) elapsed);
+			spareAfter = Math.min(spareAfter, spare);
+		}
+		double best = MIN_GAIN / elapsed;
+		for (int l = 0; l < n; l++) {
+			if (servers[l] > 0 && gain[l] >= best) {
+				best = gain[l];
+				bottleneck = l;
+			}
+		}
+		if (bottleneck >= 0)
+			return;
+		for (int l = 0; l < n; l++) {
+			if (servers[l] > 0 &&
+					(bottleneck < 0 || load(l) > load(bottleneck)))
+				bottleneck = l;
+		}
+	}
+
+	private static double load(long time, long total) {
+		return total == 0 ? 0.0 : (double) time / total;
+	}
+
+	/**
+	 * Returns the layer that limits the output of the factory
+	 * @return index of layer, or -1 if the factory has no machines
+	 */
+	public int bottleneckLayer() {
+		return bottleneck;
+	}
+
+	/**
+	 * Returns the busiest machine in the bottleneck layer
+	 * @return machine, or null if the factory has no machines
+	 */
+	public Unit bottleneckUnit() {
+		return bottleneck < 0 ? null : busiest[bottleneck];
+	}
+
+	/**
+	 * Estimates the extra items that one more server in a layer would
+	 * have got through the factory over the run
+	 * @param l index of layer
+	 * @return estimated gain in output
+	 */
+	public double estimatedGain(int l) {
+		return gain[l] * elapsed;
+	}
+
+	/**
+	 * Returns the fraction of the server time of a layer spent busy or
+	 * jammed, leaving out time blocked
+	 * @param l index of layer
+	 * @return load between 0 and 1, or 0 if the layer has no machines
+	 */
+	public double load(int l) {
+		return load(busyTime[l] - blockedTime[l] + jammedTime[l],
+				serverTime[l]);
+	}
+
+	/**
+	 * Describes the bottleneck, the state of each layer with machines and
+	 * where food spoiled
+	 * @return report
+	 */
+	public String report() {
+		String newLine = System.getProperty("line.separator");
+		StringBuffer buf = new StringBuffer();
+		if (bottleneck < 0)
+			return "No machines to analyse" + newLine;
+		buf.append("Bottleneck: layer " + bottleneck + ", " +
+				name(busiest[bottleneck], busiestIndex[bottleneck]) +
+				" (load " + percent(busiestLoad[bottleneck]) + ")" + newLine);
+		buf.append("One more server there could finish about " +
+				Math.round(estimatedGain(bottleneck)) + " more items in " +
+				elapsed + " time steps" + newLine);
+		for (int l = 0; l < servers.length; l++) {
+			if (servers[l] == 0)
+				continue;
+			long t = serverTime[l];
+			buf.append("Layer " + l + ": " + servers[l] +
+					(servers[l] == 1 ? " server" : " servers") +
+					"; working " + percent(load(busyTime[l] - blockedTime[l], t)) +
+					", jammed " + percent(load(jammedTime[l], t)) +
+					", blocked " + percent(load(blockedTime[l], t)) +
+					"; " + unserved[l] + " never served; gain " +
+					Math.round(estimatedGain(l)) + newLine);
+		}
+		appendSpoilage(buf, newLine);
+		return buf.toString();
+	}
+
+	/**
+	 * Lists the units where food spoiled, in layer order
+	 */
+	private void appendSpoilage(StringBuffer buf, String newLine) {
+		long total = 0;
+		for (int l = 0; l < servers.length; l++) {
+			Iterator<Unit> i = fac.getLayer(l).iterator();
+			while (i.hasNext())
+				total += i.next().numSpoiled();
+		}
+		buf.append("Spoiled: " + total + " items" + newLine);
+		if (total == 0)
+			return;
+		for (int l = 0; l < servers.length; l++) {
+			Iterator<Unit> i = fac.getLayer(l).iterator();
+			for (int index = 0; i.hasNext(); index++) {
+				Unit u = i.next();
+				if (u.numSpoiled() > 0)
+					buf.append("  Layer " + l + " " + name(u, index) + ": " +
+							u.numSpoiled() + " (" +
+							percent((double) u.numSpoiled() / total) + ")" +
+							newLine);
+			}
+		}
+	}
+
+	/**
+	 * Names a unit by its class and position in its layer
+	 */
+	private static String name(Unit u, int index) {
+		return u.getClass().getSimpleName() + " " + index;
+	}
+
+	private static String percent(double x) {
+		return String.format("%.1f%%", 100.0 * x);
+	}
+}
@@ -0,0 +1,94 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.*;
+
+public class BottleneckAnalyzerTest {
+	private static final int numTicks = 7200;
+
+	/**
+	 * Builds a line of three sources, three processing machines and one
+	 * packer, with no jams
+	 */
+	private LayeredFactory makeFactory(int procTime, int packTime) {
+		SimulationContext ctx = new SimulationContext(3);
+		LayeredFactory fac = new LayeredFactory(4);
+		for (int i = 0; i < 3; i++) {
+			fac.addUnit(new Source(ctx, new Perishable(60), 0.03), 0);
+			fac.addUnit(new Machine(ctx, procTime, 0.0, 1), 1);
+		}
+		fac.addUnit(new Machine(ctx, packTime, 0.0, 1), 2);
+		fac.addUnit(new Sink(ctx), 3);
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.multiConnectLayers(2);
+		fac.useMetrics();
+		new EventSimulator(fac).run(numTicks);
+		return fac;
+	}
+
+	@Test
+	public void testSlowPacker() {
+		// The packer can handle one item in 15 time steps against nine
+		// arriving
+		LayeredFactory fac = makeFactory(5, 15);
+		BottleneckAnalyzer a = new BottleneckAnalyzer(fac);
+		assertEquals(2, a.bottleneckLayer());
+		assertSame(fac.getLayer(2).iterator().next(), a.bottleneckUnit());
+		assertTrue(a.load(2) > 0.95);
+		// A second packer could take on nearly all that spoils in the
+		// queue, but no more than it can pack
+		double gain = a.estimatedGain(2);
+		assertTrue(gain > 0.9 * a.bottleneckUnit().numSpoiled());
+		assertTrue(gain <= numTicks / 15.0);
+		assertEquals(0.0, a.estimatedGain(1), 0.0);
+	}
+
+	@Test
+	public void testSlowProcessing() {
+		// Each processing machine gets one item in 33 time steps and takes
+		// 50 over it, while the packer has plenty of room
+		LayeredFactory fac = makeFactory(50, 2);
+		BottleneckAnalyzer a = new BottleneckAnalyzer(fac);
+		assertEquals(1, a.bottleneckLayer());
+		assertTrue(a.estimatedGain(1) > 0);
+		assertTrue(a.load(2) < 0.5);
+		assertTrue(a.report().startsWith("Bottleneck: layer 1"));
+	}
+
+	@Test
+	public void testBlockedLayerPointsDownstream() {
+		// With short queues the packer holds up the processing machines,
+		// which are blocked rather than losing food themselves
+		SimulationContext ctx = new SimulationContext(4);
+		LayeredFactory fac = new LayeredFactory(4);
+		fac.addUnit(new Source(ctx, new NonPerishable(), 0.2), 0);
+		fac.addUnit(new Machine(ctx, 3, 0.0, 1), 1);
+		Machine packer = new Machine(ctx, 10, 0.0, 1);
+		packer.setCapacity(2);
+		fac.addUnit(packer, 2);
+		fac.addUnit(new Sink(ctx), 3);
+		fac.directConnectLayers(0);
+		fac.directConnectLayers(1);
+		fac.directConnectLayers(2);
+		fac.useMetrics();
+		for (int t = 0; t < numTicks; t++)
+			fac.tick();
+		BottleneckAnalyzer a = new BottleneckAnalyzer(fac);
+		assertEquals(2, a.bottleneckLayer());
+		assertTrue(a.estimatedGain(2) > 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNeedsMetrics() {
+		SimulationContext ctx = new SimulationContext(1);
+		LayeredFactory fac = new LayeredFactory(2);
+		fac.addUnit(new Machine(ctx, 5, 0.0, 1), 0);
+		fac.addUnit(new Sink(ctx), 1);
+		fac.directConnectLayers(0);
+		new BottleneckAnalyzer(fac);
+	}
+}
@@ -0,0 +1,124 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+import aston.nabneyit.model.Perishable;
+
+public class CompiledFactoryTest {
+	private static final int numTicks = 5000;
+
+	private LayeredFactory makeFactory(long seed, int numPackers) {
+		SimulationContext ctx = new SimulationContext(seed);
+		LayeredFactory fac = new LayeredFactory(4);
+		fac.addUnit(new Source(ctx, new Perishable(45), 0.03), 0);
+		fac.addUnit(new Source(ctx, new Perishable(40), 0.03), 0);
+		fac.addUnit(new Source(ctx, new NonPerishable(), 0.04), 0);
+		fac.addUnit(new Machine(ctx, 20, 0.002, 60), 1);
+		fac.addUnit(new Machine(ctx, 20, 0.002, 60), 1);
+		fac.addUnit(new Machine(ctx, 22, 0.002, 60), 1);
+		for (int i = 0; i < numPackers; i++) {
+			fac.addUnit(new Machine(ctx, 10, 0.002, 60), 2);
+			fac.addUnit(new Sink(ctx), 3);
+		}
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.directConnectLayers(2);
+		return fac;
+	}
+
+	/**
+	 * Checks every unit's counters and queue against the compiled copy
+	 */
+	private void assertSame(LayeredFactory fac, CompiledFactory cf) {
+		int u = 0;
+		for (int n = 0; n < fac.numLayers(); n++) {
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext()) {
+				Unit unit = i.next();
+				assertEquals(unit.numProcessed(), cf.numProcessed(u));
+				assertEquals(unit.numSpoiled(), cf.numSpoiled(u));
+				assertEquals(unit.numEntered(), cf.numEntered(u));
+				if (!(unit instanceof Sink))
+					assertEquals(unit.queueLength(), cf.queueLength(u));
+				u++;
+			}
+		}
+		assertEquals(fac.totalProcessed(), cf.totalProcessed());
+		assertEquals(fac.totalSpoiled(), cf.totalSpoiled());
+		assertEquals(fac.clock().now(), cf.clock().now());
+	}
+
+	@Test
+	public void testMatchesFactory() {
+		for (long seed = 0; seed < 5; seed++) {
+			LayeredFactory fac = makeFactory(seed, 1 + (int) seed % 3);
+			CompiledFactory cf = CompiledFactory.compile(fac);
+			cf.run(numTicks);
+			for (int t = 0; t < numTicks; t++)
+				fac.tick();
+			assertSame(fac, cf);
+		}
+	}
+
+	@Test
+	public void testCompileRunningFactory() {
+		// Compiling part way through a run carries on from the factory's
+		// queues, jams and random number streams
+		LayeredFactory fac = makeFactory(11, 2);
+		for (int t = 0; t < 1234; t++)
+			fac.tick();
+		CompiledFactory cf = CompiledFactory.compile(fac);
+		cf.run(numTicks);
+		for (int t = 0; t < numTicks; t++)
+			fac.tick();
+		assertSame(fac, cf);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsSubclass() {
+		LayeredFactory fac = new LayeredFactory(3);
+		fac.addUnit(new Source(new Perishable(45), 0.1), 0);
+		fac.addUnit(new Machine(20, 0.0, 60) {
+			protected void process() {
+			}
+		}, 1);
+		fac.addUnit(new Sink(), 2);
+		fac.directConnectLayers(0);
+		fac.directConnectLayers(1);
+		assertTrue(fac.check());
+		CompiledFactory.compile(fac);
+	}
+
+	@Test
+	public void testRejectionsGiveReason() {
+		// The message says why the unit cannot be laid out
+		LayeredFactory fac = makeFactory(3, 1);
+		Iterator<Unit> i = fac.getLayer(1).iterator();
+		((Machine) i.next()).setDiscipline(QueueDiscipline.EDF);
+		try {
+			CompiledFactory.compile(fac);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("FIFO"));
+		}
+		fac = new LayeredFactory(3);
+		fac.addUnit(new Source(new Perishable(45), 0.1), 0);
+		fac.addUnit(new MultiServerMachine(20, 0.0, 60, 2), 1);
+		fac.addUnit(new Sink(), 2);
+		fac.directConnectLayers(0);
+		fac.directConnectLayers(1);
+		try {
+			CompiledFactory.compile(fac);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().startsWith("Multi-server machines"));
+		}
+	}
+}
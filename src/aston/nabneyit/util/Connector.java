@@ -57,6 +57,30 @@ public abstract class Connector {
 		return false;
 	}
 
+	/**
+	 * Checks whether an item could be transferred now, which is not the
+	 * case when the queues of all the output units are full.  Units
+	 * upstream call this before sending food on, and hold on to it if not.
+	 * @return true if some output unit accepts input
+	 */
+	public boolean canTransfer() {
+		return check();
+	}
+
+	/**
+	 * Checks whether any output unit has a limit on its queue.  Connectors
+	 * that choose outputs for a whole chunk before delivering it must send
+	 * the items one at a time if so, as a queue may fill up part way.
+	 * @return true if some output unit has a capacity
+	 */
+	protected boolean hasBoundedOutputs() {
+		for (Unit u : outUnits) {
+			if (u.capacity() > 0)
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Transfers product to one of the output units.  This method follows
 	 * the strategy of the particular connector type.
@@ -65,6 +89,95 @@ public abstract class Connector {
 	 */
 	public abstract void transferProduct(Product p);
 
+	/**
+	 * Transfers a chunk of products to the output units, with the same
+	 * result as transferring them one at a time in order.  The default does
+	 * just that; connectors that can share out a chunk in one pass should
+	 * override this.  The list still belongs to the caller, which may reuse
+	 * it afterwards.
+	 *
+	 * @param ps food items to be transferred
+	 */
+	public void transferProducts(List<Product> ps) {
+		for (Product p : ps)
+			transferProduct(p);
+	}
+
+	/**
+	 * Transfers a product held in a {@link ProductStore ProductStore} to
+	 * one of the output units.  By default the product is passed on as a
+	 * {@link Product Product} view; connectors should override this to
+	 * pass on the handle itself.
+	 *
+	 * @param s store holding the product
+	 * @param h handle of the product
+	 */
+	public void transferHandle(ProductStore s, int h) {
+		transferProduct(s.get(h));
+	}
+
+	/**
+	 * Saves the state of this connector so that a simulation can roll it
+	 * back later.  Connectors that choose outputs by remembering earlier
+	 * choices or by drawing random numbers must save what they need to
+	 * make the same choices again; the default saves nothing.
+	 *
+	 * @return saved state, or null if there is none
+	 * @see TimeWarp
+	 */
+	protected Object saveState() {
+		return null;
+	}
+
+	/**
+	 * Puts this connector back into a state saved by {@link #saveState()}
+	 *
+	 * @param state saved state
+	 */
+	protected void restoreState(Object state) {
+	}
+
+	/**
+	 * Passes a chunk of products to the outputs chosen for them.  Each
+	 * output takes in its share, in order, with one call to
+	 * {@link Unit#inputProducts(List)}.
+	 * @param ps food items
+	 * @param choice position in the output list of the unit chosen for
+	 * each item
+	 */
+	protected void deliver(List<Product> ps, int[] choice) {
+		int m = ps.size();
+		// Sort the items by output, keeping their order within each
+		long[] keys = new long[m];
+		for (int k = 0; k < m; k++)
+			keys[k] = (long) choice[k] * m + k;
+		Arrays.sort(keys);
+		int k = 0;
+		while (k < m) {
+			int out = (int) (keys[k] / m);
+			List<Product> share = new ArrayList<Product>();
+			while (k < m && keys[k] / m == out)
+				share.add(ps.get((int) (keys[k++] % m)));
+			outUnits.get(out).inputProducts(share);
+		}
+	}
+
+	/**
+	 * Finds the first output unit, starting from a given position and
+	 * wrapping round, that accepts input
+	 * @param from position in the output list to start from
+	 * @return position of the unit
+	 */
+	protected int nextAccepting(int from) {
+		int n = outUnits.size();
+		for (int k = 0; k < n; k++) {
+			int i = (from + k) % n;
+			if (outUnits.get(i).acceptsInput())
+				return i;
+		}
+		throw new InternalError("Connector incorrect");
+	}
+
 	public String toString() {
 		return ("Connector with " + inUnits.size() + " inputs and " +
 				outUnits.size() + " outputs");
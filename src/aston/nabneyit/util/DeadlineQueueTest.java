@@ -0,0 +1,198 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.*;
+
+public class DeadlineQueueTest {
+	private static final int[] spoilTimes = {5, 12, 20, 40};
+
+	/**
+	 * Serves a list of queued items, kept in order of arrival, by looking
+	 * at every one of them
+	 */
+	private static int choose(QueueDiscipline d, List<Long> deadlines) {
+		if (d == QueueDiscipline.LIFO)
+			return deadlines.size() - 1;
+		int best = 0;
+		if (d == QueueDiscipline.EDF)
+			for (int i = 1; i < deadlines.size(); i++)
+				if (deadlines.get(i) < deadlines.get(best))
+					best = i;
+		return best;
+	}
+
+	private static void expire(List<?> items, List<Long> deadlines,
+			long now) {
+		for (int i = items.size() - 1; i >= 0; i--) {
+			if (deadlines.get(i) <= now) {
+				items.remove(i);
+				deadlines.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * Adds, spoils and serves items at random, and checks that the queue
+	 * gives the same items as a list searched in full
+	 * @param d discipline, or null to change it at random as the queue runs
+	 */
+	private void checkProducts(QueueDiscipline d, long seed) {
+		Random gen = new Random(seed);
+		SimClock clock = new SimClock();
+		QueueDiscipline current = d == null ? QueueDiscipline.FIFO : d;
+		DeadlineQueue q = new DeadlineQueue(current);
+		List<Product> items = new ArrayList<Product>();
+		List<Long> deadlines = new ArrayList<Long>();
+		int id = 0;
+		for (int t = 0; t < 3000; t++) {
+			if (d == null && gen.nextInt(50) == 0) {
+				current = QueueDiscipline.values()[gen.nextInt(3)];
+				q.setDiscipline(current);
+			}
+			for (int k = gen.nextInt(4); k > 0; k--) {
+				int s = gen.nextInt(spoilTimes.length + 1);
+				Food f = s == spoilTimes.length ? new NonPerishable() :
+					new Perishable(spoilTimes[s]);
+				f.stamp(clock, id++);
+				q.add(f);
+				items.add(f);
+				deadlines.add(f.spoilDeadline());
+			}
+			assertEquals(countExpired(deadlines, clock.now()),
+					q.removeExpired(clock.now()));
+			expire(items, deadlines, clock.now());
+			for (int k = gen.nextInt(4); k > 0 && !items.isEmpty(); k--) {
+				int i = choose(current, deadlines);
+				assertSame(items.remove(i), q.remove());
+				deadlines.remove(i);
+			}
+			assertEquals(items.size(), q.size());
+			assertEquals(items, toList(q));
+			clock.advance();
+		}
+	}
+
+	private static int countExpired(List<Long> deadlines, long now) {
+		int n = 0;
+		for (long d : deadlines)
+			if (d <= now)
+				n++;
+		return n;
+	}
+
+	private static List<Product> toList(DeadlineQueue q) {
+		List<Product> l = new ArrayList<Product>();
+		for (Product p : q)
+			l.add(p);
+		return l;
+	}
+
+	@Test
+	public void testFifo() {
+		checkProducts(QueueDiscipline.FIFO, 1);
+	}
+
+	@Test
+	public void testLifo() {
+		checkProducts(QueueDiscipline.LIFO, 2);
+	}
+
+	@Test
+	public void testEdf() {
+		checkProducts(QueueDiscipline.EDF, 3);
+	}
+
+	@Test
+	public void testChangingDiscipline() {
+		checkProducts(null, 4);
+	}
+
+	@Test
+	public void testHandles() {
+		// The handle queue serves stored products in the same order
+		for (QueueDiscipline d : QueueDiscipline.values()) {
+			Random gen = new Random(d.ordinal());
+			SimClock clock = new SimClock();
+			ProductStore store = new ProductStore(clock);
+			int[] types = new int[spoilTimes.length + 1];
+			for (int s = 0; s < spoilTimes.length; s++)
+				types[s] = store.registerType(new Perishable(spoilTimes[s]));
+			types[spoilTimes.length] = store.registerType(new NonPerishable());
+			HandleQueue q = new HandleQueue(store, d);
+			assertEquals(d, q.discipline());
+			List<Integer> items = new ArrayList<Integer>();
+			List<Long> deadlines = new ArrayList<Long>();
+			for (int t = 0; t < 3000; t++) {
+				for (int k = gen.nextInt(4); k > 0; k--) {
+					int h = store.allocate(types[gen.nextInt(types.length)]);
+					q.add(h);
+					items.add(h);
+					deadlines.add(store.spoilDeadline(h));
+				}
+				assertEquals(countExpired(deadlines, clock.now()),
+						q.removeExpired(clock.now()));
+				expire(items, deadlines, clock.now());
+				for (int k = gen.nextInt(4); k > 0 && !items.isEmpty(); k--) {
+					int i = choose(d, deadlines);
+					int h = q.remove();
+					assertEquals(items.remove(i).intValue(), h);
+					deadlines.remove(i);
+					store.release(h);
+				}
+				assertEquals(items.size(), q.size());
+				clock.advance();
+			}
+		}
+	}
+
+	@Test
+	public void testRingStaysSmall() {
+		// Soup at the front never spoils or leaves, while cheese passes
+		// through behind it
+		SimClock clock = new SimClock();
+		DeadlineQueue q = new DeadlineQueue(QueueDiscipline.EDF);
+		ProductStore store = new ProductStore(clock);
+		HandleQueue hq = new HandleQueue(store, QueueDiscipline.EDF);
+		int cheese = store.registerType(new Perishable(40));
+		q.add(new NonPerishable());
+		hq.add(store.allocate(store.registerType(new NonPerishable())));
+		for (int i = 0; i < 3; i++) {
+			q.add(new Perishable(40));
+			hq.add(store.allocate(cheese));
+		}
+		for (int i = 0; i < 100000; i++) {
+			q.add(new Perishable(40));
+			assertTrue(q.remove() instanceof Perishable);
+			hq.add(store.allocate(cheese));
+			store.release(hq.remove());
+		}
+		assertEquals(4, q.size());
+		assertEquals(4, hq.size());
+		assertTrue(q.capacity() <= 16);
+		assertTrue(hq.capacity() <= 16);
+		assertTrue(q.iterator().next() instanceof NonPerishable);
+	}
+
+	@Test
+	public void testEdfServesSoonestToSpoil() {
+		SimClock clock = new SimClock();
+		DeadlineQueue q = new DeadlineQueue(QueueDiscipline.EDF);
+		Food soup = new NonPerishable();
+		Food cheese = new Perishable(45);
+		Food blueCheese = new Perishable(40);
+		Food[] arrivals = {soup, cheese, blueCheese};
+		for (int i = 0; i < arrivals.length; i++) {
+			arrivals[i].stamp(clock, i);
+			q.add(arrivals[i]);
+		}
+		assertSame(blueCheese, q.remove());
+		assertSame(cheese, q.remove());
+		assertSame(soup, q.remove());
+		assertTrue(q.isEmpty());
+	}
+}
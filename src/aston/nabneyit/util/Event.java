@@ -0,0 +1,40 @@
+package aston.nabneyit.util;
+
+/**
+ * Records the time step at which a unit must next run in an
+ * {@link EventSimulator EventSimulator}.  Events are ordered by time and
+ * then by the position of the unit in the factory, so that units in the
+ * same time step run in the same order as they do in
+ * {@link LayeredFactory#tick()}.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+class Event implements Comparable<Event> {
+
+	final long time;
+	final int order;
+	final Unit unit;
+
+	/**
+	 * Creates event
+	 * @param time time step at which the event happens
+	 * @param order position of the unit in the factory
+	 * @param unit unit that runs at this event
+	 */
+	Event(long time, int order, Unit unit) {
+		this.time = time;
+		this.order = order;
+		this.unit = unit;
+	}
+
+	public int compareTo(Event e) {
+		if (time != e.time)
+			return time < e.time ? -1 : 1;
+		return order - e.order;
+	}
+
+	public String toString() {
+		return "Event at " + time + " for " + unit;
+	}
+}
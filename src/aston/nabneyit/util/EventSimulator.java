@@ -0,0 +1,147 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Runs a {@link LayeredFactory LayeredFactory} as a discrete-event
+ * simulation.  Rather than visiting every unit in every time step, the
+ * simulator keeps a priority queue with the next event for each unit and
+ * jumps straight from one event to the next.  The events are arrivals at
+ * sources, machines finishing an item or taking one off their queue, jams
+ * starting and ending, food spoiling in a queue and food arriving at a unit.
+ * <p>
+ * Random events are sampled as the number of time steps until they next
+ * happen, so the results are statistically equivalent to calling
+ * {@link LayeredFactory#tick()} repeatedly, but when arrivals are sparse
+ * far fewer time steps need any work.  The totals are read from the factory
+ * in the usual way once the simulation has been run.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class EventSimulator {
+
+	private List<Unit> units;
+	private Map<Unit, Integer> order;
+	/** Stores the next event for each unit; other events in the queue for
+	 * the unit are out of date and are ignored */
+	private Map<Unit, Event> pending;
+	private PriorityQueue<Event> events;
+	private SimClock clock;
+
+	private long time;
+	private int currentOrder = -1;
+	private long numEvents = 0;
+
+	/**
+	 * Creates a simulator for a factory and schedules the first event for
+	 * each of its units
+	 * @param fac factory to simulate; it should have passed
+	 * {@link LayeredFactory#check()}
+	 */
+	public EventSimulator(LayeredFactory fac) {
+		units = new ArrayList<Unit>();
+		order = new HashMap<Unit, Integer>();
+		pending = new HashMap<Unit, Event>();
+		events = new PriorityQueue<Event>();
+		clock = fac.clock();
+		time = clock.now();
+
+		for (int n = 0; n < fac.numLayers(); n++) {
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext()) {
+				Unit u = i.next();
+				order.put(u, units.size());
+				units.add(u);
+				u.scheduler = this;
+			}
+		}
+		for (Unit u : units) {
+			u.startEvents(time);
+			schedule(u, u.nextEventTime());
+		}
+	}
+
+	/**
+	 * Runs the factory for a number of time steps
+	 * @param numTicks number of time steps to simulate
+	 */
+	public void run(long numTicks) {
+		long end = time + numTicks;
+		while (!events.isEmpty() && events.peek().time < end) {
+			Event e = events.remove();
+			if (pending.get(e.unit) != e)
+				continue;
+			pending.remove(e.unit);
+			time = e.time;
+			clock.setTime(time);
+			currentOrder = e.order;
+			e.unit.runEvent(time);
+			numEvents++;
+			schedule(e.unit, e.unit.nextEventTime());
+		}
+		currentOrder = -1;
+		for (Unit u : units) {
+			u.finishEvents(end - 1);
+		}
+		time = end;
+		clock.setTime(end);
+	}
+
+	/**
+	 * Makes sure that a unit runs in the current time step: called when
+	 * food is about to arrive at the unit.  The unit is first brought up to
+	 * date so that the new food does not affect time steps before it
+	 * arrived.  Food always flows forward through the factory, so the unit
+	 * has not yet run in this time step.
+	 * @param u unit to run
+	 */
+	void wake(Unit u) {
+		Integer n = order.get(u);
+		if (n == null)
+			return;
+		if (u.lastTick < time - 1)
+			u.finishEvents(time - 1);
+		Event e = pending.get(u);
+		if (e != null && e.time <= time)
+			return;
+		long t = (n > currentOrder || currentOrder < 0) ? time : time + 1;
+		schedule(u, t);
+	}
+
+	/**
+	 * Adds an event for a unit, replacing any event already pending for it
+	 */
+	private void schedule(Unit u, long t) {
+		if (t == Unit.NEVER) {
+			pending.remove(u);
+			return;
+		}
+		Event e = new Event(t, order.get(u), u);
+		pending.put(u, e);
+		events.add(e);
+	}
+
+	/**
+	 * Returns the number of time steps simulated so far
+	 * @return current simulation time
+	 */
+	public long now() {
+		return time;
+	}
+
+	/**
+	 * Returns the number of events processed so far; compare this with
+	 * the number of time steps multiplied by the number of units to see
+	 * how much work has been saved
+	 * @return number of events processed
+	 */
+	public long numEvents() {
+		return numEvents;
+	}
+
+	public String toString() {
+		return "Event simulator at time " + time + " with " + numEvents +
+				" events processed";
+	}
+}
@@ -0,0 +1,120 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+import aston.nabneyit.model.Perishable;
+
+public class EventSimulatorTest {
+	private static final int numTicks = 7200;
+
+	/**
+	 * Builds a factory with the same shape as the coursework one
+	 */
+	private LayeredFactory makeFactory(double pGen, double jamProb, int numPackers) {
+		return makeFactory(SimulationContext.getDefault(), pGen, jamProb,
+				numPackers);
+	}
+
+	private LayeredFactory makeFactory(SimulationContext ctx, double pGen,
+			double jamProb, int numPackers) {
+		LayeredFactory fac = new LayeredFactory(4);
+		fac.addUnit(new Source(ctx, new Perishable(45), pGen), 0);
+		fac.addUnit(new Source(ctx, new Perishable(40), pGen), 0);
+		fac.addUnit(new Source(ctx, new NonPerishable(), pGen), 0);
+		fac.addUnit(new Machine(ctx, 20, jamProb, 60), 1);
+		fac.addUnit(new Machine(ctx, 20, jamProb, 60), 1);
+		fac.addUnit(new Machine(ctx, 22, jamProb, 60), 1);
+		for (int i = 0; i < numPackers; i++) {
+			fac.addUnit(new Machine(ctx, 10, jamProb, 60), 2);
+			fac.addUnit(new Sink(ctx), 3);
+		}
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.directConnectLayers(2);
+		return fac;
+	}
+
+	@Test
+	public void testDeterministicRunMatchesTicks() {
+		// With arrivals every time step and no jams there is no randomness,
+		// so both engines must give exactly the same answer
+		LayeredFactory f1 = makeFactory(1.0, 0.0, 2);
+		LayeredFactory f2 = makeFactory(1.0, 0.0, 2);
+		for (int t = 0; t < numTicks; t++)
+			f1.tick();
+		EventSimulator sim = new EventSimulator(f2);
+		sim.run(numTicks / 2);
+		sim.run(numTicks - numTicks / 2);
+
+		assertEquals(numTicks, sim.now());
+		assertEquals(f1.totalProcessed(), f2.totalProcessed());
+		assertEquals(f1.totalSpoiled(), f2.totalSpoiled());
+		assertEquals(f1.getLayer(1).iterator().next().queueLength(),
+				f2.getLayer(1).iterator().next().queueLength());
+	}
+
+	@Test
+	public void testSameStreamsMatchTicks() {
+		// Both engines sample the same geometric gaps from each unit's own
+		// stream, so with the same seed they give identical results, even
+		// when a run switches between them
+		for (long seed = 0; seed < 10; seed++) {
+			LayeredFactory f1 = makeFactory(new SimulationContext(seed), 0.04, 0.002, 2);
+			LayeredFactory f2 = makeFactory(new SimulationContext(seed), 0.04, 0.002, 2);
+			for (int t = 0; t < numTicks; t++)
+				f1.tick();
+			for (int t = 0; t < 1000; t++)
+				f2.tick();
+			new EventSimulator(f2).run(numTicks - 2000);
+			for (int t = 0; t < 1000; t++)
+				f2.tick();
+			assertEquals(f1.totalProcessed(), f2.totalProcessed());
+			assertEquals(f1.totalSpoiled(), f2.totalSpoiled());
+		}
+	}
+
+	@Test
+	public void testMetricsMatchTicks() {
+		// Metrics are credited when things change, so skipping quiet time
+		// steps gives the same figures as ticking through them
+		LayeredFactory f1 = makeFactory(new SimulationContext(5), 0.04, 0.002, 2);
+		LayeredFactory f2 = makeFactory(new SimulationContext(5), 0.04, 0.002, 2);
+		f1.useMetrics();
+		f2.useMetrics();
+		for (int t = 0; t < numTicks; t++)
+			f1.tick();
+		new EventSimulator(f2).run(numTicks);
+		assertEquals(f1.metricsReport(), f2.metricsReport());
+		Machine m = (Machine) f1.getLayer(1).iterator().next();
+		UnitMetrics um = m.metrics();
+		assertEquals(numTicks, um.busyTime() + um.idleTime() + um.jammedTime());
+		assertEquals(numTicks, um.queueLengths().count());
+	}
+
+	@Test
+	public void testStatisticallyEquivalent() {
+		int numRuns = 30;
+		double tickProcessed = 0, eventProcessed = 0;
+		double tickSpoiled = 0, eventSpoiled = 0;
+		for (int r = 0; r < numRuns; r++) {
+			LayeredFactory f1 = makeFactory(0.03, 0.001, 1);
+			for (int t = 0; t < numTicks; t++)
+				f1.tick();
+			tickProcessed += f1.totalProcessed();
+			tickSpoiled += f1.totalSpoiled();
+
+			LayeredFactory f2 = makeFactory(0.03, 0.001, 1);
+			EventSimulator sim = new EventSimulator(f2);
+			sim.run(numTicks);
+			eventProcessed += f2.totalProcessed();
+			eventSpoiled += f2.totalSpoiled();
+			assertTrue(sim.numEvents() < numTicks * 8);
+		}
+		// Means over the runs should agree to within a few percent
+		assertEquals(1.0, eventProcessed / tickProcessed, 0.05);
+		assertEquals(1.0, eventSpoiled / tickSpoiled, 0.15);
+	}
+}
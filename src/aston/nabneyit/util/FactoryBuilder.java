@@ -0,0 +1,25 @@
+package aston.nabneyit.util;
+
+/**
+ * Defines a configuration of a factory that can be built many times over,
+ * for example to run independent replications of the same simulation.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public interface FactoryBuilder {
+	/**
+	 * Builds a new factory.  All the units must get their IDs and random
+	 * number streams from the context, so that factories built with
+	 * different contexts can be run at the same time.
+	 * @param ctx context of the simulation
+	 * @return factory ready to run
+	 */
+	public abstract LayeredFactory setUp(SimulationContext ctx);
+	/**
+	 * Works out the profit made by a factory that has been run
+	 * @param f factory built by this object
+	 * @return profit
+	 */
+	public abstract int profit(LayeredFactory f);
+}
@@ -0,0 +1,200 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Numbers the units and connectors of a {@link LayeredFactory
+ * LayeredFactory} so that they can be kept in arrays.  Units are numbered
+ * layer by layer, and within each layer the sources, machines and sinks
+ * are also numbered separately, keeping their order.  Connectors become
+ * tables of unit numbers.
+ * <p>
+ * Only {@link Source Source}, {@link Machine Machine} and {@link Sink
+ * Sink} units joined by {@link IntelligentRouter IntelligentRouters} can
+ * be laid out, as subclasses may behave differently.  The machines must
+ * serve their queues first in, first out, and no unit may keep
+ * {@link UnitMetrics metrics}, as the laid-out copies do not record them.
+ *
+ * @see CompiledFactory
+ * @see ReplicaEngine
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+class FactoryLayout {
+
+	static final int SOURCE = 0;
+	static final int MACHINE = 1;
+	static final int SINK = 2;
+
+	final List<Unit> units = new ArrayList<Unit>();
+	final List<Source> sources = new ArrayList<Source>();
+	final List<Machine> machines = new ArrayList<Machine>();
+	final List<Sink> sinks = new ArrayList<Sink>();
+
+	// One entry per unit
+	final int[] kind;
+	/** Index of the unit among the units of its kind */
+	final int[] slot;
+	/** Index of the connector that the unit sends to, or -1 */
+	final int[] outConnector;
+
+	// Unit numbers of the sources, machines and sinks
+	final int[] sourceUnit;
+	final int[] machineUnit;
+	final int[] sinkUnit;
+
+	// Unit, source, machine and sink numbers of layer i start at these
+	// entries
+	final int[] layerStart;
+	final int[] sourceStart;
+	final int[] machineStart;
+	final int[] sinkStart;
+
+	// Outputs of connector c are connectorOut[connectorStart[c] to
+	// connectorStart[c + 1]]
+	final int[] connectorStart;
+	final int[] connectorOut;
+
+	/**
+	 * Lays out a factory
+	 * @param fac factory that has passed {@link LayeredFactory#check()}
+	 * @throws IllegalArgumentException if the factory contains units or
+	 * connectors that cannot be laid out
+	 */
+	FactoryLayout(LayeredFactory fac) {
+		if (!fac.check())
+			throw new IllegalArgumentException("Factory fails its check");
+		if (fac.productStore() != null)
+			throw new IllegalArgumentException(
+					"Factories using a product store cannot be laid out");
+		if (fac.hasBoundedQueues())
+			throw new IllegalArgumentException(
+					"Factories with bounded queues cannot be laid out");
+
+		int numLayers = fac.numLayers();
+		layerStart = new int[numLayers + 1];
+		sourceStart = new int[numLayers + 1];
+		machineStart = new int[numLayers + 1];
+		sinkStart = new int[numLayers + 1];
+		for (int n = 0; n <= numLayers; n++) {
+			layerStart[n] = units.size();
+			sourceStart[n] = sources.size();
+			machineStart[n] = machines.size();
+			sinkStart[n] = sinks.size();
+			if (n == numLayers)
+				break;
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext()) {
+				Unit u = i.next();
+				if (u.metrics != null)
+					throw new IllegalArgumentException(
+							"Units keeping metrics cannot be laid out");
+				units.add(u);
+				if (u.getClass() == Source.class)
+					sources.add((Source) u);
+				else if (u.getClass() == Machine.class)
+					machines.add(fifoMachine((Machine) u));
+				else if (u.getClass() == Sink.class)
+					sinks.add((Sink) u);
+				else if (u instanceof MultiServerMachine)
+					throw new IllegalArgumentException(
+							"Multi-server machines cannot be laid out");
+				else
+					throw new IllegalArgumentException("Cannot lay out " +
+							u.getClass().getName() + ": only sources, " +
+							"machines and sinks of the plain classes can be");
+			}
+		}
+
+		int numUnits = units.size();
+		kind = new int[numUnits];
+		slot = new int[numUnits];
+		outConnector = new int[numUnits];
+		sourceUnit = new int[sources.size()];
+		machineUnit = new int[machines.size()];
+		sinkUnit = new int[sinks.size()];
+		Map<Unit, Integer> index = new HashMap<Unit, Integer>();
+		for (int u = 0; u < numUnits; u++)
+			index.put(units.get(u), u);
+		for (int s = 0; s < sources.size(); s++)
+			sourceUnit[s] = setKind(index.get(sources.get(s)), SOURCE, s);
+		for (int m = 0; m < machines.size(); m++)
+			machineUnit[m] = setKind(index.get(machines.get(m)), MACHINE, m);
+		for (int k = 0; k < sinks.size(); k++)
+			sinkUnit[k] = setKind(index.get(sinks.get(k)), SINK, k);
+
+		List<Connector> connectors = new ArrayList<Connector>();
+		int numOutputs = 0;
+		for (int u = 0; u < numUnits; u++) {
+			Connector c = units.get(u).outC;
+			if (c == null) {
+				outConnector[u] = -1;
+				continue;
+			}
+			if (c.getClass() != IntelligentRouter.class)
+				throw new IllegalArgumentException("Cannot lay out " +
+						c.getClass().getName() +
+						": only IntelligentRouter connectors can be");
+			int k = connectors.indexOf(c);
+			if (k < 0) {
+				k = connectors.size();
+				connectors.add(c);
+				numOutputs += c.outUnits.size();
+			}
+			outConnector[u] = k;
+		}
+		connectorStart = new int[connectors.size() + 1];
+		connectorOut = new int[numOutputs];
+		int pos = 0;
+		for (int k = 0; k < connectors.size(); k++) {
+			connectorStart[k] = pos;
+			for (Unit o : connectors.get(k).outUnits) {
+				Integer u = index.get(o);
+				if (u == null)
+					throw new IllegalArgumentException(o +
+							" is connected but not in the factory");
+				connectorOut[pos++] = u;
+			}
+		}
+		connectorStart[connectors.size()] = pos;
+	}
+
+	private int setKind(int u, int k, int s) {
+		kind[u] = k;
+		slot[u] = s;
+		return u;
+	}
+
+	/**
+	 * Checks that a machine serves its queue first in, first out, which is
+	 * the only order the laid out queues keep
+	 */
+	private static Machine fifoMachine(Machine m) {
+		if (m.discipline() != QueueDiscipline.FIFO)
+			throw new IllegalArgumentException("Machines must serve FIFO " +
+					"to be laid out, not " + m.discipline());
+		return m;
+	}
+
+	int numUnits() {
+		return units.size();
+	}
+
+	int numLayers() {
+		return layerStart.length - 1;
+	}
+
+	/**
+	 * Checks whether another factory has the same units and connections,
+	 * though the units may have different settings
+	 * @param other layout of the other factory
+	 * @return true if the layouts match
+	 */
+	boolean sameShape(FactoryLayout other) {
+		return Arrays.equals(kind, other.kind) &&
+				Arrays.equals(layerStart, other.layerStart) &&
+				Arrays.equals(outConnector, other.outConnector) &&
+				Arrays.equals(connectorStart, other.connectorStart) &&
+				Arrays.equals(connectorOut, other.connectorOut);
+	}
+}
@@ -0,0 +1,333 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Implements the input queue of a unit for products held in a
+ * {@link ProductStore ProductStore}.  This does the same job as
+ * {@link DeadlineQueue DeadlineQueue} but holds integer handles: the queue
+ * is a ring buffer and the spoil deadlines are indexed by a binary heap,
+ * both in primitive arrays, so adding and removing items allocates nothing
+ * once the arrays are large enough.  The items are served in the order
+ * given by a {@link QueueDiscipline QueueDiscipline}.  Entries in the heap
+ * record the sequence number of each item as well as its place in the ring,
+ * so an entry for an item that has already left the queue is recognised
+ * and dropped.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class HandleQueue {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private ProductStore store;
+
+	private QueueDiscipline discipline;
+
+	// Ring buffer indexed by place, with the sequence number of the item
+	// in each place
+	private int[] items;
+	private boolean[] removed;
+	private long[] seqAt;
+	private int mask;
+	private long head = 0;
+	private long tail = 0;
+	private int size = 0;
+	private long nextSeq = 0;
+
+	// Heap of spoil deadlines, holding the sequence number and place of
+	// each item
+	private long[] heapDeadline;
+	private long[] heapSeq;
+	private long[] heapPlace;
+	private int heapSize = 0;
+
+	/**
+	 * Creates an empty queue served first in, first out
+	 * @param store store holding the products
+	 */
+	public HandleQueue(ProductStore store) {
+		this(store, QueueDiscipline.FIFO);
+	}
+
+	/**
+	 * Creates an empty queue
+	 * @param store store holding the products
+	 * @param discipline order in which the items are served
+	 */
+	public HandleQueue(ProductStore store, QueueDiscipline discipline) {
+		this.store = store;
+		this.discipline = discipline;
+		items = new int[DEFAULT_CAPACITY];
+		removed = new boolean[DEFAULT_CAPACITY];
+		seqAt = new long[DEFAULT_CAPACITY];
+		mask = DEFAULT_CAPACITY - 1;
+		heapDeadline = new long[DEFAULT_CAPACITY];
+		heapSeq = new long[DEFAULT_CAPACITY];
+		heapPlace = new long[DEFAULT_CAPACITY];
+	}
+
+	public QueueDiscipline discipline() {
+		return discipline;
+	}
+
+	/**
+	 * Changes the order in which the items are served from now on
+	 * @param discipline queue discipline
+	 */
+	public void setDiscipline(QueueDiscipline discipline) {
+		this.discipline = discipline;
+	}
+
+	/**
+	 * Adds a product to the back of the queue
+	 * @param h handle of product
+	 */
+	public void add(int h) {
+		if (tail - head == items.length) {
+			if (2 * size <= items.length)
+				compact();
+			else
+				grow();
+		}
+		int pos = (int) (tail & mask);
+		items[pos] = h;
+		removed[pos] = false;
+		seqAt[pos] = nextSeq;
+		long d = store.spoilDeadline(h);
+		if (d != Unit.NEVER)
+			push(d, nextSeq, tail);
+		nextSeq++;
+		tail++;
+		size++;
+	}
+
+	/**
+	 * Removes the product that is next to be served
+	 * @return handle of the product at the front of the queue, the back of
+	 * the queue or the front of the deadline index, according to the
+	 * discipline
+	 * @exception NoSuchElementException if the queue is empty
+	 */
+	public int remove() {
+		if (size == 0)
+			throw new NoSuchElementException();
+		long place;
+		if (discipline == QueueDiscipline.LIFO) {
+			place = tail - 1;
+		}
+		else if (discipline == QueueDiscipline.EDF &&
+				nextDeadline() != Unit.NEVER) {
+			place = heapPlace[0];
+			pop();
+		}
+		else {
+			place = head;
+		}
+		int pos = (int) (place & mask);
+		int h = items[pos];
+		removed[pos] = true;
+		size--;
+		dropRemoved();
+		return h;
+	}
+
+	/**
+	 * Removes all products whose spoil deadline has been reached and
+	 * releases them from the store
+	 * @param now current time step
+	 * @return number of products removed
+	 */
+	public int removeExpired(long now) {
+		int count = 0;
+		while (heapSize > 0 && heapDeadline[0] <= now) {
+			long s = heapSeq[0];
+			long place = heapPlace[0];
+			pop();
+			if (isQueued(s, place)) {
+				int pos = (int) (place & mask);
+				removed[pos] = true;
+				store.release(items[pos]);
+				size--;
+				count++;
+			}
+		}
+		dropRemoved();
+		return count;
+	}
+
+	/**
+	 * Returns the earliest spoil deadline of the products in the queue
+	 * @return earliest deadline, or {@link Unit#NEVER} if nothing in the
+	 * queue can spoil
+	 */
+	public long nextDeadline() {
+		while (heapSize > 0 && !isQueued(heapSeq[0], heapPlace[0]))
+			pop();
+		return heapSize == 0 ? Unit.NEVER : heapDeadline[0];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Checks whether the item with a given sequence number is still queued
+	 * at the place recorded for it
+	 */
+	private boolean isQueued(long s, long place) {
+		int pos = (int) (place & mask);
+		return place >= head && place < tail && seqAt[pos] == s &&
+			!removed[pos];
+	}
+
+	private void dropRemoved() {
+		while (head < tail && removed[(int) (head & mask)])
+			head++;
+		while (tail > head && removed[(int) ((tail - 1) & mask)])
+			tail--;
+	}
+
+	/**
+	 * Moves the items still queued together at the front of the ring
+	 * buffer, in the same order, and rebuilds the heap for their new
+	 * places.  Items served from the middle of the queue leave gaps that
+	 * are not at either end, so without this a long-lived item at the
+	 * front would make the ring grow however few items are queued.  The
+	 * ring is only compacted when it is full and at least half of it is
+	 * gaps, so the cost is constant per item added over the long run.
+	 */
+	private void compact() {
+		long to = head;
+		heapSize = 0;
+		for (long from = head; from < tail; from++) {
+			int pos = (int) (from & mask);
+			if (removed[pos])
+				continue;
+			int dest = (int) (to & mask);
+			if (dest != pos) {
+				items[dest] = items[pos];
+				seqAt[dest] = seqAt[pos];
+				removed[dest] = false;
+				removed[pos] = true;
+			}
+			long d = store.spoilDeadline(items[dest]);
+			if (d != Unit.NEVER) {
+				heapDeadline[heapSize] = d;
+				heapSeq[heapSize] = seqAt[dest];
+				heapPlace[heapSize] = to;
+				heapSize++;
+			}
+			to++;
+		}
+		tail = to;
+		for (int i = heapSize / 2 - 1; i >= 0; i--)
+			siftDown(i);
+	}
+
+	/**
+	 * Returns the number of places in the ring buffer
+	 */
+	int capacity() {
+		return items.length;
+	}
+
+	/**
+	 * Doubles the size of the ring buffer, keeping each item at the
+	 * position given by its place
+	 */
+	private void grow() {
+		int n = 2 * items.length;
+		int[] newItems = new int[n];
+		boolean[] newRemoved = new boolean[n];
+		long[] newSeqAt = new long[n];
+		for (long s = head; s < tail; s++) {
+			newItems[(int) (s & (n - 1))] = items[(int) (s & mask)];
+			newRemoved[(int) (s & (n - 1))] = removed[(int) (s & mask)];
+			newSeqAt[(int) (s & (n - 1))] = seqAt[(int) (s & mask)];
+		}
+		items = newItems;
+		removed = newRemoved;
+		seqAt = newSeqAt;
+		mask = n - 1;
+	}
+
+	// Binary heap operations on the deadline index
+
+	private void push(long d, long s, long place) {
+		if (heapSize == heapDeadline.length) {
+			heapDeadline = Arrays.copyOf(heapDeadline, 2 * heapSize);
+			heapSeq = Arrays.copyOf(heapSeq, 2 * heapSize);
+			heapPlace = Arrays.copyOf(heapPlace, 2 * heapSize);
+		}
+		int i = heapSize++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!less(d, s, heapDeadline[parent], heapSeq[parent]))
+				break;
+			heapDeadline[i] = heapDeadline[parent];
+			heapSeq[i] = heapSeq[parent];
+			heapPlace[i] = heapPlace[parent];
+			i = parent;
+		}
+		heapDeadline[i] = d;
+		heapSeq[i] = s;
+		heapPlace[i] = place;
+	}
+
+	private void pop() {
+		heapSize--;
+		heapDeadline[0] = heapDeadline[heapSize];
+		heapSeq[0] = heapSeq[heapSize];
+		heapPlace[0] = heapPlace[heapSize];
+		siftDown(0);
+	}
+
+	/**
+	 * Moves the entry at a position of the heap down until neither child
+	 * comes before it
+	 */
+	private void siftDown(int i) {
+		long d = heapDeadline[i];
+		long s = heapSeq[i];
+		long place = heapPlace[i];
+		while (2 * i + 1 < heapSize) {
+			int child = 2 * i + 1;
+			if (child + 1 < heapSize && less(heapDeadline[child + 1],
+					heapSeq[child + 1], heapDeadline[child], heapSeq[child]))
+				child++;
+			if (!less(heapDeadline[child], heapSeq[child], d, s))
+				break;
+			heapDeadline[i] = heapDeadline[child];
+			heapSeq[i] = heapSeq[child];
+			heapPlace[i] = heapPlace[child];
+			i = child;
+		}
+		heapDeadline[i] = d;
+		heapSeq[i] = s;
+		heapPlace[i] = place;
+	}
+
+	private static boolean less(long d1, long s1, long d2, long s2) {
+		return d1 < d2 || (d1 == d2 && s1 < s2);
+	}
+
+	public String toString() {
+		StringBuffer buf = new StringBuffer("[");
+		String sep = "";
+		for (long s = head; s < tail; s++) {
+			int pos = (int) (s & mask);
+			if (!removed[pos]) {
+				buf.append(sep + store.toString(items[pos]));
+				sep = ", ";
+			}
+		}
+		buf.append("]");
+		return buf.toString();
+	}
+}
@@ -0,0 +1,171 @@
+package aston.nabneyit.util;
+
+/**
+ * Counts observations of a non-negative whole number, such as the time
+ * taken by food to pass through the factory, in buckets whose widths
+ * double: bucket 0 holds 0, and bucket <code>b</code> holds the values
+ * from 2<sup>b-1</sup> to 2<sup>b</sup>-1.  Adding an observation takes
+ * constant time and no memory, and percentiles are found to within a
+ * factor of two.  The exact mean and maximum are kept as well.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class Histogram {
+
+	/** Enough buckets for any long value */
+	public static final int NUM_BUCKETS = 64;
+
+	private long[] counts = new long[NUM_BUCKETS];
+	private long n = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	/**
+	 * Adds an observation
+	 * @param x observed value
+	 * @exception IllegalArgumentException if x is negative
+	 */
+	public void add(long x) {
+		if (x < 0)
+			throw new IllegalArgumentException("Negative value " + x);
+		counts[bucket(x)]++;
+		n++;
+		sum += x;
+		if (x > max)
+			max = x;
+	}
+
+	/**
+	 * Adds a value observed a number of times at once, such as a queue
+	 * length that held for several time steps
+	 * @param x observed value
+	 * @param weight number of observations
+	 * @exception IllegalArgumentException if x or weight is negative
+	 */
+	public void add(long x, long weight) {
+		if (x < 0 || weight < 0)
+			throw new IllegalArgumentException("Negative value " + x +
+					" or weight " + weight);
+		if (weight == 0)
+			return;
+		counts[bucket(x)] += weight;
+		n += weight;
+		sum += x * weight;
+		if (x > max)
+			max = x;
+	}
+
+	/**
+	 * Adds all the observations of another histogram to this one
+	 * @param h histogram to add
+	 */
+	public void addAll(Histogram h) {
+		for (int b = 0; b < NUM_BUCKETS; b++)
+			counts[b] += h.counts[b];
+		n += h.n;
+		sum += h.sum;
+		max = Math.max(max, h.max);
+	}
+
+	/**
+	 * Makes an independent copy of this histogram
+	 * @return copy
+	 */
+	public Histogram copy() {
+		Histogram h = new Histogram();
+		h.addAll(this);
+		return h;
+	}
+
+	public long count() {
+		return n;
+	}
+
+	/**
+	 * Returns the mean of the observations
+	 * @return mean, or 0 if there are none
+	 */
+	public double mean() {
+		return n == 0 ? 0.0 : (double) sum / n;
+	}
+
+	public long max() {
+		return max;
+	}
+
+	/**
+	 * Returns the number of observations in a bucket
+	 * @param b index of bucket
+	 * @return count
+	 */
+	public long bucketCount(int b) {
+		return counts[b];
+	}
+
+	/**
+	 * Finds the bucket that a value falls in
+	 * @param x non-negative value
+	 * @return index of bucket
+	 */
+	public static int bucket(long x) {
+		return 64 - Long.numberOfLeadingZeros(x);
+	}
+
+	/**
+	 * Returns the smallest value in a bucket
+	 * @param b index of bucket
+	 * @return lower bound
+	 */
+	public static long bucketLow(int b) {
+		return b == 0 ? 0 : 1L << (b - 1);
+	}
+
+	/**
+	 * Returns the largest value in a bucket
+	 * @param b index of bucket
+	 * @return upper bound
+	 */
+	public static long bucketHigh(int b) {
+		return b == 0 ? 0 : (1L << (b - 1)) - 1 + (1L << (b - 1));
+	}
+
+	/**
+	 * Returns an upper bound on a percentile: the top of the bucket that
+	 * it falls in, or the maximum if that is smaller
+	 * @param p fraction of observations, between 0 and 1
+	 * @return value that at least that fraction of the observations do not
+	 * exceed, or 0 if there are none
+	 */
+	public long percentile(double p) {
+		if (p < 0.0 || p > 1.0)
+			throw new IllegalArgumentException("Fraction out of range " + p);
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * n));
+		long seen = 0;
+		for (int b = 0; b < NUM_BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= rank)
+				return Math.min(bucketHigh(b), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Lists the non-empty buckets with their counts
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer("[");
+		String sep = "";
+		for (int b = 0; b < NUM_BUCKETS; b++) {
+			if (counts[b] > 0) {
+				buf.append(sep + bucketLow(b) + "-" + bucketHigh(b) + ": " +
+						counts[b]);
+				sep = ", ";
+			}
+		}
+		buf.append("]");
+		return buf.toString();
+	}
+}
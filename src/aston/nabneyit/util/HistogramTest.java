@@ -0,0 +1,48 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testBuckets() {
+		assertEquals(0, Histogram.bucket(0));
+		assertEquals(1, Histogram.bucket(1));
+		assertEquals(2, Histogram.bucket(3));
+		assertEquals(3, Histogram.bucket(4));
+		assertEquals(Histogram.NUM_BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+		for (int b = 0; b < Histogram.NUM_BUCKETS; b++) {
+			assertEquals(b, Histogram.bucket(Histogram.bucketLow(b)));
+			assertEquals(b, Histogram.bucket(Histogram.bucketHigh(b)));
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram h = new Histogram();
+		for (int x = 1; x <= 100; x++)
+			h.add(x);
+		assertEquals(100, h.count());
+		assertEquals(50.5, h.mean(), 1e-12);
+		assertEquals(100, h.max());
+		// The median, 50, is in the bucket from 32 to 63
+		assertEquals(63, h.percentile(0.5));
+		assertEquals(100, h.percentile(1.0));
+		assertEquals(1, h.percentile(0.0));
+
+		Histogram g = h.copy();
+		g.add(0);
+		assertEquals(101, g.count());
+		assertEquals(100, h.count());
+		h.addAll(g);
+		assertEquals(201, h.count());
+		assertEquals(1, h.bucketCount(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectNegative() {
+		new Histogram().add(-1);
+	}
+}
@@ -6,21 +6,121 @@ import java.util.*;
  * Defines the only type of {@link Connector Connector} needed for
  * the coursework.  The strategy is to transfer food to the output unit with
  * the shortest input queue.
+ * <p>
+ * Searching every output for each item takes time in proportion to the
+ * number of outputs, which adds up when one router feeds a wide layer.  If
+ * there are enough outputs, and they all {@link Unit#reportsQueueChanges()
+ * report changes to their queues}, the router instead keeps them in a
+ * binary heap ordered by queue length and listens for changes, so each
+ * transfer takes logarithmic time.  Either way ties go to the unit that
+ * comes first in the output list.
+ * <p>
+ * A chunk of items is shared out in one pass by water-filling: the
+ * shortest queues are topped up one item at a time until they reach the
+ * length of the next shortest, which then join them, and so on.  This
+ * gives each unit the same items as routing them one at a time, as long as
+ * each item adds one to the queue it joins.  Units whose queues have a
+ * {@link Unit#setCapacity(int) capacity} drop out of the level when they
+ * are full.
  *
  * @author Ian T. Nabney
  * @version 2.0
  */
 
-public class IntelligentRouter extends Connector {
+public class IntelligentRouter extends Connector implements QueueListener {
+
+	/** Fewest outputs for which a heap is used; below this a search is
+	 * quicker */
+	public static final int HEAP_MIN_OUTPUTS = 64;
+
+	private boolean indexed;
+
+	// Heap of output positions, ordered by whether the output accepts
+	// input, then its queue length, then its position.  heapIndex gives the
+	// place of each position in the heap.  Null until the first transfer,
+	// or if the outputs are searched.
+	private int[] heap = null;
+	private int[] heapIndex;
+	private boolean[] accepts;
+	private int[] length;
+	private Map<Unit, Integer> position;
+	private boolean searched = false;
 
 	public IntelligentRouter() {
+		this(true);
+	}
+
+	/**
+	 * Creates a router
+	 * @param indexed true to keep the outputs in a heap when possible,
+	 * false always to search them
+	 */
+	public IntelligentRouter(boolean indexed) {
 		super();
+		this.indexed = indexed;
+	}
+
+	/**
+	 * Adds an output unit; the heap is rebuilt at the next transfer
+	 */
+	public void addOutputUnit(Unit u) {
+		super.addOutputUnit(u);
+		dropHeap();
+	}
+
+	/**
+	 * Checks whether some output accepts input; with a heap, only the top
+	 * need be looked at
+	 */
+	public boolean canTransfer() {
+		if (heap == null && !searched)
+			buildHeap();
+		if (heap != null)
+			return topAccepts();
+		return super.canTransfer();
 	}
 
 	/**
 	 * Transfers product to shortest input queue of output list
 	 */
 	public void transferProduct(Product p) {
+		shortestQueue().inputProduct(p);
+	}
+
+	/**
+	 * Shares out a chunk of products by water-filling the queues
+	 */
+	public void transferProducts(List<Product> ps) {
+		if (ps.isEmpty())
+			return;
+		if (heap == null && !searched)
+			buildHeap();
+		int[] choice = heap != null ? fillFromHeap(ps.size()) :
+			fillQueues(ps.size());
+		if (choice == null)
+			super.transferProducts(ps);
+		else
+			deliver(ps, choice);
+	}
+
+	/**
+	 * Transfers stored product to shortest input queue of output list
+	 */
+	public void transferHandle(ProductStore s, int h) {
+		shortestQueue().inputHandle(s, h);
+	}
+
+	/**
+	 * Finds the output unit with the shortest input queue; ties go to the
+	 * unit that comes first in the output list
+	 * @return unit to send food to
+	 */
+	protected Unit shortestQueue() {
+		if (heap == null && !searched)
+			buildHeap();
+		if (heap != null)
+			return heapTop();
+
 		Unit o;
 		// Find output unit with smallest queue length
 		Iterator<Unit> i = outUnits.iterator();
@@ -33,7 +133,7 @@ public class IntelligentRouter extends Connector {
 		// the client has done it already.
 		while (i.hasNext()) {
 			o = (Unit) i.next();
-			if (o.acceptsInput() && 
+			if (o.acceptsInput() &&
 					(minLength == -1 || o.queueLength() < minLength)) {
 				minLength = o.queueLength();
 				minIndex = index;
@@ -41,10 +141,249 @@ public class IntelligentRouter extends Connector {
 			index++;
 		}
 
-		if (minLength == -1) 
+		if (minLength == -1)
 			throw new InternalError("Connector incorrect");
 		// Have found shortest queue, so send food to that unit
-		o = (Unit) outUnits.get(minIndex);
-		o.inputProduct(p);
+		return outUnits.get(minIndex);
+	}
+
+	/**
+	 * Works out where each item of a chunk goes by reading the queue
+	 * lengths once and raising the shortest ones level by level
+	 * @param m number of items
+	 * @return position of the output for each item, or null if some
+	 * output does not report its queue changes and so may not grow by one
+	 * for each item
+	 */
+	private int[] fillQueues(int m) {
+		int n = outUnits.size();
+		// Outputs that accept input, sorted by queue length then position,
+		// and the length at which each is full
+		long[] keys = new long[n];
+		long[] full = new long[n];
+		int a = 0;
+		for (int i = 0; i < n; i++) {
+			Unit o = outUnits.get(i);
+			if (!o.reportsQueueChanges())
+				return null;
+			if (o.acceptsInput())
+				keys[a++] = ((long) o.queueLength() << 32) | i;
+			full[i] = o.capacity() == 0 ? Long.MAX_VALUE : o.capacity();
+		}
+		if (a == 0)
+			throw new InternalError("Connector incorrect");
+		Arrays.sort(keys, 0, a);
+
+		// Outputs at the current level, in order of position
+		int[] level = new int[a];
+		int[] merged = new int[a];
+		int numLevel = 0;
+		int next = 0;
+		long length = keys[0] >>> 32;
+		int[] choice = new int[m];
+		int k = 0;
+		while (k < m) {
+			// Outputs whose queues are this long join the level
+			int start = numLevel;
+			while (next < a && (keys[next] >>> 32) == length)
+				level[numLevel++] = (int) keys[next++];
+			if (start > 0 && numLevel > start) {
+				mergeRuns(level, start, numLevel, merged);
+				int[] t = level;
+				level = merged;
+				merged = t;
+			}
+			// Top up the level by one, dropping the outputs that fill up
+			int kept = 0;
+			for (int j = 0; j < numLevel && k < m; j++) {
+				choice[k++] = level[j];
+				if (length + 1 < full[level[j]])
+					level[kept++] = level[j];
+			}
+			numLevel = kept;
+			length++;
+			if (numLevel == 0 && k < m) {
+				// Every output in the level is full; carry on from the
+				// next shortest queue
+				if (next == a)
+					throw new InternalError("Connector incorrect");
+				length = keys[next] >>> 32;
+			}
+		}
+		return choice;
+	}
+
+	/**
+	 * Merges two sorted runs, [0, mid) and [mid, end), into another array
+	 */
+	private static void mergeRuns(int[] src, int mid, int end, int[] dst) {
+		int i = 0;
+		int j = mid;
+		int k = 0;
+		while (i < mid && j < end)
+			dst[k++] = src[i] < src[j] ? src[i++] : src[j++];
+		while (i < mid)
+			dst[k++] = src[i++];
+		while (j < end)
+			dst[k++] = src[j++];
+	}
+
+	/**
+	 * Works out where each item of a chunk goes by taking the top of the
+	 * heap and adding one to its queue length, which the output confirms
+	 * when the items arrive
+	 * @param m number of items
+	 * @return position of the output for each item
+	 */
+	private synchronized int[] fillFromHeap(int m) {
+		int[] choice = new int[m];
+		for (int k = 0; k < m; k++) {
+			int pos = heap[0];
+			if (!accepts[pos])
+				throw new InternalError("Connector incorrect");
+			choice[k] = pos;
+			length[pos]++;
+			int c = outUnits.get(pos).capacity();
+			if (c > 0 && length[pos] >= c)
+				accepts[pos] = false;
+			siftDown(0);
+		}
+		return choice;
+	}
+
+	/**
+	 * Checks whether the outputs are kept in a heap
+	 * @return true if they are, false if they are searched
+	 */
+	public boolean isIndexed() {
+		if (heap == null && !searched)
+			buildHeap();
+		return heap != null;
+	}
+
+	/**
+	 * Moves a unit whose queue has changed to its new place in the heap.
+	 * Units in a layer that is run in parallel may call this at the same
+	 * time, so changes to the heap are synchronized.
+	 */
+	public synchronized void queueChanged(Unit u) {
+		if (heap == null)
+			return;
+		if (!u.reportsQueueChanges()) {
+			// The unit has stopped reporting, as a sink does when it starts
+			// counting, so the outputs are searched from now on
+			dropHeap();
+			return;
+		}
+		Integer k = position.get(u);
+		if (k == null)
+			return;
+		int pos = k.intValue();
+		accepts[pos] = u.acceptsInput();
+		length[pos] = u.queueLength();
+		int i = heapIndex[pos];
+		siftUp(i);
+		siftDown(heapIndex[pos]);
+	}
+
+	private synchronized boolean topAccepts() {
+		return accepts[heap[0]];
+	}
+
+	private synchronized Unit heapTop() {
+		int pos = heap[0];
+		if (!accepts[pos])
+			throw new InternalError("Connector incorrect");
+		return outUnits.get(pos);
+	}
+
+	/**
+	 * Puts the outputs in a heap and starts listening to them, unless there
+	 * are too few or one of them cannot be listened to
+	 */
+	private synchronized void buildHeap() {
+		int n = outUnits.size();
+		searched = true;
+		if (!indexed || n < HEAP_MIN_OUTPUTS)
+			return;
+		Map<Unit, Integer> pos = new IdentityHashMap<Unit, Integer>();
+		for (int k = 0; k < n; k++) {
+			Unit u = outUnits.get(k);
+			// A unit listed twice would have two places in the heap
+			if (!u.reportsQueueChanges() || pos.put(u, k) != null)
+				return;
+		}
+		position = pos;
+		heap = new int[n];
+		heapIndex = new int[n];
+		accepts = new boolean[n];
+		length = new int[n];
+		for (int k = 0; k < n; k++) {
+			Unit u = outUnits.get(k);
+			accepts[k] = u.acceptsInput();
+			length[k] = u.queueLength();
+			heap[k] = k;
+			heapIndex[k] = k;
+		}
+		for (int i = n / 2 - 1; i >= 0; i--)
+			siftDown(i);
+		for (Unit u : outUnits)
+			u.addQueueListener(this);
+		searched = false;
+	}
+
+	private synchronized void dropHeap() {
+		if (heap != null) {
+			for (Unit u : position.keySet())
+				u.removeQueueListener(this);
+		}
+		heap = null;
+		searched = false;
+	}
+
+	/**
+	 * Orders two output positions: units that accept input first, then
+	 * shorter queues, then earlier positions
+	 */
+	private boolean before(int a, int b) {
+		if (accepts[a] != accepts[b])
+			return accepts[a];
+		if (length[a] != length[b])
+			return length[a] < length[b];
+		return a < b;
+	}
+
+	private void siftUp(int i) {
+		int pos = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(pos, heap[parent]))
+				break;
+			place(heap[parent], i);
+			i = parent;
+		}
+		place(pos, i);
+	}
+
+	private void siftDown(int i) {
+		int n = heap.length;
+		int pos = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n)
+				break;
+			if (child + 1 < n && before(heap[child + 1], heap[child]))
+				child++;
+			if (!before(heap[child], pos))
+				break;
+			place(heap[child], i);
+			i = child;
+		}
+		place(pos, i);
+	}
+
+	private void place(int pos, int i) {
+		heap[i] = pos;
+		heapIndex[pos] = i;
 	}
 }
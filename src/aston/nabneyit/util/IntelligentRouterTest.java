@@ -0,0 +1,225 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.*;
+
+public class IntelligentRouterTest {
+	private static final int numOutputs = 2 * IntelligentRouter.HEAP_MIN_OUTPUTS;
+
+	/**
+	 * Connects a router to machines with a spread of processing times, so
+	 * that their queues grow, shrink and spoil at different rates
+	 */
+	private List<Machine> connect(IntelligentRouter r, SimClock clock,
+			long seed) {
+		SimulationContext ctx = new SimulationContext(seed);
+		Sink sink = new Sink(ctx);
+		sink.setClock(clock);
+		IntelligentRouter out = new IntelligentRouter();
+		out.addOutputUnit(sink);
+		List<Machine> machines = new ArrayList<Machine>();
+		for (int i = 0; i < numOutputs; i++) {
+			Machine m = new Machine(ctx, 5 + i % 7 * 10, 0.01, 20);
+			m.setClock(clock);
+			m.connectOutput(out);
+			r.addOutputUnit(m);
+			machines.add(m);
+		}
+		return machines;
+	}
+
+	@Test
+	public void testHeapMatchesSearch() {
+		SimClock clock = new SimClock();
+		IntelligentRouter heap = new IntelligentRouter();
+		IntelligentRouter search = new IntelligentRouter(false);
+		List<Machine> a = connect(heap, clock, 7);
+		List<Machine> b = connect(search, clock, 7);
+		assertTrue(heap.isIndexed());
+		assertFalse(search.isIndexed());
+		Random gen = new Random(3);
+		int id = 0;
+		for (int t = 0; t < 3000; t++) {
+			for (int k = gen.nextInt(5); k > 0; k--) {
+				Food f = new Perishable(30 + gen.nextInt(100));
+				f.stamp(clock, id++);
+				Food g = f.copy();
+				g.stamp(clock, id++);
+				heap.transferProduct(f);
+				search.transferProduct(g);
+			}
+			for (int i = 0; i < numOutputs; i++) {
+				a.get(i).tick();
+				b.get(i).tick();
+			}
+			clock.advance();
+		}
+		for (int i = 0; i < numOutputs; i++) {
+			assertEquals(b.get(i).numEntered(), a.get(i).numEntered());
+			assertEquals(b.get(i).numSpoiled(), a.get(i).numSpoiled());
+			assertEquals(b.get(i).queueLength(), a.get(i).queueLength());
+		}
+	}
+
+	@Test
+	public void testTiesGoToFirstOutput() {
+		IntelligentRouter r = new IntelligentRouter();
+		List<Sink> sinks = new ArrayList<Sink>();
+		int n = IntelligentRouter.HEAP_MIN_OUTPUTS;
+		for (int i = 0; i < n; i++) {
+			Sink s = new Sink(new SimulationContext(i));
+			r.addOutputUnit(s);
+			sinks.add(s);
+		}
+		for (int k = 0; k < n + 3; k++)
+			r.transferProduct(new NonPerishable());
+		assertTrue(r.isIndexed());
+		for (int i = 0; i < n; i++)
+			assertEquals(i < 3 ? 2 : 1, sinks.get(i).queueLength());
+		// Emptying a sink in the middle brings it to the front
+		sinks.get(6).tick();
+		r.transferProduct(new NonPerishable());
+		assertEquals(1, sinks.get(6).queueLength());
+		assertEquals(2, sinks.get(6).numEntered());
+	}
+
+	@Test
+	public void testSearchOutputsThatDoNotReport() {
+		// Sources never report queue changes, so the router searches
+		SimulationContext ctx = new SimulationContext(1);
+		IntelligentRouter r = new IntelligentRouter();
+		for (int i = 0; i < IntelligentRouter.HEAP_MIN_OUTPUTS; i++)
+			r.addOutputUnit(new Sink(ctx));
+		r.addOutputUnit(new Source(ctx, new NonPerishable(), 0.1));
+		assertFalse(r.isIndexed());
+		r.transferProduct(new NonPerishable());
+	}
+
+	@Test
+	public void testChunksMatchOneAtATime() {
+		// Water-filling gives every machine the same items as routing them
+		// one by one, with the outputs searched or kept in a heap
+		for (int mode = 0; mode < 2; mode++) {
+			SimClock clock = new SimClock();
+			IntelligentRouter chunked = new IntelligentRouter(mode == 0);
+			IntelligentRouter single = new IntelligentRouter(false);
+			List<Machine> a = connect(chunked, clock, 11);
+			List<Machine> b = connect(single, clock, 11);
+			Random gen = new Random(mode);
+			int id = 0;
+			for (int t = 0; t < 2000; t++) {
+				List<Product> chunk = new ArrayList<Product>();
+				for (int k = gen.nextInt(40); k > 0; k--) {
+					Food f = new Perishable(30 + gen.nextInt(100));
+					f.stamp(clock, id++);
+					Food g = f.copy();
+					g.stamp(clock, id++);
+					chunk.add(f);
+					single.transferProduct(g);
+				}
+				chunked.transferProducts(chunk);
+				for (int i = 0; i < numOutputs; i++) {
+					a.get(i).tick();
+					b.get(i).tick();
+				}
+				clock.advance();
+			}
+			assertEquals(mode == 0, chunked.isIndexed());
+			for (int i = 0; i < numOutputs; i++) {
+				assertEquals(b.get(i).numEntered(), a.get(i).numEntered());
+				assertEquals(b.get(i).numSpoiled(), a.get(i).numSpoiled());
+				assertEquals(b.get(i).queueLength(), a.get(i).queueLength());
+			}
+		}
+	}
+
+	@Test
+	public void testFullOutputsPassedOver() {
+		// Sinks of different capacities, some part full, fill up the same
+		// way whether a chunk is routed in one go or one item at a time
+		int n = IntelligentRouter.HEAP_MIN_OUTPUTS;
+		for (int mode = 0; mode < 2; mode++) {
+			IntelligentRouter chunked = new IntelligentRouter(mode == 0);
+			IntelligentRouter single = new IntelligentRouter(false);
+			List<Sink> a = new ArrayList<Sink>();
+			List<Sink> b = new ArrayList<Sink>();
+			int room = 0;
+			for (int i = 0; i < n; i++) {
+				Sink s = new Sink(new SimulationContext(i));
+				Sink t = new Sink(new SimulationContext(i));
+				s.setCapacity(1 + i % 4);
+				t.setCapacity(1 + i % 4);
+				for (int k = i % 3; k > 0; k--) {
+					s.inputProduct(new NonPerishable());
+					t.inputProduct(new NonPerishable());
+				}
+				room += Math.max(0, 1 + i % 4 - i % 3);
+				chunked.addOutputUnit(s);
+				single.addOutputUnit(t);
+				a.add(s);
+				b.add(t);
+			}
+			List<Product> chunk = new ArrayList<Product>();
+			for (int k = 0; k < room - 5; k++) {
+				chunk.add(new NonPerishable());
+				single.transferProduct(new NonPerishable());
+			}
+			chunked.transferProducts(chunk);
+			assertEquals(mode == 0, chunked.isIndexed());
+			for (int i = 0; i < n; i++)
+				assertEquals(b.get(i).queueLength(), a.get(i).queueLength());
+			assertTrue(chunked.canTransfer());
+			chunk.subList(5, chunk.size()).clear();
+			chunked.transferProducts(chunk);
+			assertFalse(chunked.canTransfer());
+		}
+	}
+
+	@Test
+	public void testCountingSinks() {
+		// Counting sinks never fill, whatever their capacity, and get the
+		// same items whether a chunk is routed in one go or one at a time,
+		// even if the heap was built before they started counting
+		int n = IntelligentRouter.HEAP_MIN_OUTPUTS;
+		IntelligentRouter chunked = new IntelligentRouter();
+		IntelligentRouter single = new IntelligentRouter(false);
+		List<Sink> a = new ArrayList<Sink>();
+		List<Sink> b = new ArrayList<Sink>();
+		for (int i = 0; i < n; i++) {
+			Sink s = new Sink(new SimulationContext(i));
+			Sink t = new Sink(new SimulationContext(i));
+			s.setCapacity(2);
+			t.setCapacity(2);
+			chunked.addOutputUnit(s);
+			single.addOutputUnit(t);
+			a.add(s);
+			b.add(t);
+		}
+		assertTrue(chunked.isIndexed());
+		for (int i = 0; i < n; i++) {
+			a.get(i).useCounting();
+			b.get(i).useCounting();
+		}
+		for (int round = 0; round < 3; round++) {
+			List<Product> chunk = new ArrayList<Product>();
+			for (int k = 0; k < 3 * n; k++) {
+				chunk.add(new NonPerishable());
+				assertTrue(single.canTransfer());
+				single.transferProduct(new NonPerishable());
+			}
+			assertTrue(chunked.canTransfer());
+			chunked.transferProducts(chunk);
+		}
+		assertFalse(chunked.isIndexed());
+		for (int i = 0; i < n; i++) {
+			assertEquals(b.get(i).numProcessed(), a.get(i).numProcessed());
+			assertEquals(b.get(i).processedByType(),
+					a.get(i).processedByType());
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package aston.nabneyit.util;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Groups some units into a layer; this is a convenient way
@@ -13,6 +14,8 @@ import java.util.*;
 public class Layer {
 
 	private List<Unit> units;
+	/** Outboxes used by the units during a parallel tick, if any */
+	private List<Outbox> outboxes = null;
 
 	/**
 	 * Creates layer object and initialises list of units that it contains
@@ -46,6 +49,111 @@ public class Layer {
 		}
 	}
 
+	/**
+	 * Runs the layer for a single time step with the units split between
+	 * several tasks.  In the compute phase the tasks tick their units at
+	 * the same time while {@link Outbox outboxes} stand in for the units'
+	 * output connectors and collect what they send on.  In the commit phase
+	 * the outboxes are emptied into the real connectors in the order of the
+	 * units, exactly as {@link #tick()} would have sent them, and the real
+	 * connectors are put back.
+	 * @param exec runs the tasks
+	 * @param numTasks number of tasks to split the units between
+	 */
+	void tick(ExecutorService exec, int numTasks) {
+		int n = units.size();
+		numTasks = Math.min(numTasks, n);
+		if (numTasks <= 1) {
+			tick();
+			return;
+		}
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int k = 0; k < numTasks; k++) {
+			final List<Unit> part = units.subList(k * n / numTasks,
+					(k + 1) * n / numTasks);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for (Unit u : part)
+						u.tick();
+					return null;
+				}
+			});
+		}
+		stageOutputs();
+		try {
+			for (Future<Object> f : exec.invokeAll(tasks))
+				f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Tick interrupted");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+		finally {
+			commitOutputs();
+		}
+	}
+
+	/**
+	 * Puts an outbox in front of each unit's output connector, reusing
+	 * the outboxes from the last parallel tick where the connector is the
+	 * same
+	 */
+	private void stageOutputs() {
+		if (outboxes == null)
+			outboxes = new ArrayList<Outbox>();
+		for (int i = 0; i < units.size(); i++) {
+			Unit u = units.get(i);
+			if (i == outboxes.size())
+				outboxes.add(null);
+			Outbox ob = outboxes.get(i);
+			if (u.outC == null) {
+				outboxes.set(i, null);
+			}
+			else {
+				if (ob == null || ob.target() != u.outC) {
+					ob = new Outbox(u.outC);
+					outboxes.set(i, ob);
+				}
+				u.outC = ob;
+			}
+		}
+	}
+
+	/**
+	 * Sends on the staged transfers in unit order and reconnects the units
+	 * to their real output connectors.  Transfers from neighbouring units
+	 * to the same connector are sent as one chunk.
+	 */
+	private void commitOutputs() {
+		List<Product> chunk = new ArrayList<Product>();
+		Connector target = null;
+		for (int i = 0; i < units.size(); i++) {
+			Outbox ob = outboxes.get(i);
+			if (ob != null) {
+				units.get(i).outC = ob.target();
+				if (ob.target() != target) {
+					send(target, chunk);
+					target = ob.target();
+				}
+				ob.drainTo(chunk);
+			}
+		}
+		send(target, chunk);
+	}
+
+	private static void send(Connector target, List<Product> chunk) {
+		if (!chunk.isEmpty()) {
+			target.transferProducts(chunk);
+			chunk.clear();
+		}
+	}
+
 	/**
 	 * Returns an iterator for the units stored in this layer.
 	 *
@@ -2,6 +2,7 @@
 package aston.nabneyit.util;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Defines a factory as a series of layers, with each
@@ -23,6 +24,17 @@ public class LayeredFactory {
 	 * one connector per unit.
 	 */
 	private Connector[][] connections;
+	/** Clock shared by all the units in the factory */
+	private SimClock clock;
+	/** Recycling pools used by the sources, if any */
+	private List<ProductPool> pools;
+	/** Store used by the units, if any */
+	private ProductStore store = null;
+	/** Runs the units of each layer in parallel; null for a serial tick */
+	private ExecutorService exec = null;
+	private int numTasks = 1;
+	/** Records the state of the units after each tick, if any */
+	private TraceRecorder recorder = null;
 
 	/**
 	 * Creates a layered factory made up of layers and connectors between layers
@@ -39,14 +51,166 @@ public class LayeredFactory {
 			layers[i] = new Layer();
 
 		connections = new Connector[numLayers-1][];
+		clock = new SimClock();
+		pools = new ArrayList<ProductPool>();
 	}
 
 	/**
 	 * Run the factory for a single time step
 	 */
 	public void tick() {
-		for (int i = 0; i < layers.length; i++)
-			(layers[i]).tick();
+		if (exec == null) {
+			for (int i = 0; i < layers.length; i++)
+				(layers[i]).tick();
+		}
+		else {
+			for (int i = 0; i < layers.length; i++)
+				(layers[i]).tick(exec, numTasks);
+		}
+		if (recorder != null)
+			recorder.record(clock.now());
+		clock.advance();
+	}
+
+	/**
+	 * Makes {@link #tick()} pass each time step to a recorder once the
+	 * units have run; the recorder calls this when it is created
+	 * @param r recorder, replacing any other
+	 */
+	void setRecorder(TraceRecorder r) {
+		recorder = r;
+	}
+
+	/**
+	 * Stops a recorder being given time steps, if it still is
+	 * @param r recorder that has been closed
+	 */
+	void stopRecording(TraceRecorder r) {
+		if (recorder == r)
+			recorder = null;
+	}
+
+	/**
+	 * Makes {@link #tick()} run the units within each layer in parallel.
+	 * The units in a layer are ticked at the same time and what they send
+	 * on is held back until they have all finished, then passed to the
+	 * connectors in the same order as a serial tick.  As every unit draws
+	 * from its own random number stream, the results are identical to a
+	 * serial tick; only the IDs given to new food items may come out in a
+	 * different order.  Recycling pools can be shared between threads, but
+	 * a product store cannot, and queues must not have a capacity, as the
+	 * units would see each other's queues part way through the tick.
+	 * @param numThreads number of threads to run each layer with
+	 */
+	public void useParallelTick(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		if (store != null)
+			throw new IllegalStateException(
+					"Product stores cannot be used with a parallel tick");
+		if (hasBoundedQueues())
+			throw new IllegalStateException(
+					"Bounded queues cannot be used with a parallel tick");
+		useSerialTick();
+		numTasks = numThreads;
+		exec = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "factory-tick");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Goes back to running the units one at a time and stops the threads
+	 * used by a parallel tick
+	 */
+	public void useSerialTick() {
+		if (exec != null)
+			exec.shutdown();
+		exec = null;
+		numTasks = 1;
+	}
+
+	/**
+	 * Makes all the units in the factory keep food in a shared
+	 * {@link ProductStore ProductStore} and pass integer handles to each
+	 * other.  Call this once all the units have been added and before the
+	 * factory is run.
+	 * @return the store
+	 */
+	public ProductStore useProductStore() {
+		if (exec != null)
+			throw new IllegalStateException(
+					"Product stores cannot be used with a parallel tick");
+		ProductStore s = new ProductStore(clock);
+		store = s;
+		for (int n = 0; n < layers.length; n++) {
+			Iterator<Unit> i = layers[n].iterator();
+			while (i.hasNext())
+				i.next().useStore(s);
+		}
+		return s;
+	}
+
+	/**
+	 * Makes the sources in the factory draw products from recycling pools,
+	 * one per product type, which sinks and spoilage return items to.  Call
+	 * this once all the units have been added and before the factory is run.
+	 * @param capacity maximum number of items kept by each pool
+	 */
+	public void useRecycling(int capacity) {
+		for (int n = 0; n < layers.length; n++) {
+			Iterator<Unit> i = layers[n].iterator();
+			while (i.hasNext()) {
+				Unit u = i.next();
+				if (u instanceof Source) {
+					Source s = (Source) u;
+					ProductPool pool = null;
+					for (ProductPool p : pools) {
+						if (p.prototype() == s.productType())
+							pool = p;
+					}
+					if (pool == null) {
+						pool = new ProductPool(s.productType(), capacity);
+						pools.add(pool);
+					}
+					s.usePool(pool);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the proportion of products taken from recycling pools
+	 * that were reused rather than newly made
+	 * @return hit rate between 0 and 1, or 0 if there are no pools
+	 */
+	public double poolHitRate() {
+		long hits = 0;
+		long total = 0;
+		for (ProductPool p : pools) {
+			hits += p.hits();
+			total += p.hits() + p.misses();
+		}
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	/**
+	 * Returns the product store used by the units
+	 * @return store, or null if the units hold food as objects
+	 */
+	ProductStore productStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the clock shared by the units in the factory
+	 * @return simulation clock
+	 */
+	public SimClock clock() {
+		return clock;
 	}
 
 	/**
@@ -85,6 +249,15 @@ public class LayeredFactory {
 			throw new IllegalArgumentException("Illegal Index: "+
 					layerIndex);     
 		(layers[layerIndex]).addUnit(u);
+		u.setClock(clock);
+	}
+
+	/**
+	 * Returns the number of layers in the factory
+	 * @return number of layers
+	 */
+	public int numLayers() {
+		return layers.length;
 	}
 
 	/**
@@ -107,33 +280,44 @@ public class LayeredFactory {
 	 * @exception IndexOutOfBoundsException if index is out of range
 	 */
 	public void multiConnectLayers(int i) {
+		multiConnectLayers(i, new IntelligentRouter());
+	}
+
+	/**
+	 * Connects a specified layer to its following layer using a single
+	 * connector, whose type decides how food is shared out between the
+	 * units of the following layer.
+	 *
+	 * @param i index of first layer in connection
+	 * @param c new connector, with no units connected to it yet
+	 * @exception IndexOutOfBoundsException if index is out of range
+	 */
+	public void multiConnectLayers(int i, Connector c) {
 		if (i < 0 || i >= layers.length-1)
 			throw new 
 			IndexOutOfBoundsException("Illegal Index in connection: " +
 					i);
 
-		IntelligentRouter ir = new IntelligentRouter();
-
-		// Connect all the units in layer i as inputs to the router
+		// Connect all the units in layer i as inputs to the connector
 		Iterator<Unit> i1 = layers[i].iterator();
 		while (i1.hasNext()) {
 			Unit u1 = i1.next();
-			ir.addInputUnit(u1);
+			c.addInputUnit(u1);
 			// Make sure that each unit knows where it is sending food
-			u1.connectOutput(ir);
+			u1.connectOutput(c);
 		}
 
-		// Connect all the units in layer i+1 as outputs to the router
+		// Connect all the units in layer i+1 as outputs to the connector
 		Iterator<Unit> i2 = layers[i+1].iterator();
 		while (i2.hasNext()) {
 			Unit u2 = i2.next();
-			ir.addOutputUnit(u2);
+			c.addOutputUnit(u2);
 			// Make sure that each unit knows where it is getting food
 			// from (not necessary, but comforting to have)
-			u2.connectInput(ir);
+			u2.connectInput(c);
 		}
 		connections[i] = new Connector[1];
-		connections[i][0] = ir;
+		connections[i][0] = c;
 	}
 
 	/**
@@ -218,6 +402,44 @@ public class LayeredFactory {
 		return total;
 	}
 
+	/**
+	 * Returns the number of items of each type processed in the sinks of
+	 * the factory that are {@link Sink#useCounting() counting}
+	 * @return counts by type name
+	 */
+	public Map<String, Integer> processedByType() {
+		Map<String, Integer> m = new LinkedHashMap<String, Integer>();
+		Iterator<Unit> i = layers[layers.length - 1].iterator();
+		while (i.hasNext()) {
+			Unit u = i.next();
+			if (!(u instanceof Sink))
+				continue;
+			for (Map.Entry<String, Integer> e :
+					((Sink) u).processedByType().entrySet()) {
+				Integer n = m.get(e.getKey());
+				m.put(e.getKey(), e.getValue() + (n == null ? 0 : n));
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Returns the times that the items processed in the counting sinks of
+	 * the factory took to pass through it
+	 * @return histogram of the waiting times, which is empty if no sink is
+	 * counting
+	 */
+	public Histogram latency() {
+		Histogram h = new Histogram();
+		Iterator<Unit> i = layers[layers.length - 1].iterator();
+		while (i.hasNext()) {
+			Unit u = i.next();
+			if (u instanceof Sink && ((Sink) u).isCounting())
+				h.addAll(((Sink) u).latency());
+		}
+		return h;
+	}
+
 	/**
 	 * Returns the number of spoiled items in the factory: sums
 	 * over all units
@@ -234,4 +456,75 @@ public class LayeredFactory {
 		}
 		return total;
 	}
+
+	/**
+	 * Returns the total time that the machines in the factory have spent
+	 * blocked, waiting for room downstream
+	 * @return blocked time summed over all machines and servers
+	 */
+	public long totalBlockedTime() {
+		long total = 0;
+		for (int n = 0; n < layers.length; n++) {
+			Iterator<Unit> i = layers[n].iterator();
+			while (i.hasNext()) {
+				Unit u = i.next();
+				if (u instanceof Machine)
+					total += ((Machine) u).blockedTime();
+				else if (u instanceof MultiServerMachine)
+					total += ((MultiServerMachine) u).blockedTime();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Makes every unit in the factory keep {@link UnitMetrics metrics},
+	 * measured from the current time step
+	 */
+	public void useMetrics() {
+		for (int n = 0; n < layers.length; n++) {
+			Iterator<Unit> i = layers[n].iterator();
+			while (i.hasNext())
+				i.next().useMetrics();
+		}
+	}
+
+	/**
+	 * Lists the metrics of the units that keep them, one line per unit,
+	 * layer by layer
+	 * @return report, empty if no unit keeps metrics
+	 */
+	public String metricsReport() {
+		String newLine = System.getProperty("line.separator");
+		StringBuffer buf = new StringBuffer();
+		for (int n = 0; n < layers.length; n++) {
+			Iterator<Unit> i = layers[n].iterator();
+			int k = 0;
+			while (i.hasNext()) {
+				Unit u = i.next();
+				UnitMetrics m = u.metrics();
+				if (m != null)
+					buf.append("Layer " + n + " " +
+							u.getClass().getSimpleName() + " " + k + ": " +
+							m + newLine);
+				k++;
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Checks whether any unit limits the length of its queue
+	 * @return true if some unit has a capacity
+	 */
+	boolean hasBoundedQueues() {
+		for (int n = 0; n < layers.length; n++) {
+			Iterator<Unit> i = layers[n].iterator();
+			while (i.hasNext()) {
+				if (i.next().capacity() > 0)
+					return true;
+			}
+		}
+		return false;
+	}
 }
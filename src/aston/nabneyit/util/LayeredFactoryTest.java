@@ -0,0 +1,100 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+import aston.nabneyit.model.Perishable;
+
+public class LayeredFactoryTest {
+	private static final int numTicks = 3000;
+
+	/**
+	 * Builds a wide factory with many units in each layer
+	 */
+	private LayeredFactory makeFactory(long seed) {
+		SimulationContext ctx = new SimulationContext(seed);
+		LayeredFactory fac = new LayeredFactory(4);
+		for (int i = 0; i < 30; i++) {
+			Product p = (i % 3 == 2) ? new NonPerishable() : new Perishable(40 + i % 7);
+			fac.addUnit(new Source(ctx, p, 0.03), 0);
+			fac.addUnit(new Machine(ctx, 15 + i % 10, 0.002, 60), 1);
+		}
+		for (int i = 0; i < 12; i++) {
+			fac.addUnit(new Machine(ctx, 10, 0.002, 60), 2);
+			fac.addUnit(new Sink(ctx), 3);
+		}
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.directConnectLayers(2);
+		return fac;
+	}
+
+	/**
+	 * Lists the counters and queue length of every unit
+	 */
+	private List<Integer> unitState(LayeredFactory fac) {
+		List<Integer> state = new ArrayList<Integer>();
+		for (int n = 0; n < fac.numLayers(); n++) {
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext()) {
+				Unit u = i.next();
+				state.add(u.numProcessed());
+				state.add(u.numSpoiled());
+				state.add(u.queueLength());
+			}
+		}
+		return state;
+	}
+
+	@Test
+	public void testParallelTickMatchesSerial() {
+		for (long seed = 0; seed < 3; seed++) {
+			LayeredFactory f1 = makeFactory(seed);
+			LayeredFactory f2 = makeFactory(seed);
+			f1.useRecycling(64);
+			f2.useRecycling(64);
+			f2.useParallelTick(4);
+			for (int t = 0; t < numTicks; t++) {
+				f1.tick();
+				f2.tick();
+			}
+			assertEquals(unitState(f1), unitState(f2));
+			assertEquals(f1.poolHitRate(), f2.poolHitRate(), 0.0);
+
+			// The real connectors are back in place, so the event engine
+			// can carry on from a parallel tick
+			f2.useSerialTick();
+			new EventSimulator(f1).run(numTicks);
+			new EventSimulator(f2).run(numTicks);
+			assertEquals(unitState(f1), unitState(f2));
+		}
+	}
+
+	@Test
+	public void testMultiConnectWithConnector() {
+		// A round-robin router shares items out evenly, whatever the queues
+		SimulationContext ctx = new SimulationContext(1);
+		LayeredFactory fac = new LayeredFactory(2);
+		fac.addUnit(new Source(ctx, new NonPerishable(), 1.0), 0);
+		for (int i = 0; i < 4; i++)
+			fac.addUnit(new Machine(ctx, 1000, 0.0, 1), 1);
+		fac.multiConnectLayers(0, new RoundRobinRouter());
+		assertTrue(fac.check());
+		for (int t = 0; t < 10; t++)
+			fac.tick();
+		Iterator<Unit> i = fac.getLayer(1).iterator();
+		for (int k = 0; k < 4; k++)
+			assertEquals(k < 2 ? 3 : 2, i.next().numEntered());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNoStoreInParallel() {
+		LayeredFactory fac = makeFactory(0);
+		fac.useParallelTick(2);
+		fac.useProductStore();
+	}
+}
@@ -12,56 +12,76 @@ import java.util.*;
  * A machine may jam with a probability specified in the constructor.  If this
  * happens it can do nothing for a time (also specified in the constructor)
  * and any food item that it is processing is spoiled.
+ * <p>
+ * If the input queue has a {@link #setCapacity(int) capacity}, the machine
+ * stops accepting input when it is full.  A machine whose finished item
+ * cannot be sent on, because every queue it could go to is full, is
+ * blocked: it holds on to the item, and takes nothing more off its own
+ * queue, until there is room downstream.
+ * <p>
+ * Items are taken off the queue first in, first out unless another
+ * {@link QueueDiscipline discipline} is set.
  *
  * @author Ian T. Nabney
  * @version 2.0
  */
 public class Machine extends Unit {
 
-	protected Queue<Product> q;
+	protected DeadlineQueue q;
 	protected Product currentItem = null;
+	// Used instead of the above when food is kept in a product store
+	protected HandleQueue hq = null;
+	protected QueueDiscipline discipline = QueueDiscipline.FIFO;
+	protected int currentHandle = -1;
 	protected final int procTime;
 	protected int procTimeLeft = 0;
 
 	// Variables associated with jamming
-	private static final int DEFAULT_SEED = 1729;
-	private static Random gen = new Random(DEFAULT_SEED);
+	protected RandomStream gen;
 	protected double jamProb;
 	protected int jamTime;
+	/** Time steps spent holding a finished item that could not be sent */
+	protected long blockedTime = 0;
 	protected boolean isJammed = false;
 	protected int jamTimeLeft = 0;
+	/** Unjammed time steps left until the next jam; zero if not yet sampled */
+	protected long jamCountdown = 0;
+	protected long nextJam = NEVER;
+	/** Set when an item is sent on in a time step that keeps metrics */
+	private boolean sentThisStep = false;
 
 	/**
-	 * Creates machine with its input queue
+	 * Creates machine with its input queue in the default context
 	 * @param procTime time spent to process an item
 	 * @param jamProb probability that machine jams in a single time step
 	 * @param jamTime length of time that the machine remains jammed for
 	 */
 	public Machine(int procTime, double jamProb, int jamTime) {
-		super();
+		this(SimulationContext.getDefault(), procTime, jamProb, jamTime);
+	}
+
+	/**
+	 * Creates machine with its input queue
+	 * @param ctx context of the simulation that the machine belongs to
+	 * @param procTime time spent to process an item
+	 * @param jamProb probability that machine jams in a single time step
+	 * @param jamTime length of time that the machine remains jammed for
+	 */
+	public Machine(SimulationContext ctx, int procTime, double jamProb,
+			int jamTime) {
+		super(ctx);
+		gen = ctx.streamFor(ID);
 		this.procTime = procTime;
 		this.jamProb = jamProb;
 		this.jamTime = jamTime;
-		q = new LinkedList<Product>();
+		q = new DeadlineQueue();
 	}
 
 	/**
 	 * Runs the machine for a single time step
 	 */
 	public void tick() {
-		// Update all the food waiting in the queue; take care to
-		// remove spoiled items
-		Iterator<Product> i = q.iterator();
-		while (i.hasNext()) {
-			Product f = (Product) i.next();
-			if (f.isRemovable()) {
-				i.remove();
-				numSpoiled++;
-			}
-			else {
-				f.tick();
-			}
-		}
+		removeSpoiled();
 
 		// If the machine is jammed, reduce jammed time left
 		if (isJammed) {
@@ -71,52 +91,341 @@ public class Machine extends Unit {
 		}
 
 		else {
-			// The machine is not jammed
-			double pJam = gen.nextDouble();
-			if (pJam < jamProb) {
-				// Now it is jammed
-				isJammed = true;
-				jamTimeLeft = jamTime;
-				// Throw away food being processed
-				currentItem = null;
-				numSpoiled++;
-			}
-			else{
-				// Determine if it is time to take something off the queue
-				if (procTimeLeft <= 0 && !q.isEmpty()) {
-					procTimeLeft = procTime; 
-					currentItem = q.remove();
-				}
-
-				// Update processing time left
-				if (procTimeLeft > 0) 
-					procTimeLeft--;
-				// Process current item
-				if (currentItem != null) {
-					currentItem.tick();
-					if (procTimeLeft == 0) {
-						// The current item is finished, so send it on
-						outC.transferProduct(currentItem);
-						currentItem = null;
-					}
-				}
+			// The machine is not jammed.  The number of time steps until
+			// the next jam is sampled from the geometric distribution, which
+			// saves drawing a random number in every step.
+			if (jamCountdown == 0)
+				jamCountdown = ticksUntil(gen, jamProb);
+			if (--jamCountdown == 0)
+				jam();
+			else
+				process();
+		}
+		if (metrics != null)
+			recordActivity();
+	}
+
+	/**
+	 * Removes spoiled items from the queue.  Food ages with the clock, so
+	 * only the items whose spoil deadline has been reached need to be looked
+	 * at.
+	 */
+	protected void removeSpoiled() {
+		int n;
+		if (hq == null)
+			n = q.removeExpired(clock.now());
+		else
+			n = hq.removeExpired(clock.now());
+		if (n > 0) {
+			numSpoiled += n;
+			queueChanged();
+		}
+	}
+
+	/**
+	 * Jams the machine and throws away the food being processed
+	 */
+	protected void jam() {
+		isJammed = true;
+		jamTimeLeft = jamTime;
+		if (currentItem != null) {
+			currentItem.recycle();
+			currentItem = null;
+		}
+		if (currentHandle >= 0) {
+			store.release(currentHandle);
+			currentHandle = -1;
+		}
+		numSpoiled++;
+	}
+
+	/**
+	 * Carries out one time step of processing when the machine is not jammed
+	 */
+	protected void process() {
+		// Determine if it is time to take something off the queue
+		if (!hasItem() && procTimeLeft <= 0 && queueLength() > 0) {
+			procTimeLeft = procTime; 
+			takeItem();
+		}
+
+		// Update processing time left
+		if (procTimeLeft > 0) 
+			procTimeLeft--;
+		// Process current item
+		if (hasItem() && procTimeLeft == 0) {
+			// The current item is finished, so send it on if there is room
+			if (outC.canTransfer())
+				sendItem();
+			else
+				blockedTime++;
+		}
+	}
+
+	/**
+	 * Takes the item at the front of the queue for processing.  Food ages
+	 * with the clock while it is processed, plus one extra step when it is
+	 * taken off the queue.
+	 */
+	private void takeItem() {
+		if (hq == null) {
+			currentItem = q.remove();
+			if (metrics != null)
+				metrics.recordWait(currentItem.waitingTime());
+			currentItem.tick();
+		}
+		else {
+			currentHandle = hq.remove();
+			if (metrics != null)
+				metrics.recordWait(store.waitingTime(currentHandle));
+			store.tick(currentHandle);
+		}
+		queueChanged();
+	}
+
+	/**
+	 * Checks whether an item is being processed
+	 */
+	private boolean hasItem() {
+		return currentItem != null || currentHandle >= 0;
+	}
+
+	/**
+	 * Starts keeping metrics, recording whether the machine is busy, idle
+	 * or jammed
+	 */
+	public void useMetrics() {
+		super.useMetrics();
+		sentThisStep = false;
+		recordActivity();
+	}
+
+	/**
+	 * Tells the metrics what the machine is doing after a time step.  A
+	 * machine that sent an item on was busy for the whole step, and is
+	 * only free from the next one.
+	 */
+	private void recordActivity() {
+		long from = clock.now();
+		if (sentThisStep) {
+			metrics.recordActivity(1, 0, 0, from);
+			sentThisStep = false;
+			from++;
+		}
+		boolean busy = hasItem();
+		metrics.recordActivity(busy ? 1 : 0, busy || isJammed ? 0 : 1,
+				isJammed ? 1 : 0, from);
+	}
+
+	/**
+	 * Checks whether the machine is holding a finished item because there
+	 * was no room for it downstream
+	 * @return true if the machine is blocked
+	 */
+	public boolean isBlocked() {
+		return hasItem() && procTimeLeft == 0;
+	}
+
+	public boolean isJammed() {
+		return isJammed;
+	}
+
+	/**
+	 * Returns the number of time steps that the machine has spent blocked
+	 * @return blocked time
+	 */
+	public long blockedTime() {
+		return blockedTime;
+	}
+
+	public QueueDiscipline discipline() {
+		return discipline;
+	}
+
+	/**
+	 * Sets the order in which the machine takes items off the input queue; the
+	 * default is first in, first out
+	 * @param d queue discipline
+	 */
+	public void setDiscipline(QueueDiscipline d) {
+		discipline = d;
+		q.setDiscipline(d);
+		if (hq != null)
+			hq.setDiscipline(d);
+	}
+
+	/**
+	 * Sends the finished item on; this also ages it by an extra step
+	 */
+	private void sendItem() {
+		if (hq == null) {
+			currentItem.tick();
+			outC.transferProduct(currentItem);
+			currentItem = null;
+		}
+		else {
+			int h = currentHandle;
+			currentHandle = -1;
+			store.tick(h);
+			outC.transferHandle(store, h);
+		}
+		if (metrics != null)
+			sentThisStep = true;
+	}
+
+	/**
+	 * Works out the time of the first jam, carrying on from the countdown
+	 * if the machine has already been run.  A jammed machine samples the
+	 * time of its next jam when the jam ends.
+	 */
+	protected void startEvents(long t) {
+		super.startEvents(t);
+		if (isJammed) {
+			nextJam = NEVER;
+		}
+		else {
+			if (jamCountdown == 0)
+				jamCountdown = ticksUntil(gen, jamProb);
+			nextJam = later(t - 1, jamCountdown);
+		}
+	}
+
+	/**
+	 * The next event is the earliest of the end of a jam, the next jam,
+	 * the completion of the current item, taking an item off the queue and
+	 * an item in the queue spoiling.  A blocked machine looks for room in
+	 * every time step.
+	 */
+	protected long nextEventTime() {
+		long next;
+		if (isJammed) {
+			next = lastTick + jamTimeLeft + 1;
+		}
+		else {
+			next = nextJam;
+			if (hasItem())
+				next = Math.min(next, lastTick + Math.max(procTimeLeft, 1));
+			else if (queueLength() > 0)
+				next = Math.min(next, lastTick + Math.max(procTimeLeft, 0) + 1);
+		}
+		long spoil = hq == null ? q.nextDeadline() : hq.nextDeadline();
+		return Math.min(next, Math.max(spoil, lastTick + 1));
+	}
+
+	/**
+	 * Catches up on the quiet time steps since the last event and then
+	 * runs time step <code>t</code> in the same way as {@link #tick()}.
+	 */
+	protected void runEvent(long t) {
+		skip(t - lastTick - 1);
+		removeSpoiled();
+		if (isJammed) {
+			if (--jamTimeLeft < 0) {
+				isJammed = false;
+				nextJam = later(t, ticksUntil(gen, jamProb));
 			}
 		}
+		else if (t == nextJam)
+			jam();
+		else
+			process();
+		if (metrics != null)
+			recordActivity();
+		lastTick = t;
 	}
 
 	/**
-	 * Machines always accept input
+	 * Catches up to the end of the simulation and turns the time of the
+	 * next jam back into a countdown, so that the machine can carry on
+	 * with {@link #tick()}
 	 */
-	public boolean acceptsInput() {
+	protected void finishEvents(long t) {
+		skip(t - lastTick);
+		lastTick = t;
+		if (isJammed)
+			jamCountdown = 0;
+		else
+			jamCountdown = (nextJam == NEVER) ? NEVER : nextJam - t;
+	}
+
+	/**
+	 * Advances the machine over time steps in which nothing happens
+	 * other than the counters running down.
+	 * @param n number of time steps to skip
+	 */
+	private void skip(long n) {
+		if (n <= 0)
+			return;
+		if (isJammed)
+			jamTimeLeft -= n;
+		else
+			procTimeLeft = (int) Math.max(0, procTimeLeft - n);
+	}
+
+	/**
+	 * Sets the clock and moves the food held by the machine onto it
+	 */
+	public void setClock(SimClock c) {
+		super.setClock(c);
+		for (Product p : q)
+			p.setClock(c);
+		if (currentItem != null)
+			currentItem.setClock(c);
+	}
+
+	/**
+	 * Saves the queue, the item being processed, the jam state and the
+	 * state of the random number stream
+	 */
+	protected Object saveState() {
+		List<Product> items = new ArrayList<Product>();
+		for (Product p : q)
+			items.add(p.duplicate());
+		Product current = currentItem == null ? null : currentItem.duplicate();
+		long[] own = {procTimeLeft, isJammed ? 1 : 0, jamTimeLeft,
+				jamCountdown, nextJam, gen.getState(), blockedTime};
+		return new Object[] {super.saveState(), items, current, own};
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void restoreState(Object state) {
+		Object[] s = (Object[]) state;
+		super.restoreState(s[0]);
+		q = new DeadlineQueue(discipline);
+		for (Product p : (List<Product>) s[1])
+			q.add(p.duplicate());
+		currentItem = s[2] == null ? null : ((Product) s[2]).duplicate();
+		long[] own = (long[]) s[3];
+		procTimeLeft = (int) own[0];
+		isJammed = own[1] != 0;
+		jamTimeLeft = (int) own[2];
+		jamCountdown = own[3];
+		nextJam = own[4];
+		gen.setState(own[5]);
+		blockedTime = own[6];
+		queueChanged();
+	}
+
+	/**
+	 * Machines report every change to their queue
+	 */
+	public boolean reportsQueueChanges() {
 		return true;
 	}
 
+	/**
+	 * Machines accept input unless their queue is full
+	 */
+	public boolean acceptsInput() {
+		return hasRoom();
+	}
+
 	/**
 	 * Returns the length of the input queue
 	 * @return the number of items in the queue
 	 */
 	public int queueLength() {
-		return q.size();
+		return hq == null ? q.size() : hq.size();
 	}
 
 	/**
@@ -124,11 +433,60 @@ public class Machine extends Unit {
 	 * @param p product to be operated on by machine
 	 */
 	public void inputProduct(Product p) {
+		if (store != null) {
+			inputHandle(store, store.adopt(p));
+			p.recycle();
+			return;
+		}
+		inputArrived();
 		q.add(p);
 		numEntered++;
+		queueChanged();
+	}
+
+	/**
+	 * Places a chunk of products in the input queue, in order, with a
+	 * single append
+	 * @param ps products to be operated on by machine
+	 */
+	public void inputProducts(List<Product> ps) {
+		if (store != null) {
+			super.inputProducts(ps);
+			return;
+		}
+		if (ps.isEmpty())
+			return;
+		inputArrived();
+		q.addAll(ps);
+		numEntered += ps.size();
+		queueChanged();
+	}
+
+	/**
+	 * Places a stored product in the input queue
+	 * @param s store holding the product
+	 * @param h handle of product
+	 */
+	public void inputHandle(ProductStore s, int h) {
+		if (s != store) {
+			super.inputHandle(s, h);
+			return;
+		}
+		inputArrived();
+		hq.add(h);
+		numEntered++;
+		queueChanged();
+	}
+
+	/**
+	 * Switches the input queue over to hold handles
+	 */
+	public void useStore(ProductStore s) {
+		super.useStore(s);
+		hq = new HandleQueue(s, discipline);
 	}
 
 	public String toString() {
-		return super.toString() + "; q=" + q.toString();
+		return super.toString() + "; q=" + (hq == null ? q : hq).toString();
 	}
 }
@@ -0,0 +1,104 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import aston.nabneyit.model.*;
+
+public class MachineTest {
+	private static final int procTime = 10;
+	private static final int spoilTime = 15;
+	private Machine m;
+	private Sink sink;
+	private SimClock clock;
+
+	@Before
+	public void setUp() throws Exception {
+		clock = new SimClock();
+		m = new Machine(procTime, 0.0, 1);
+		sink = new Sink();
+		m.setClock(clock);
+		sink.setClock(clock);
+		Connector c = new IntelligentRouter();
+		c.addInputUnit(m);
+		c.addOutputUnit(sink);
+		m.connectOutput(c);
+		sink.connectInput(c);
+		for (int i = 0; i < 5; i++) {
+			Food f = new Perishable(spoilTime);
+			f.stamp(clock, i);
+			m.inputProduct(f);
+		}
+	}
+
+	private void run(int numTicks) {
+		for (int t = 0; t < numTicks; t++) {
+			m.tick();
+			sink.tick();
+			clock.advance();
+		}
+	}
+
+	@Test
+	public void testSpoilage() {
+		// The first item is finished at the end of step 9, the second is
+		// taken off at step 10 and the rest spoil at step 15
+		run(spoilTime);
+		assertEquals(0, m.numSpoiled());
+		assertEquals(3, m.queueLength());
+		run(1);
+		assertEquals(3, m.numSpoiled());
+		assertEquals(0, m.queueLength());
+		run(procTime);
+		assertEquals(2, sink.numProcessed());
+	}
+
+	@Test
+	public void testWaitingTime() {
+		// Food waits in the queue, then ages one extra step when it is taken
+		// off and another when it is sent on
+		Food f = new NonPerishable();
+		f.stamp(clock, 5);
+		run(procTime - 1);
+		assertEquals(procTime - 1, f.waitingTime());
+		f.tick();
+		assertEquals(procTime, f.waitingTime());
+		assertEquals(Unit.NEVER, f.spoilDeadline());
+	}
+
+	@Test
+	public void testBlockedByFullQueue() {
+		// The sink is not run, so it fills with the first item; the second
+		// is finished at step 19 and held until there is room
+		sink.setCapacity(1);
+		for (int t = 0; t < 20; t++) {
+			m.tick();
+			clock.advance();
+		}
+		assertFalse(sink.acceptsInput());
+		assertTrue(m.isBlocked());
+		assertEquals(1, m.blockedTime());
+		assertEquals(3, m.numSpoiled());
+		m.tick();
+		clock.advance();
+		assertEquals(2, m.blockedTime());
+		sink.tick();
+		m.tick();
+		assertFalse(m.isBlocked());
+		assertEquals(2, m.blockedTime());
+		assertEquals(1, sink.queueLength());
+		assertEquals(2, sink.numEntered());
+	}
+
+	@Test
+	public void testCapacity() {
+		assertTrue(m.acceptsInput());
+		m.setCapacity(5);
+		assertEquals(5, m.capacity());
+		assertFalse(m.acceptsInput());
+		m.setCapacity(0);
+		assertTrue(m.acceptsInput());
+	}
+}
@@ -0,0 +1,594 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Implements a bank of identical machines that share one input queue, such
+ * as a row of packers.  Each server works like a {@link Machine Machine}:
+ * it takes the item at the front of the queue, works on it for the
+ * processing time and sends it on, and it may jam, spoiling the item it
+ * holds.  Free servers take items in order of position, and a server that
+ * finishes an item or comes out of a jam takes its next item in the
+ * following time step, as a machine does.  Like a machine, a server that
+ * jams while working on an item sits out the rest of its processing time
+ * once the jam is over.  A bank of one server gives exactly the same
+ * results as a machine.
+ * <p>
+ * Rather than counting down in every time step, each server records the
+ * time steps at which it will next finish an item and next jam or come out
+ * of a jam, and the servers are kept in a binary heap ordered by the
+ * earliest of these.  A time step only looks at the servers that have
+ * something to do in it, so its cost depends on how busy the servers are
+ * and not on how many there are.  The same times tell an
+ * {@link EventSimulator EventSimulator} when the bank next needs to run.
+ * <p>
+ * All the servers draw jam times from the bank's one random number stream,
+ * in a fixed order.  A server whose finished item cannot be sent on is
+ * blocked, as a machine is, and tries again in every time step.  The
+ * shared queue follows a {@link QueueDiscipline discipline} just as a
+ * machine's does.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class MultiServerMachine extends Unit {
+
+	protected DeadlineQueue q;
+	// Used instead of the above when food is kept in a product store
+	protected HandleQueue hq = null;
+	protected QueueDiscipline discipline = QueueDiscipline.FIFO;
+	protected final int procTime;
+	protected final int numServers;
+
+	// Variables associated with jamming
+	protected RandomStream gen;
+	protected double jamProb;
+	protected int jamTime;
+
+	// One entry per server
+	protected Product[] current;
+	protected int[] currentHandle;
+	/** Time step at which the current item is finished */
+	protected long[] finish;
+	protected boolean[] jammed;
+	/** Time step at which a jam ends */
+	protected long[] jamEnd;
+	/** Time step of the next jam, while not jammed */
+	protected long[] nextJam;
+	/** Processing time left when the server jammed */
+	protected long[] procLeft;
+
+	/** Time steps spent by servers holding items that could not be sent */
+	protected long blockedTime = 0;
+	protected int numBusy = 0;
+	protected int numJammed = 0;
+	/** Whether the first jams have been sampled */
+	protected boolean started = false;
+	// Items sent on in this time step, counted when keeping metrics
+	private int sentThisStep = 0;
+
+	// Heap of servers ordered by the next time step at which they have
+	// something to do, then by position; heapIndex gives the place of each
+	// server in the heap
+	private long[] due;
+	private int[] heap;
+	private int[] heapIndex;
+	/** Servers that are neither jammed nor holding an item */
+	private BitSet idle;
+	/** Servers that become idle at the end of the current time step */
+	private int[] freed;
+
+	/**
+	 * Creates bank of machines with their input queue in the default
+	 * context
+	 * @param procTime time spent by a server to process an item
+	 * @param jamProb probability that a server jams in a single time step
+	 * @param jamTime length of time that a server remains jammed for
+	 * @param numServers number of servers
+	 */
+	public MultiServerMachine(int procTime, double jamProb, int jamTime,
+			int numServers) {
+		this(SimulationContext.getDefault(), procTime, jamProb, jamTime,
+				numServers);
+	}
+
+	/**
+	 * Creates bank of machines with their input queue
+	 * @param ctx context of the simulation that the bank belongs to
+	 * @param procTime time spent by a server to process an item
+	 * @param jamProb probability that a server jams in a single time step
+	 * @param jamTime length of time that a server remains jammed for
+	 * @param numServers number of servers
+	 */
+	public MultiServerMachine(SimulationContext ctx, int procTime,
+			double jamProb, int jamTime, int numServers) {
+		super(ctx);
+		if (numServers < 1)
+			throw new IllegalArgumentException("Need at least one server");
+		gen = ctx.streamFor(ID);
+		this.procTime = procTime;
+		this.jamProb = jamProb;
+		this.jamTime = jamTime;
+		this.numServers = numServers;
+		q = new DeadlineQueue();
+		current = new Product[numServers];
+		currentHandle = new int[numServers];
+		Arrays.fill(currentHandle, -1);
+		finish = new long[numServers];
+		jammed = new boolean[numServers];
+		jamEnd = new long[numServers];
+		nextJam = new long[numServers];
+		procLeft = new long[numServers];
+		due = new long[numServers];
+		heap = new int[numServers];
+		heapIndex = new int[numServers];
+		idle = new BitSet(numServers);
+		idle.set(0, numServers);
+		freed = new int[numServers];
+	}
+
+	/**
+	 * Runs the bank for a single time step
+	 */
+	public void tick() {
+		long now = clock.now();
+		if (!started)
+			start(now);
+		removeSpoiled();
+
+		// Servers with something to do now, in order of position
+		int numFreed = 0;
+		while (due[heap[0]] <= now) {
+			int s = heap[0];
+			if (step(s, now))
+				freed[numFreed++] = s;
+			siftDown(0);
+		}
+
+		// Idle servers take items off the queue
+		for (int s = idle.nextSetBit(0); s >= 0 && queueLength() > 0;
+				s = idle.nextSetBit(s + 1)) {
+			takeItem(s, now);
+			if (finish[s] == now) {
+				sendItem(s, now);
+				if (!hasItem(s))
+					freed[numFreed++] = s;
+			}
+			else {
+				due[s] = Math.min(finish[s], nextJam[s]);
+			}
+			fix(s);
+		}
+
+		for (int k = 0; k < numFreed; k++)
+			idle.set(freed[k]);
+		if (metrics != null)
+			recordActivity();
+	}
+
+	/**
+	 * Samples the time of the first jam of each server
+	 * @param t first time step to be run
+	 */
+	private void start(long t) {
+		for (int s = 0; s < numServers; s++) {
+			nextJam[s] = later(t - 1, ticksUntil(gen, jamProb));
+			due[s] = nextJam[s];
+		}
+		buildHeap();
+		started = true;
+	}
+
+	/**
+	 * Carries out what a server has to do now: come out of a jam, jam,
+	 * send on a finished item, or finish sitting out a jam
+	 * @param s server
+	 * @param now current time step
+	 * @return true if the server is free to take an item in the next time
+	 * step
+	 */
+	private boolean step(int s, long now) {
+		if (jammed[s]) {
+			jammed[s] = false;
+			numJammed--;
+			nextJam[s] = later(now, ticksUntil(gen, jamProb));
+			finish[s] = now + procLeft[s];
+			if (procLeft[s] == 0) {
+				due[s] = nextJam[s];
+				return true;
+			}
+			due[s] = Math.min(finish[s], nextJam[s]);
+			return false;
+		}
+		if (now >= nextJam[s]) {
+			jam(s, now);
+			return false;
+		}
+		if (!hasItem(s)) {
+			due[s] = nextJam[s];
+			return true;
+		}
+		sendItem(s, now);
+		return !hasItem(s);
+	}
+
+	/**
+	 * Removes spoiled items from the queue
+	 */
+	protected void removeSpoiled() {
+		int n;
+		if (hq == null)
+			n = q.removeExpired(clock.now());
+		else
+			n = hq.removeExpired(clock.now());
+		if (n > 0) {
+			numSpoiled += n;
+			queueChanged();
+		}
+	}
+
+	/**
+	 * Jams a server and throws away the food that it holds
+	 */
+	private void jam(int s, long now) {
+		jammed[s] = true;
+		numJammed++;
+		jamEnd[s] = now + jamTime + 1;
+		due[s] = jamEnd[s];
+		procLeft[s] = idle.get(s) ? 0 : Math.max(0, finish[s] - now + 1);
+		idle.clear(s);
+		if (current[s] != null) {
+			current[s].recycle();
+			current[s] = null;
+			numBusy--;
+		}
+		if (currentHandle[s] >= 0) {
+			store.release(currentHandle[s]);
+			currentHandle[s] = -1;
+			numBusy--;
+		}
+		numSpoiled++;
+	}
+
+	/**
+	 * Gives a server the item at the front of the queue.  Food ages with
+	 * the clock while it is processed, plus one extra step when it is
+	 * taken off the queue.
+	 */
+	private void takeItem(int s, long now) {
+		idle.clear(s);
+		if (hq == null) {
+			current[s] = q.remove();
+			if (metrics != null)
+				metrics.recordWait(current[s].waitingTime());
+			current[s].tick();
+		}
+		else {
+			currentHandle[s] = hq.remove();
+			if (metrics != null)
+				metrics.recordWait(store.waitingTime(currentHandle[s]));
+			store.tick(currentHandle[s]);
+		}
+		numBusy++;
+		finish[s] = now + Math.max(procTime, 1) - 1;
+		queueChanged();
+	}
+
+	/**
+	 * Sends a server's finished item on if there is room, which also ages
+	 * it by an extra step; otherwise the server is blocked
+	 */
+	private void sendItem(int s, long now) {
+		if (!outC.canTransfer()) {
+			blockedTime++;
+			due[s] = Math.min(now + 1, nextJam[s]);
+			return;
+		}
+		if (hq == null) {
+			Product p = current[s];
+			current[s] = null;
+			p.tick();
+			outC.transferProduct(p);
+		}
+		else {
+			int h = currentHandle[s];
+			currentHandle[s] = -1;
+			store.tick(h);
+			outC.transferHandle(store, h);
+		}
+		numBusy--;
+		due[s] = nextJam[s];
+		if (metrics != null)
+			sentThisStep++;
+	}
+
+	private boolean hasItem(int s) {
+		return current[s] != null || currentHandle[s] >= 0;
+	}
+
+	public int numServers() {
+		return numServers;
+	}
+
+	/**
+	 * Starts keeping metrics, recording how many servers are busy, idle
+	 * and jammed
+	 */
+	public void useMetrics() {
+		super.useMetrics();
+		sentThisStep = 0;
+		recordActivity();
+	}
+
+	/**
+	 * Tells the metrics what the servers are doing after a time step.
+	 * Servers that sent an item on were busy for the whole step, and are
+	 * only free from the next one; servers sitting out a jam count as
+	 * idle.  This is how a machine is measured.
+	 */
+	private void recordActivity() {
+		long from = clock.now();
+		int numIdle = numServers - numBusy - numJammed;
+		if (sentThisStep > 0) {
+			metrics.recordActivity(numBusy + sentThisStep,
+					numIdle - sentThisStep, numJammed, from);
+			sentThisStep = 0;
+			from++;
+		}
+		metrics.recordActivity(numBusy, numIdle, numJammed, from);
+	}
+
+	/**
+	 * Returns the number of servers holding an item, including those that
+	 * are blocked
+	 * @return number of busy servers
+	 */
+	public int numBusy() {
+		return numBusy;
+	}
+
+	public int numJammed() {
+		return numJammed;
+	}
+
+	/**
+	 * Returns the number of time steps that servers have spent blocked,
+	 * summed over the servers
+	 * @return blocked time
+	 */
+	public long blockedTime() {
+		return blockedTime;
+	}
+
+	public QueueDiscipline discipline() {
+		return discipline;
+	}
+
+	/**
+	 * Sets the order in which the servers take items off the input queue; the
+	 * default is first in, first out
+	 * @param d queue discipline
+	 */
+	public void setDiscipline(QueueDiscipline d) {
+		discipline = d;
+		q.setDiscipline(d);
+		if (hq != null)
+			hq.setDiscipline(d);
+	}
+
+	/**
+	 * The bank runs when a server has something to do, when an idle
+	 * server can take an item off the queue, or when an item in the queue
+	 * spoils
+	 */
+	protected long nextEventTime() {
+		if (!started)
+			return lastTick + 1;
+		long next = due[heap[0]];
+		if (queueLength() > 0 && !idle.isEmpty())
+			next = lastTick + 1;
+		long spoil = hq == null ? q.nextDeadline() : hq.nextDeadline();
+		return Math.min(next, Math.max(spoil, lastTick + 1));
+	}
+
+	/**
+	 * Sets the clock and moves the food held by the bank onto it
+	 */
+	public void setClock(SimClock c) {
+		super.setClock(c);
+		for (Product p : q)
+			p.setClock(c);
+		for (int s = 0; s < numServers; s++) {
+			if (current[s] != null)
+				current[s].setClock(c);
+		}
+	}
+
+	/**
+	 * Saves the queue, the items held by the servers, their timings and
+	 * the state of the random number stream
+	 */
+	protected Object saveState() {
+		List<Product> items = new ArrayList<Product>();
+		for (Product p : q)
+			items.add(p.duplicate());
+		Product[] held = new Product[numServers];
+		for (int s = 0; s < numServers; s++)
+			held[s] = current[s] == null ? null : current[s].duplicate();
+		long[] own = {started ? 1 : 0, blockedTime, gen.getState()};
+		return new Object[] {super.saveState(), items, held, finish.clone(),
+				jammed.clone(), jamEnd.clone(), nextJam.clone(),
+				procLeft.clone(), due.clone(), idle.clone(), own};
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void restoreState(Object state) {
+		Object[] s = (Object[]) state;
+		super.restoreState(s[0]);
+		q = new DeadlineQueue(discipline);
+		for (Product p : (List<Product>) s[1])
+			q.add(p.duplicate());
+		Product[] held = (Product[]) s[2];
+		finish = ((long[]) s[3]).clone();
+		jammed = ((boolean[]) s[4]).clone();
+		jamEnd = ((long[]) s[5]).clone();
+		nextJam = ((long[]) s[6]).clone();
+		procLeft = ((long[]) s[7]).clone();
+		due = ((long[]) s[8]).clone();
+		idle = (BitSet) ((BitSet) s[9]).clone();
+		long[] own = (long[]) s[10];
+		started = own[0] != 0;
+		blockedTime = own[1];
+		gen.setState(own[2]);
+		numBusy = 0;
+		numJammed = 0;
+		for (int k = 0; k < numServers; k++) {
+			current[k] = held[k] == null ? null : held[k].duplicate();
+			if (current[k] != null)
+				numBusy++;
+			if (jammed[k])
+				numJammed++;
+		}
+		buildHeap();
+		queueChanged();
+	}
+
+	/**
+	 * Banks of machines report every change to their queue
+	 */
+	public boolean reportsQueueChanges() {
+		return true;
+	}
+
+	/**
+	 * Banks of machines accept input unless their queue is full
+	 */
+	public boolean acceptsInput() {
+		return hasRoom();
+	}
+
+	/**
+	 * Returns the length of the shared input queue
+	 * @return the number of items waiting for a server
+	 */
+	public int queueLength() {
+		return hq == null ? q.size() : hq.size();
+	}
+
+	/**
+	 * Places a product in the input queue
+	 * @param p product to be operated on
+	 */
+	public void inputProduct(Product p) {
+		if (store != null) {
+			inputHandle(store, store.adopt(p));
+			p.recycle();
+			return;
+		}
+		inputArrived();
+		q.add(p);
+		numEntered++;
+		queueChanged();
+	}
+
+	/**
+	 * Places a chunk of products in the input queue, in order, with a
+	 * single append
+	 * @param ps products to be operated on
+	 */
+	public void inputProducts(List<Product> ps) {
+		if (store != null) {
+			super.inputProducts(ps);
+			return;
+		}
+		if (ps.isEmpty())
+			return;
+		inputArrived();
+		q.addAll(ps);
+		numEntered += ps.size();
+		queueChanged();
+	}
+
+	/**
+	 * Places a stored product in the input queue
+	 * @param s store holding the product
+	 * @param h handle of product
+	 */
+	public void inputHandle(ProductStore s, int h) {
+		if (s != store) {
+			super.inputHandle(s, h);
+			return;
+		}
+		inputArrived();
+		hq.add(h);
+		numEntered++;
+		queueChanged();
+	}
+
+	/**
+	 * Switches the input queue over to hold handles
+	 */
+	public void useStore(ProductStore s) {
+		super.useStore(s);
+		hq = new HandleQueue(s, discipline);
+	}
+
+	// Binary heap operations on the servers
+
+	private void buildHeap() {
+		for (int s = 0; s < numServers; s++)
+			place(s, s);
+		for (int i = numServers / 2 - 1; i >= 0; i--)
+			siftDown(i);
+	}
+
+	/**
+	 * Moves a server whose due time has changed to its new place
+	 */
+	private void fix(int s) {
+		siftUp(heapIndex[s]);
+		siftDown(heapIndex[s]);
+	}
+
+	private boolean before(int a, int b) {
+		return due[a] < due[b] || (due[a] == due[b] && a < b);
+	}
+
+	private void siftUp(int i) {
+		int s = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(s, heap[parent]))
+				break;
+			place(heap[parent], i);
+			i = parent;
+		}
+		place(s, i);
+	}
+
+	private void siftDown(int i) {
+		int s = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= numServers)
+				break;
+			if (child + 1 < numServers && before(heap[child + 1], heap[child]))
+				child++;
+			if (!before(heap[child], s))
+				break;
+			place(heap[child], i);
+			i = child;
+		}
+		place(s, i);
+	}
+
+	private void place(int s, int i) {
+		heap[i] = s;
+		heapIndex[s] = i;
+	}
+
+	public String toString() {
+		return super.toString() + "; servers=" + numServers + "; q=" +
+				(hq == null ? q : hq).toString();
+	}
+}
@@ -0,0 +1,107 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.*;
+
+public class MultiServerMachineTest {
+
+	/**
+	 * Builds a source feeding a unit that feeds a sink
+	 */
+	private LayeredFactory chain(SimulationContext ctx, Unit u,
+			double genProb) {
+		LayeredFactory fac = new LayeredFactory(3);
+		fac.addUnit(new Source(ctx, new Perishable(30), genProb), 0);
+		fac.addUnit(u, 1);
+		fac.addUnit(new Sink(ctx), 2);
+		fac.directConnectLayers(0);
+		fac.directConnectLayers(1);
+		return fac;
+	}
+
+	@Test
+	public void testOneServerMatchesMachine() {
+		// Jams are frequent and the queue is long enough for food to spoil
+		SimulationContext a = new SimulationContext(5);
+		SimulationContext b = new SimulationContext(5);
+		Machine m = new Machine(a, 7, 0.02, 15);
+		MultiServerMachine ms = new MultiServerMachine(b, 7, 0.02, 15, 1);
+		LayeredFactory fa = chain(a, m, 0.12);
+		LayeredFactory fb = chain(b, ms, 0.12);
+		m.useMetrics();
+		ms.useMetrics();
+		for (int t = 0; t < 20000; t++) {
+			fa.tick();
+			fb.tick();
+		}
+		assertEquals(fa.totalProcessed(), fb.totalProcessed());
+		assertEquals(fa.totalSpoiled(), fb.totalSpoiled());
+		assertEquals(m.numSpoiled(), ms.numSpoiled());
+		assertEquals(m.queueLength(), ms.queueLength());
+		assertEquals(m.metrics().toString(), ms.metrics().toString());
+		assertEquals(m.metrics().busyTime(), ms.metrics().busyTime());
+		assertEquals(m.metrics().jammedTime(), ms.metrics().jammedTime());
+	}
+
+	@Test
+	public void testEventsMatchTicks() {
+		long[] results = new long[4];
+		for (int mode = 0; mode < 2; mode++) {
+			SimulationContext ctx = new SimulationContext(9);
+			MultiServerMachine ms = new MultiServerMachine(ctx, 40, 0.001,
+					60, 8);
+			LayeredFactory fac = chain(ctx, ms, 0.15);
+			if (mode == 0) {
+				for (int t = 0; t < 20000; t++)
+					fac.tick();
+			}
+			else {
+				new EventSimulator(fac).run(20000);
+			}
+			results[2 * mode] = fac.totalProcessed();
+			results[2 * mode + 1] = fac.totalSpoiled();
+		}
+		assertEquals(results[0], results[2]);
+		assertEquals(results[1], results[3]);
+		assertTrue(results[0] > 0);
+	}
+
+	@Test
+	public void testServersWorkTogether() {
+		// Eight items arrive at once; four servers take two rounds
+		SimClock clock = new SimClock();
+		MultiServerMachine ms = new MultiServerMachine(
+				new SimulationContext(1), 10, 0.0, 1, 4);
+		Sink sink = new Sink();
+		ms.setClock(clock);
+		sink.setClock(clock);
+		Connector c = new IntelligentRouter();
+		c.addOutputUnit(sink);
+		ms.connectOutput(c);
+		List<Product> items = new ArrayList<Product>();
+		for (int i = 0; i < 8; i++) {
+			Food f = new NonPerishable();
+			f.stamp(clock, i);
+			items.add(f);
+		}
+		ms.inputProducts(items);
+		ms.tick();
+		assertEquals(4, ms.numBusy());
+		assertEquals(4, ms.queueLength());
+		clock.advance();
+		for (int t = 1; t < 10; t++) {
+			ms.tick();
+			clock.advance();
+		}
+		assertEquals(4, sink.queueLength());
+		// The servers take the rest of the items in the next step
+		ms.tick();
+		assertEquals(0, ms.queueLength());
+		assertEquals(4, ms.numBusy());
+	}
+}
@@ -0,0 +1,54 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Passes the results of a sweep on to another listener in the order of
+ * the points rather than the order in which they finish.  Only results
+ * that finish early are held on to, and they are passed on as soon as all
+ * the points before them have finished.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class OrderedSweepListener<R> implements SweepListener<R> {
+
+	private SweepListener<R> listener;
+	private int next = 0;
+	private Map<Integer, double[]> points;
+	private Map<Integer, R> results;
+
+	/**
+	 * Creates listener
+	 * @param listener listener that receives results in order
+	 */
+	public OrderedSweepListener(SweepListener<R> listener) {
+		this.listener = listener;
+		points = new HashMap<Integer, double[]>();
+		results = new HashMap<Integer, R>();
+	}
+
+	public synchronized void pointFinished(int index, double[] point,
+			R result) {
+		if (index != next) {
+			points.put(index, point);
+			results.put(index, result);
+			return;
+		}
+		listener.pointFinished(index, point, result);
+		next++;
+		while (points.containsKey(next)) {
+			listener.pointFinished(next, points.remove(next),
+					results.remove(next));
+			next++;
+		}
+	}
+
+	/**
+	 * Returns the number of results waiting for earlier points
+	 * @return number of results held
+	 */
+	public synchronized int numWaiting() {
+		return points.size();
+	}
+}
@@ -0,0 +1,77 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Stands in for the output connector of a unit while its layer is ticked
+ * in parallel.  Transfers are only recorded while the units are running,
+ * and are passed on to the real connector afterwards, one unit at a time
+ * in a fixed order, so that routing decisions are the same as when the
+ * units are ticked one after another.
+ *
+ * @see LayeredFactory#useParallelTick(int)
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+class Outbox extends Connector {
+
+	private Connector target;
+	private List<Product> products;
+
+	/**
+	 * Creates an empty outbox
+	 * @param target connector that receives the transfers on commit
+	 */
+	Outbox(Connector target) {
+		this.target = target;
+		products = new ArrayList<Product>();
+	}
+
+	Connector target() {
+		return target;
+	}
+
+	public boolean check() {
+		return target.check();
+	}
+
+	/**
+	 * A parallel tick does not allow bounded queues, so there is always
+	 * room downstream
+	 */
+	public boolean canTransfer() {
+		return true;
+	}
+
+	/**
+	 * Records a product to be transferred on commit
+	 * @param p food item
+	 */
+	public void transferProduct(Product p) {
+		products.add(p);
+	}
+
+	/**
+	 * Stored products cannot be staged, as a {@link ProductStore
+	 * ProductStore} may only be used by one thread
+	 */
+	public void transferHandle(ProductStore s, int h) {
+		throw new IllegalStateException(
+				"Product stores cannot be used with a parallel tick");
+	}
+
+	/**
+	 * Moves the recorded transfers, in the order they were made, to the end
+	 * of a chunk that will be passed on to the real connector, and empties
+	 * the outbox
+	 * @param chunk products to be transferred
+	 */
+	void drainTo(List<Product> chunk) {
+		chunk.addAll(products);
+		products.clear();
+	}
+
+	public String toString() {
+		return "Outbox for " + target;
+	}
+}
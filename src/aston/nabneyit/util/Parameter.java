@@ -0,0 +1,67 @@
+package aston.nabneyit.util;
+
+/**
+ * Stores the values that a parameter takes in a {@link ParameterSweep
+ * ParameterSweep}.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class Parameter {
+
+	private String name;
+	private double[] values;
+
+	/**
+	 * Creates a parameter with a list of values
+	 * @param name name of parameter
+	 * @param values values to sweep over
+	 */
+	public Parameter(String name, double... values) {
+		if (values.length == 0)
+			throw new IllegalArgumentException("Parameter " + name +
+					" has no values");
+		this.name = name;
+		this.values = values.clone();
+	}
+
+	/**
+	 * Creates a parameter with evenly spaced values
+	 * @param name name of parameter
+	 * @param from first value
+	 * @param step difference between neighbouring values
+	 * @param count number of values
+	 * @return parameter
+	 */
+	public static Parameter range(String name, double from, double step,
+			int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("Parameter " + name +
+					" has no values");
+		double[] values = new double[count];
+		// Add the step on each time so that the values are the same as a
+		// loop that does this would give
+		double x = from;
+		for (int i = 0; i < count; i++) {
+			values[i] = x;
+			x += step;
+		}
+		return new Parameter(name, values);
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	public double value(int i) {
+		return values[i];
+	}
+
+	public String toString() {
+		return name + " (" + values.length + " values)";
+	}
+}
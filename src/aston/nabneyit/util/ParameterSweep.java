@@ -0,0 +1,146 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a simulation at every point of a grid of parameter values.  The
+ * grid is the cartesian product of the values of each {@link Parameter
+ * Parameter}, and its points are numbered with the last parameter varying
+ * fastest, as in a set of nested loops.
+ * <p>
+ * The range of points is split in half repeatedly and run on a
+ * work-stealing {@link ForkJoinPool ForkJoinPool}, so the threads stay
+ * busy even when some points take much longer than others.  Each result is
+ * passed to a {@link SweepListener SweepListener} as soon as it is ready,
+ * so the sweep itself holds on to nothing.
+ * <p>
+ * By default every point is run with the same seed (common random numbers),
+ * which makes the differences between points less noisy.  Otherwise each
+ * point gets its own seed derived from its index.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class ParameterSweep<R> {
+
+	private Parameter[] params;
+	private SweepModel<R> model;
+	private long seed;
+	private boolean commonSeed = true;
+	private int numPoints;
+
+	/**
+	 * Creates a sweep
+	 * @param params parameters to sweep over
+	 * @param model runs the simulation at each point
+	 * @param seed seed for the runs
+	 */
+	public ParameterSweep(List<Parameter> params, SweepModel<R> model,
+			long seed) {
+		this.params = params.toArray(new Parameter[params.size()]);
+		this.model = model;
+		this.seed = seed;
+		long n = 1;
+		for (Parameter p : this.params) {
+			n *= p.size();
+			if (n > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Too many points in sweep");
+		}
+		numPoints = (int) n;
+	}
+
+	/**
+	 * Chooses whether all the points are run with the same seed
+	 * @param commonSeed true to use the same seed everywhere, false to
+	 * give each point its own seed
+	 */
+	public void setCommonSeed(boolean commonSeed) {
+		this.commonSeed = commonSeed;
+	}
+
+	public int numPoints() {
+		return numPoints;
+	}
+
+	/**
+	 * Works out the parameter values at a point
+	 * @param index number of point
+	 * @return value of each parameter
+	 */
+	public double[] point(int index) {
+		if (index < 0 || index >= numPoints)
+			throw new IndexOutOfBoundsException("Illegal point: " + index);
+		double[] x = new double[params.length];
+		for (int k = params.length - 1; k >= 0; k--) {
+			x[k] = params[k].value(index % params[k].size());
+			index /= params[k].size();
+		}
+		return x;
+	}
+
+	/**
+	 * Works out the seed used at a point
+	 * @param index number of point
+	 * @return seed
+	 */
+	public long seedFor(int index) {
+		return commonSeed ? seed : RandomStream.forKey(seed, index).nextLong();
+	}
+
+	/**
+	 * Runs the sweep with one thread per processor
+	 * @param listener receives the result at each point
+	 */
+	public void run(SweepListener<R> listener) {
+		run(listener, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Runs the sweep
+	 * @param listener receives the result at each point
+	 * @param numThreads number of points to run at the same time
+	 */
+	public void run(SweepListener<R> listener, int numThreads) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			pool.invoke(new Range(0, numPoints, listener));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Runs a range of points, splitting it so that idle threads can take
+	 * half of it
+	 */
+	private class Range extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int lo;
+		private int hi;
+		private SweepListener<R> listener;
+
+		Range(int lo, int hi, SweepListener<R> listener) {
+			this.lo = lo;
+			this.hi = hi;
+			this.listener = listener;
+		}
+
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Range(lo, mid, listener),
+						new Range(mid, hi, listener));
+				return;
+			}
+			if (hi > lo) {
+				double[] x = point(lo);
+				R result = model.run(x.clone(), seedFor(lo));
+				synchronized (listener) {
+					listener.pointFinished(lo, x, result);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.Perishable;
+
+public class ParameterSweepTest {
+
+	/**
+	 * Runs a small line of a source, a machine and a sink and returns the
+	 * number of items spoiled
+	 */
+	private static class LineModel implements SweepModel<Integer> {
+		public Integer run(double[] point, long seed) {
+			SimulationContext ctx = new SimulationContext(seed);
+			LayeredFactory fac = new LayeredFactory(3);
+			fac.addUnit(new Source(ctx, new Perishable(45), point[0]), 0);
+			fac.addUnit(new Machine(ctx, (int) point[1], 0.001, 60), 1);
+			fac.addUnit(new Sink(ctx), 2);
+			fac.directConnectLayers(0);
+			fac.directConnectLayers(1);
+			new EventSimulator(fac).run(2000);
+			return fac.totalSpoiled();
+		}
+	}
+
+	private ParameterSweep<Integer> makeSweep() {
+		List<Parameter> params = new ArrayList<Parameter>();
+		params.add(Parameter.range("p", 0.01, 0.01, 4));
+		params.add(new Parameter("procTime", 10, 20, 30));
+		return new ParameterSweep<Integer>(params, new LineModel(), 5);
+	}
+
+	@Test
+	public void testPoints() {
+		ParameterSweep<Integer> sweep = makeSweep();
+		assertEquals(12, sweep.numPoints());
+		// Last parameter varies fastest
+		assertArrayEquals(new double[] {0.01, 10}, sweep.point(0), 0.0);
+		assertArrayEquals(new double[] {0.01, 30}, sweep.point(2), 0.0);
+		assertArrayEquals(new double[] {0.02, 10}, sweep.point(3), 0.0);
+		assertEquals(sweep.seedFor(0), sweep.seedFor(11));
+		sweep.setCommonSeed(false);
+		assertTrue(sweep.seedFor(0) != sweep.seedFor(11));
+	}
+
+	@Test
+	public void testOrderedResults() {
+		ParameterSweep<Integer> sweep = makeSweep();
+		sweep.setCommonSeed(false);
+		final List<Integer> serial = new ArrayList<Integer>();
+		final List<Integer> order = new ArrayList<Integer>();
+		sweep.run(new SweepListener<Integer>() {
+			public void pointFinished(int index, double[] point,
+					Integer result) {
+				serial.add(result);
+			}
+		}, 1);
+		final List<Integer> parallel = new ArrayList<Integer>();
+		OrderedSweepListener<Integer> ordered = new OrderedSweepListener<Integer>(
+				new SweepListener<Integer>() {
+					public void pointFinished(int index, double[] point,
+							Integer result) {
+						order.add(index);
+						parallel.add(result);
+					}
+				});
+		sweep.run(ordered, 4);
+
+		assertEquals(0, ordered.numWaiting());
+		assertEquals(serial, parallel);
+		for (int i = 0; i < order.size(); i++)
+			assertEquals(i, (int) order.get(i));
+	}
+}
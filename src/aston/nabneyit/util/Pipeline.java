@@ -0,0 +1,293 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Runs the layers of a {@link LayeredFactory LayeredFactory} as a
+ * pipeline.  The layers are split into groups of neighbouring layers and
+ * each group is run by its own thread, so that later layers can work on
+ * one time step while earlier layers are already working on the next.
+ * <p>
+ * Food sent from the last layer of a group to the next layer goes through
+ * a {@link RingBuffer RingBuffer} rather than straight to the connector,
+ * followed by a marker at the end of each time step.  Before running a
+ * time step the next group hands on everything sent to it in that step, in
+ * the order it was sent, so routing decisions are made against the same
+ * queues as when the factory is ticked on one thread.  The results are the
+ * same as calling {@link LayeredFactory#tick()}, apart from the hit rate
+ * of any recycling pools.
+ * <p>
+ * Each group has its own clock.  A group can run ahead of the group after
+ * it by as many time steps as the ring buffer between them can hold, and
+ * has to wait when the buffer is full.  Product stores cannot be used, as
+ * they are shared by the whole factory.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class Pipeline {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Food sent to another group, or the end of a time step */
+	private static class Transfer {
+		final Connector target;
+		final Product p;
+
+		Transfer(Connector target, Product p) {
+			this.target = target;
+			this.p = p;
+		}
+	}
+
+	private static final Transfer END_OF_TICK = new Transfer(null, null);
+
+	/**
+	 * Stands in for the output connector of a unit at the end of a group
+	 * and passes its food to the next group
+	 */
+	private class PipeOutput extends Connector {
+		private Connector target;
+		private RingBuffer<Transfer> ring;
+
+		PipeOutput(Connector target, RingBuffer<Transfer> ring) {
+			this.target = target;
+			this.ring = ring;
+		}
+
+		/** Bounded queues are not allowed, so there is always room */
+		public boolean canTransfer() {
+			return true;
+		}
+
+		public void transferProduct(Product p) {
+			put(ring, new Transfer(target, p));
+		}
+
+		public void transferHandle(ProductStore s, int h) {
+			throw new IllegalStateException(
+					"Product stores cannot be used in a pipeline");
+		}
+	}
+
+	private LayeredFactory fac;
+	/** Index of the first layer of each group, followed by the number of
+	 * layers */
+	private int[] firstLayer;
+	private int capacity;
+	private volatile Throwable failure = null;
+
+	/**
+	 * Creates a pipeline with ring buffers of the default size
+	 * @param fac factory to run
+	 * @param numGroups number of threads; the layers are shared between
+	 * them as evenly as possible
+	 */
+	public Pipeline(LayeredFactory fac, int numGroups) {
+		this(fac, numGroups, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a pipeline
+	 * @param fac factory to run
+	 * @param numGroups number of threads; the layers are shared between
+	 * them as evenly as possible
+	 * @param capacity number of transfers and end of step markers that the
+	 * buffer between two groups can hold
+	 */
+	public Pipeline(LayeredFactory fac, int numGroups, int capacity) {
+		if (numGroups < 1)
+			throw new IllegalArgumentException("Need at least one group");
+		int numLayers = fac.numLayers();
+		numGroups = Math.min(numGroups, numLayers);
+		this.fac = fac;
+		this.capacity = capacity;
+		firstLayer = new int[numGroups + 1];
+		for (int g = 0; g <= numGroups; g++)
+			firstLayer[g] = g * numLayers / numGroups;
+	}
+
+	public int numGroups() {
+		return firstLayer.length - 1;
+	}
+
+	/**
+	 * Runs the factory for a number of time steps.  When it returns, the
+	 * factory is back in its usual state and can be ticked as normal.
+	 * @param numTicks number of time steps
+	 */
+	public void run(final long numTicks) {
+		if (fac.productStore() != null)
+			throw new IllegalStateException(
+					"Product stores cannot be used in a pipeline");
+		// Whether there is room downstream depends on how far ahead the
+		// next group is, so queues must not be bounded
+		if (fac.hasBoundedQueues())
+			throw new IllegalStateException(
+					"Bounded queues cannot be used in a pipeline");
+		final int numGroups = numGroups();
+		final long start = fac.clock().now();
+		failure = null;
+
+		// Give each group its own clock and connect neighbouring groups
+		final SimClock[] clocks = new SimClock[numGroups];
+		List<RingBuffer<Transfer>> rings = new ArrayList<RingBuffer<Transfer>>();
+		Map<Unit, Connector> outputs = new HashMap<Unit, Connector>();
+		for (int g = 0; g < numGroups; g++) {
+			clocks[g] = new SimClock();
+			clocks[g].setTime(start);
+			for (Unit u : units(firstLayer[g], firstLayer[g + 1]))
+				u.setClock(clocks[g]);
+			if (g < numGroups - 1) {
+				RingBuffer<Transfer> ring = new RingBuffer<Transfer>(capacity);
+				rings.add(ring);
+				for (Unit u : units(firstLayer[g + 1] - 1, firstLayer[g + 1])) {
+					if (u.outC != null) {
+						outputs.put(u, u.outC);
+						u.outC = new PipeOutput(u.outC, ring);
+					}
+				}
+			}
+		}
+
+		Thread[] threads = new Thread[numGroups];
+		for (int g = 0; g < numGroups; g++) {
+			final int group = g;
+			final RingBuffer<Transfer> in = g > 0 ? rings.get(g - 1) : null;
+			final RingBuffer<Transfer> out =
+					g < numGroups - 1 ? rings.get(g) : null;
+			threads[g] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						runGroup(group, clocks[group], in, out, numTicks);
+					}
+					catch (Throwable e) {
+						if (failure == null)
+							failure = e;
+					}
+				}
+			}, "pipeline-" + g);
+			threads[g].start();
+		}
+
+		try {
+			for (Thread t : threads) {
+				boolean interrupted = false;
+				while (true) {
+					try {
+						t.join();
+						break;
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+						if (failure == null)
+							failure = e;
+					}
+				}
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+		finally {
+			// Put the factory back together
+			for (Map.Entry<Unit, Connector> e : outputs.entrySet())
+				e.getKey().outC = e.getValue();
+			fac.clock().setTime(clocks[numGroups - 1].now());
+			for (Unit u : units(0, fac.numLayers()))
+				u.setClock(fac.clock());
+		}
+
+		Throwable e = failure;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+		if (e != null)
+			throw new IllegalStateException("Pipeline failed", e);
+	}
+
+	/**
+	 * Runs the layers of one group
+	 */
+	private void runGroup(int group, SimClock clock, RingBuffer<Transfer> in,
+			RingBuffer<Transfer> out, long numTicks) {
+		List<Product> chunk = new ArrayList<Product>();
+		for (long t = 0; t < numTicks; t++) {
+			if (in != null) {
+				// Hand on the food sent to this group in this time step, in
+				// chunks of neighbouring transfers to the same connector
+				Transfer x;
+				Connector target = null;
+				while ((x = take(in)) != END_OF_TICK) {
+					x.p.setClock(clock);
+					if (x.target != target) {
+						send(target, chunk);
+						target = x.target;
+					}
+					chunk.add(x.p);
+				}
+				send(target, chunk);
+			}
+			for (int i = firstLayer[group]; i < firstLayer[group + 1]; i++)
+				fac.getLayer(i).tick();
+			if (out != null)
+				put(out, END_OF_TICK);
+			clock.advance();
+		}
+	}
+
+	private static void send(Connector target, List<Product> chunk) {
+		if (!chunk.isEmpty()) {
+			target.transferProducts(chunk);
+			chunk.clear();
+		}
+	}
+
+	/**
+	 * Adds to a ring buffer, waiting while it is full
+	 */
+	private void put(RingBuffer<Transfer> ring, Transfer x) {
+		while (!ring.offer(x)) {
+			checkFailure();
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Takes from a ring buffer, waiting while it is empty
+	 */
+	private Transfer take(RingBuffer<Transfer> ring) {
+		Transfer x;
+		while ((x = ring.poll()) == null) {
+			checkFailure();
+			Thread.yield();
+		}
+		return x;
+	}
+
+	/**
+	 * Stops a waiting thread if another thread has failed
+	 */
+	private void checkFailure() {
+		if (failure != null)
+			throw new IllegalStateException("Another pipeline stage failed");
+	}
+
+	/**
+	 * Lists the units in a range of layers
+	 */
+	private List<Unit> units(int from, int to) {
+		List<Unit> list = new ArrayList<Unit>();
+		for (int n = from; n < to; n++) {
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext())
+				list.add(i.next());
+		}
+		return list;
+	}
+
+	public String toString() {
+		return "Pipeline of " + numGroups() + " groups over " +
+				fac.numLayers() + " layers";
+	}
+}
@@ -0,0 +1,113 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+import aston.nabneyit.model.Perishable;
+
+public class PipelineTest {
+	private static final int numTicks = 3000;
+
+	/**
+	 * Builds a factory with a router between the machine layers
+	 */
+	private LayeredFactory makeFactory(long seed) {
+		SimulationContext ctx = new SimulationContext(seed);
+		LayeredFactory fac = new LayeredFactory(5);
+		for (int i = 0; i < 6; i++) {
+			Product p = (i % 3 == 2) ? new NonPerishable() : new Perishable(40 + i);
+			fac.addUnit(new Source(ctx, p, 0.04), 0);
+			fac.addUnit(new Machine(ctx, 15 + i, 0.002, 60), 1);
+		}
+		for (int i = 0; i < 3; i++) {
+			fac.addUnit(new Machine(ctx, 10, 0.002, 60), 2);
+			fac.addUnit(new Machine(ctx, 5, 0.002, 30), 3);
+			fac.addUnit(new Sink(ctx), 4);
+		}
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.directConnectLayers(2);
+		fac.directConnectLayers(3);
+		return fac;
+	}
+
+	private List<Integer> unitState(LayeredFactory fac) {
+		List<Integer> state = new ArrayList<Integer>();
+		for (int n = 0; n < fac.numLayers(); n++) {
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext()) {
+				Unit u = i.next();
+				state.add(u.numProcessed());
+				state.add(u.numSpoiled());
+				state.add(u.queueLength());
+			}
+		}
+		return state;
+	}
+
+	@Test
+	public void testMatchesSerial() {
+		for (int groups = 1; groups <= 5; groups++) {
+			LayeredFactory f1 = makeFactory(groups);
+			LayeredFactory f2 = makeFactory(groups);
+			f2.useRecycling(32);
+			for (int t = 0; t < numTicks; t++)
+				f1.tick();
+			// A small buffer makes the early groups wait for later ones
+			Pipeline p = new Pipeline(f2, groups, 8);
+			p.run(numTicks / 2);
+			p.run(numTicks - numTicks / 2);
+			assertEquals(numTicks, f2.clock().now());
+			assertEquals(unitState(f1), unitState(f2));
+
+			// The factory carries on as normal afterwards
+			for (int t = 0; t < 500; t++) {
+				f1.tick();
+				f2.tick();
+			}
+			assertEquals(unitState(f1), unitState(f2));
+		}
+	}
+
+	@Test
+	public void testRingBuffer() {
+		RingBuffer<Integer> r = new RingBuffer<Integer>(3);
+		assertEquals(4, r.capacity());
+		assertNull(r.poll());
+		for (int k = 0; k < 10; k++) {
+			for (int i = 0; i < 4; i++)
+				assertTrue(r.offer(4 * k + i));
+			assertFalse(r.offer(-1));
+			assertEquals(4, r.size());
+			for (int i = 0; i < 4; i++)
+				assertEquals(4 * k + i, (int) r.poll());
+			assertTrue(r.isEmpty());
+		}
+	}
+
+	@Test
+	public void testRingBufferThreads() throws InterruptedException {
+		final RingBuffer<Integer> r = new RingBuffer<Integer>(16);
+		final int n = 200000;
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < n; i++)
+					while (!r.offer(i))
+						Thread.yield();
+			}
+		});
+		producer.start();
+		for (int i = 0; i < n; i++) {
+			Integer x;
+			while ((x = r.poll()) == null)
+				Thread.yield();
+			assertEquals(i, (int) x);
+		}
+		producer.join();
+		assertTrue(r.isEmpty());
+	}
+}
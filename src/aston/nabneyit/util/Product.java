@@ -7,7 +7,8 @@ package aston.nabneyit.util;
  */
 public interface Product {
 	/**
-	 * Defines what happens to the product in a single time step
+	 * Ages the product by a single time step over and above the time
+	 * measured by its clock
 	 */
 	public abstract void tick();
 	/**
@@ -15,13 +16,68 @@ public interface Product {
 	 * @return true if product should be removed from the system
 	 */
 	public abstract boolean isRemovable();
+	/**
+	 * Records the time at which the product enters the factory, so that
+	 * from now on it ages with the clock, and gives it its ID
+	 * @param clock simulation clock of the factory
+	 * @param id ID of the product, unique within its simulation
+	 */
+	public abstract void stamp(SimClock clock, int id);
+	/**
+	 * Times the product against another clock that shows the same time,
+	 * for example when it moves to a part of the factory that is run by
+	 * another thread
+	 * @param clock new clock
+	 */
+	public abstract void setClock(SimClock clock);
+	/**
+	 * Returns the name of the type of product, such as the kind of food,
+	 * which is shared by all its copies
+	 * @return type name
+	 */
+	public abstract String typeName();
+	/**
+	 * Returns how long the product has been waiting in the factory
+	 * @return waiting time in time steps
+	 */
+	public abstract int waitingTime();
+	/**
+	 * Returns the clock time at which the product becomes removable.  This
+	 * only changes when {@link #tick()} is called.
+	 * @return spoil deadline, or {@link Unit#NEVER} if the product never
+	 * becomes removable
+	 */
+	public abstract long spoilDeadline();
+	/**
+	 * Makes a product that has left the factory ready to be used again,
+	 * as if it were a new copy: it loses its ID and timing.
+	 */
+	public abstract void reset();
+	/**
+	 * Sets the pool that the product is returned to when it is recycled
+	 * @param pool recycling pool for products of this type
+	 */
+	public abstract void setPool(ProductPool pool);
+	/**
+	 * Returns the product to its recycling pool, if it has one.  This must
+	 * be called at most once, when the product has left the factory.
+	 */
+	public abstract void recycle();
 	/**
 	 * Clones a product.  This method is used in sources.
 	 * @return deep copy of the product
 	 */
 	public abstract Product copy();
+	/**
+	 * Copies the product together with its ID and timing, so that it can
+	 * be put back when a simulation is rolled back.  The duplicate does not
+	 * belong to a recycling pool.
+	 * @return copy of the product in its current state
+	 */
+	public abstract Product duplicate();
 	/**
 	 * Returns string representation of product
 	 */
 	public abstract String toString();
 }
+
@@ -0,0 +1,111 @@
+package aston.nabneyit.util;
+
+/**
+ * Keeps products of one type that have left the factory so that sources
+ * can reuse them instead of making new copies.  Products find their way
+ * back through {@link Product#recycle()}, which sinks call when they
+ * absorb an item and machines call when an item spoils.  The pool has a
+ * bounded capacity; products returned when it is full are simply dropped.
+ * Products may be taken and returned by several threads at once when a
+ * factory is ticked in parallel.
+ *
+ * @see LayeredFactory#useRecycling(int)
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class ProductPool {
+
+	private Product prototype;
+	private Product[] items;
+	private int size = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates an empty pool
+	 * @param prototype defines the type of product held in the pool
+	 * @param capacity maximum number of products that the pool keeps
+	 */
+	public ProductPool(Product prototype, int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Illegal Capacity: " +
+					capacity);
+		this.prototype = prototype;
+		items = new Product[capacity];
+	}
+
+	/**
+	 * Returns a product that is ready to enter the factory: a recycled one
+	 * if there is one, otherwise a new copy of the prototype
+	 * @return product that has not yet been stamped
+	 */
+	public synchronized Product acquire() {
+		if (size > 0) {
+			Product p = items[--size];
+			items[size] = null;
+			p.reset();
+			hits++;
+			return p;
+		}
+		misses++;
+		Product p = prototype.copy();
+		p.setPool(this);
+		return p;
+	}
+
+	/**
+	 * Takes back a product that has left the factory
+	 * @param p product to recycle
+	 */
+	public synchronized void release(Product p) {
+		if (size < items.length)
+			items[size++] = p;
+	}
+
+	/**
+	 * Returns the product type held by this pool
+	 * @return prototype product
+	 */
+	public Product prototype() {
+		return prototype;
+	}
+
+	/**
+	 * Returns the number of products waiting to be reused
+	 * @return number of products in the pool
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of requests that were met by a recycled product
+	 * @return number of hits
+	 */
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of requests that needed a new product
+	 * @return number of misses
+	 */
+	public long misses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the proportion of requests met by a recycled product
+	 * @return hit rate between 0 and 1
+	 */
+	public double hitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	public String toString() {
+		return "Pool of " + size + "/" + items.length + "; hits=" + hits +
+				"; misses=" + misses;
+	}
+}
@@ -0,0 +1,298 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Stores the products in a factory as parallel arrays rather than as one
+ * object per item.  Each product is addressed by an integer handle, which
+ * is the index of its slot in the arrays, and slots are reused once the
+ * product has left the factory.  Units that support the store pass handles
+ * to each other instead of {@link Product Product} references, so a long
+ * run creates no garbage for the items flowing through the factory.
+ * <p>
+ * Products are grouped into types, each of which is defined by a
+ * prototype product that has not yet entered the factory.  For code that
+ * needs a {@link Product Product}, {@link #get} returns an adapter that
+ * reads and writes the store.
+ *
+ * @see LayeredFactory#useProductStore()
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class ProductStore {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private SimClock clock;
+
+	// Product types
+	private List<Product> prototypes;
+	private long[] typeSpoilTime;
+	/** Names of the types of adopted products, which have no prototype;
+	 * such a product's type is -1 minus the index of its name */
+	private List<String> adoptedNames;
+	private long[] adoptedSpoilTime;
+
+	// One entry per slot
+	private int[] id;
+	private int[] type;
+	private long[] arrival;
+	private int[] extra;
+	private long[] deadline;
+	/** Whether the slot holds a product that has not been released */
+	private boolean[] live;
+
+	// Free slots are kept on a stack
+	private int[] free;
+	private int numFree = 0;
+	private int numSlots = 0;
+	private int nextID = 0;
+
+	/**
+	 * Creates an empty store
+	 * @param clock simulation clock that arrival times are measured against
+	 */
+	public ProductStore(SimClock clock) {
+		this.clock = clock;
+		prototypes = new ArrayList<Product>();
+		adoptedNames = new ArrayList<String>();
+		adoptedSpoilTime = new long[4];
+		typeSpoilTime = new long[4];
+		id = new int[DEFAULT_CAPACITY];
+		type = new int[DEFAULT_CAPACITY];
+		arrival = new long[DEFAULT_CAPACITY];
+		extra = new int[DEFAULT_CAPACITY];
+		deadline = new long[DEFAULT_CAPACITY];
+		live = new boolean[DEFAULT_CAPACITY];
+		free = new int[DEFAULT_CAPACITY];
+	}
+
+	/**
+	 * Adds a product type to the store
+	 * @param prototype product that has not entered a factory, which is
+	 * used to find how long products of this type take to spoil
+	 * @return index of the type
+	 */
+	public int registerType(Product prototype) {
+		int t = prototypes.indexOf(prototype);
+		if (t >= 0)
+			return t;
+		t = prototypes.size();
+		prototypes.add(prototype);
+		if (t == typeSpoilTime.length)
+			typeSpoilTime = Arrays.copyOf(typeSpoilTime, 2 * t);
+		typeSpoilTime[t] = prototype.spoilDeadline();
+		return t;
+	}
+
+	/**
+	 * Creates a new product of a given type that enters the factory now
+	 * @param t index of product type, which may be the type of an adopted
+	 * product
+	 * @return handle of the new product
+	 */
+	public int allocate(int t) {
+		int h = newSlot();
+		type[h] = t;
+		arrival[h] = clock.now();
+		extra[h] = 0;
+		deadline[h] = Unit.later(arrival[h], spoilTime(t));
+		return h;
+	}
+
+	/**
+	 * Copies a product into the store, keeping its waiting time and spoil
+	 * deadline.  Products that are already views on this store are not
+	 * copied.  Adopted products with the same type name and the same time
+	 * to spoil from arrival share a type, so they can be restamped and
+	 * copied like products of a registered type.
+	 * @param p product to store
+	 * @return handle of the product
+	 */
+	public int adopt(Product p) {
+		if (p instanceof StoredProduct && ((StoredProduct) p).store() == this)
+			return ((StoredProduct) p).handle();
+		int h = newSlot();
+		arrival[h] = clock.now() - p.waitingTime();
+		extra[h] = 0;
+		deadline[h] = p.spoilDeadline();
+		long st = deadline[h] == Unit.NEVER ? Unit.NEVER :
+			deadline[h] - arrival[h];
+		int n = 0;
+		while (n < adoptedNames.size() && (adoptedSpoilTime[n] != st ||
+				!adoptedNames.get(n).equals(p.typeName())))
+			n++;
+		if (n == adoptedNames.size()) {
+			adoptedNames.add(p.typeName());
+			if (n == adoptedSpoilTime.length)
+				adoptedSpoilTime = Arrays.copyOf(adoptedSpoilTime, 2 * n);
+			adoptedSpoilTime[n] = st;
+		}
+		type[h] = -1 - n;
+		return h;
+	}
+
+	/**
+	 * Returns the time from arrival that products of a type take to spoil
+	 */
+	private long spoilTime(int t) {
+		return t >= 0 ? typeSpoilTime[t] : adoptedSpoilTime[-1 - t];
+	}
+
+	/**
+	 * Frees the slot of a product that has left the factory
+	 * @param h handle of product
+	 * @exception IllegalStateException if the slot has already been freed,
+	 * which would otherwise give it to two products later
+	 */
+	public void release(int h) {
+		if (!live[h])
+			throw new IllegalStateException("Product " + h +
+					" has already been released");
+		live[h] = false;
+		free[numFree++] = h;
+	}
+
+	/**
+	 * Takes a slot from the free stack, growing the arrays if necessary
+	 */
+	private int newSlot() {
+		int h;
+		if (numFree > 0) {
+			h = free[--numFree];
+		}
+		else {
+			if (numSlots == id.length)
+				grow();
+			h = numSlots++;
+		}
+		id[h] = nextID++;
+		live[h] = true;
+		return h;
+	}
+
+	private void grow() {
+		int n = 2 * id.length;
+		id = Arrays.copyOf(id, n);
+		type = Arrays.copyOf(type, n);
+		arrival = Arrays.copyOf(arrival, n);
+		extra = Arrays.copyOf(extra, n);
+		deadline = Arrays.copyOf(deadline, n);
+		live = Arrays.copyOf(live, n);
+		free = Arrays.copyOf(free, n);
+	}
+
+	/**
+	 * Ages a product by a single time step over and above the clock
+	 * @param h handle of product
+	 * @see Product#tick()
+	 */
+	public void tick(int h) {
+		extra[h]++;
+		if (deadline[h] != Unit.NEVER)
+			deadline[h]--;
+	}
+
+	/**
+	 * Restarts the timing of a product from now
+	 * @param h handle of product
+	 * @see Product#stamp(SimClock)
+	 */
+	public void stamp(int h) {
+		arrival[h] = clock.now();
+		extra[h] = 0;
+		deadline[h] = Unit.later(arrival[h], spoilTime(type[h]));
+	}
+
+	public int id(int h) {
+		return id[h];
+	}
+
+	/**
+	 * Returns the type of a product
+	 * @param h handle of product
+	 * @return index of the type, or a negative number if the product was
+	 * adopted rather than made from a registered type
+	 */
+	public int type(int h) {
+		return type[h];
+	}
+
+	/**
+	 * Returns the name of the type of a product
+	 * @param h handle of product
+	 * @return type name
+	 * @see Product#typeName()
+	 */
+	public String typeName(int h) {
+		int t = type[h];
+		return t >= 0 ? prototypes.get(t).typeName() :
+			adoptedNames.get(-1 - t);
+	}
+
+	public long arrivalTime(int h) {
+		return arrival[h];
+	}
+
+	public long spoilDeadline(int h) {
+		return deadline[h];
+	}
+
+	public int waitingTime(int h) {
+		return (int) (clock.now() - arrival[h]) + extra[h];
+	}
+
+	public boolean isRemovable(int h) {
+		return clock.now() >= deadline[h];
+	}
+
+	/**
+	 * Returns the prototype for a product type
+	 * @param t index of type
+	 * @return prototype product
+	 */
+	public Product prototype(int t) {
+		return prototypes.get(t);
+	}
+
+	/**
+	 * Returns a {@link Product Product} view of a stored product.  The view
+	 * is only valid until the product's slot is released.
+	 * @param h handle of product
+	 * @return adapter for the product
+	 */
+	public Product get(int h) {
+		return new StoredProduct(this, h);
+	}
+
+	/**
+	 * Returns the number of products currently in the store
+	 * @return number of products
+	 */
+	public int size() {
+		return numSlots - numFree;
+	}
+
+	/**
+	 * Returns the number of slots that have been allocated
+	 * @return capacity of the store
+	 */
+	public int capacity() {
+		return numSlots;
+	}
+
+	/**
+	 * Returns a string representation of a stored product, in the same
+	 * form as that used for food
+	 * @param h handle of product
+	 * @return string representation
+	 */
+	public String toString(int h) {
+		return "(" + id[h] + "); wt=" + waitingTime(h);
+	}
+
+	public String toString() {
+		return "Product store with " + size() + " products in " +
+				numSlots + " slots";
+	}
+}
@@ -0,0 +1,122 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import aston.nabneyit.model.*;
+
+public class ProductStoreTest {
+	private SimClock clock;
+	private ProductStore store;
+	private int cheese, soup;
+
+	@Before
+	public void setUp() throws Exception {
+		clock = new SimClock();
+		store = new ProductStore(clock);
+		cheese = store.registerType(new Perishable(45));
+		soup = store.registerType(new NonPerishable());
+	}
+
+	@Test
+	public void testAgeing() {
+		clock.setTime(100);
+		int h = store.allocate(cheese);
+		assertEquals(145, store.spoilDeadline(h));
+		store.tick(h);
+		clock.setTime(110);
+		assertEquals(11, store.waitingTime(h));
+		assertEquals(144, store.spoilDeadline(h));
+		assertFalse(store.isRemovable(h));
+		clock.setTime(144);
+		assertTrue(store.get(h).isRemovable());
+		assertEquals(Unit.NEVER, store.spoilDeadline(store.allocate(soup)));
+	}
+
+	@Test
+	public void testAdopted() {
+		// Cheese that takes 40 time steps to spoil keeps doing so when it
+		// is restamped or copied in the store
+		clock.setTime(90);
+		Food f = new Perishable("cheese", 40);
+		f.stamp(clock, 0);
+		f.tick();
+		clock.setTime(100);
+		int h = store.adopt(f);
+		assertEquals(129, store.spoilDeadline(h));
+		assertEquals(11, store.waitingTime(h));
+		assertEquals("cheese", store.typeName(h));
+		Product p = store.get(h);
+		p.reset();
+		assertEquals(140, p.spoilDeadline());
+		Product c = p.copy();
+		assertEquals(140, c.spoilDeadline());
+		assertEquals("cheese", c.typeName());
+		assertEquals(store.type(h), store.type(((StoredProduct) c).handle()));
+		// Cheese that spoils sooner is a different type
+		Food g = new Perishable("cheese", 20);
+		g.stamp(clock, 1);
+		assertTrue(store.type(store.adopt(g)) != store.type(h));
+		Food soup = new NonPerishable();
+		soup.stamp(clock, 2);
+		Product q = store.get(store.adopt(soup));
+		q.reset();
+		assertEquals(Unit.NEVER, q.spoilDeadline());
+		assertEquals(Unit.NEVER, q.copy().spoilDeadline());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReleaseTwice() {
+		int h = store.allocate(cheese);
+		store.release(h);
+		store.release(h);
+	}
+
+	@Test
+	public void testSlotsReused() {
+		for (int i = 0; i < 1000; i++) {
+			int h = store.allocate(i % 2 == 0 ? cheese : soup);
+			store.release(h);
+		}
+		assertEquals(0, store.size());
+		assertEquals(1, store.capacity());
+	}
+
+	@Test
+	public void testFactoryMatchesObjects() {
+		// Arrivals every time step and no jams, so there is no randomness
+		LayeredFactory f1 = makeFactory();
+		LayeredFactory f2 = makeFactory();
+		ProductStore s = f2.useProductStore();
+		for (int t = 0; t < 2000; t++) {
+			f1.tick();
+			f2.tick();
+		}
+		assertEquals(f1.totalProcessed(), f2.totalProcessed());
+		assertEquals(f1.totalSpoiled(), f2.totalSpoiled());
+		// Only the food still in the factory holds slots
+		int inFactory = 0;
+		for (int n = 0; n < f2.numLayers(); n++) {
+			java.util.Iterator<Unit> i = f2.getLayer(n).iterator();
+			while (i.hasNext())
+				inFactory += i.next().queueLength();
+		}
+		assertTrue(s.size() >= inFactory && s.size() <= inFactory + 4);
+	}
+
+	private LayeredFactory makeFactory() {
+		LayeredFactory fac = new LayeredFactory(4);
+		fac.addUnit(new Source(new Perishable(45), 1.0), 0);
+		fac.addUnit(new Source(new NonPerishable(), 1.0), 0);
+		fac.addUnit(new Machine(20, 0.0, 60), 1);
+		fac.addUnit(new Machine(22, 0.0, 60), 1);
+		fac.addUnit(new Machine(10, 0.0, 60), 2);
+		fac.addUnit(new Sink(), 3);
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.directConnectLayers(2);
+		return fac;
+	}
+}
@@ -0,0 +1,28 @@
+package aston.nabneyit.util;
+
+/**
+ * Defines the order in which a unit serves the items waiting in its input
+ * queue.  The queues keep both the order of arrival and an index of the
+ * spoil deadlines, so every discipline takes constant or logarithmic time
+ * and the discipline of a queue can be changed at any time.
+ *
+ * @see DeadlineQueue
+ * @see HandleQueue
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public enum QueueDiscipline {
+
+	/** First in, first out: the item that has waited longest is served */
+	FIFO,
+
+	/** Last in, first out: the item that arrived most recently is served */
+	LIFO,
+
+	/**
+	 * Earliest deadline first: the item that will spoil soonest is served,
+	 * and items that never spoil are served in order of arrival once there
+	 * are no others; ties go to the item that arrived first
+	 */
+	EDF
+}
@@ -0,0 +1,21 @@
+package aston.nabneyit.util;
+
+/**
+ * Is told when the input queue of a {@link Unit Unit} may have changed
+ * length, or the unit may have started or stopped accepting input.  Units
+ * whose {@link Unit#reportsQueueChanges()} is true tell their listeners
+ * about every such change, so a listener can keep its own copy of the
+ * queue lengths rather than asking for them.  A unit may call its
+ * listeners from whichever thread is running it.
+ *
+ * @see IntelligentRouter
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public interface QueueListener {
+	/**
+	 * Called after the queue of a unit has changed
+	 * @param u unit whose queue has changed
+	 */
+	public abstract void queueChanged(Unit u);
+}
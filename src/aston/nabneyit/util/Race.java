@@ -0,0 +1,241 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Picks the most profitable of a set of factory configurations by
+ * successive halving.  All the candidates are run for a short time and the
+ * worse half, by profit, are dropped.  The survivors carry on from where
+ * they stopped for twice as long, and so on until the full length of the
+ * simulation is reached.  Bad configurations are usually obvious early on,
+ * so the ranking costs a fraction of running every candidate to the end.
+ * <p>
+ * Every candidate is built with the same seed, so that they are compared
+ * on the same random numbers.  The candidates in each round are run at the
+ * same time on a thread pool.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class Race {
+
+	/**
+	 * Progress of one candidate
+	 */
+	public static class Entry {
+		private FactoryBuilder builder;
+		private LayeredFactory factory;
+		private EventSimulator sim;
+		private int profit = 0;
+		private int round = 0;
+
+		Entry(FactoryBuilder builder) {
+			this.builder = builder;
+		}
+
+		public FactoryBuilder builder() {
+			return builder;
+		}
+
+		/** Returns the profit at the end of the last time it was run */
+		public int profit() {
+			return profit;
+		}
+
+		/** Returns the number of time steps it was run for */
+		public long ticks() {
+			return sim == null ? 0 : sim.now();
+		}
+
+		/** Returns the last round it took part in */
+		public int round() {
+			return round;
+		}
+	}
+
+	private List<Entry> entries;
+	private int numTicks;
+	private int firstTicks;
+	private long seed;
+	private int numThreads;
+	private int numRounds = 0;
+	private long ticksRun = 0;
+
+	/**
+	 * Creates a race that uses one thread per processor
+	 * @param candidates configurations to compare
+	 * @param numTicks full length of the simulation
+	 * @param firstTicks length of the first round
+	 * @param seed seed given to every candidate
+	 */
+	public Race(List<? extends FactoryBuilder> candidates, int numTicks,
+			int firstTicks, long seed) {
+		this(candidates, numTicks, firstTicks, seed,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a race
+	 * @param candidates configurations to compare
+	 * @param numTicks full length of the simulation
+	 * @param firstTicks length of the first round
+	 * @param seed seed given to every candidate
+	 * @param numThreads number of candidates to run at the same time
+	 */
+	public Race(List<? extends FactoryBuilder> candidates, int numTicks,
+			int firstTicks, long seed, int numThreads) {
+		if (candidates.isEmpty())
+			throw new IllegalArgumentException("No candidates to race");
+		if (firstTicks < 1 || firstTicks > numTicks)
+			throw new IllegalArgumentException("Illegal first round: " +
+					firstTicks);
+		entries = new ArrayList<Entry>();
+		for (FactoryBuilder b : candidates)
+			entries.add(new Entry(b));
+		this.numTicks = numTicks;
+		this.firstTicks = firstTicks;
+		this.seed = seed;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Runs the race
+	 * @return candidates from best to worst; those that lasted longer are
+	 * ahead of those dropped earlier, and otherwise they are ordered by
+	 * profit
+	 */
+	public List<Entry> run() {
+		List<Entry> alive = new ArrayList<Entry>(entries);
+		long horizon = firstTicks;
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try {
+			while (true) {
+				numRounds++;
+				runRound(exec, alive, horizon);
+				Collections.sort(alive, BY_PROFIT);
+				if (horizon >= numTicks || alive.size() == 1)
+					break;
+				alive = new ArrayList<Entry>(
+						alive.subList(0, (alive.size() + 1) / 2));
+				horizon = Math.min(2 * horizon, numTicks);
+			}
+		}
+		finally {
+			exec.shutdown();
+		}
+		return ranking();
+	}
+
+	/**
+	 * Runs every survivor up to the end of this round
+	 */
+	private void runRound(ExecutorService exec, List<Entry> alive,
+			final long horizon) {
+		List<Callable<Long>> jobs = new ArrayList<Callable<Long>>();
+		for (final Entry e : alive) {
+			e.round = numRounds;
+			jobs.add(new Callable<Long>() {
+				public Long call() {
+					if (e.sim == null) {
+						e.factory = e.builder.setUp(new SimulationContext(seed));
+						if (!e.factory.check())
+							throw new ConnectionException("Error in simulation set up");
+						e.sim = new EventSimulator(e.factory);
+					}
+					long n = horizon - e.sim.now();
+					e.sim.run(n);
+					e.profit = e.builder.profit(e.factory);
+					return n;
+				}
+			});
+		}
+		try {
+			for (Future<Long> f : exec.invokeAll(jobs))
+				ticksRun += f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Race interrupted");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static final Comparator<Entry> BY_PROFIT = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return Integer.compare(b.profit, a.profit);
+		}
+	};
+
+	/**
+	 * Returns the candidates from best to worst
+	 * @return ranking
+	 */
+	public List<Entry> ranking() {
+		List<Entry> r = new ArrayList<Entry>(entries);
+		Collections.sort(r, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				if (a.round != b.round)
+					return Integer.compare(b.round, a.round);
+				return BY_PROFIT.compare(a, b);
+			}
+		});
+		return r;
+	}
+
+	public int numRounds() {
+		return numRounds;
+	}
+
+	/**
+	 * Returns the number of time steps run by all the candidates together
+	 * @return simulation time used
+	 */
+	public long ticksRun() {
+		return ticksRun;
+	}
+
+	/**
+	 * Returns the number of time steps that running every candidate to the
+	 * end would take
+	 * @return simulation time of a full sweep
+	 */
+	public long fullTicks() {
+		return (long) numTicks * entries.size();
+	}
+
+	/**
+	 * Returns the fraction of the simulation time of a full sweep that the
+	 * race saved
+	 * @return fraction saved, between 0 and 1
+	 */
+	public double savedFraction() {
+		return 1.0 - (double) ticksRun / fullTicks();
+	}
+
+	/**
+	 * Reports the ranking and the simulation time saved
+	 * @param top number of candidates to list
+	 * @return report
+	 */
+	public String report(int top) {
+		StringBuffer buf = new StringBuffer("");
+		String newLine = System.getProperty("line.separator");
+		List<Entry> r = ranking();
+		for (int i = 0; i < Math.min(top, r.size()); i++) {
+			Entry e = r.get(i);
+			buf.append((i + 1) + ". " + e.builder + ": profit = " + e.profit +
+					" after " + e.ticks() + " ticks" + newLine);
+		}
+		buf.append("Rounds = " + numRounds + newLine);
+		buf.append("Simulation time = " + ticksRun + " of " + fullTicks() +
+				String.format(" ticks (%.1f%% saved)", 100 * savedFraction()));
+		buf.append(newLine);
+		return buf.toString();
+	}
+}
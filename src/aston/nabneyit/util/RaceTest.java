@@ -0,0 +1,75 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.Perishable;
+
+public class RaceTest {
+	private static final int numTicks = 4000;
+
+	/**
+	 * Builds a line whose profit depends on how often food arrives
+	 */
+	private static class LineBuilder implements FactoryBuilder {
+		private double pGen;
+
+		LineBuilder(double pGen) {
+			this.pGen = pGen;
+		}
+
+		public LayeredFactory setUp(SimulationContext ctx) {
+			LayeredFactory fac = new LayeredFactory(3);
+			fac.addUnit(new Source(ctx, new Perishable(45), pGen), 0);
+			fac.addUnit(new Machine(ctx, 20, 0.001, 60), 1);
+			fac.addUnit(new Sink(ctx), 2);
+			fac.directConnectLayers(0);
+			fac.directConnectLayers(1);
+			return fac;
+		}
+
+		public int profit(LayeredFactory f) {
+			return f.totalProcessed()*10 - f.totalSpoiled()*20;
+		}
+	}
+
+	private List<LineBuilder> candidates() {
+		List<LineBuilder> c = new ArrayList<LineBuilder>();
+		for (int i = 1; i <= 8; i++)
+			c.add(new LineBuilder(0.01 * i));
+		return c;
+	}
+
+	@Test
+	public void testSimulationTime() {
+		Race r = new Race(candidates(), numTicks, numTicks / 4, 3, 2);
+		List<Race.Entry> ranking = r.run();
+		// 8 candidates for 1000 steps, 4 up to 2000 and 2 up to 4000
+		assertEquals(3, r.numRounds());
+		assertEquals(8000 + 4000 + 4000, r.ticksRun());
+		assertEquals(0.5, r.savedFraction(), 1e-12);
+		assertEquals(8, ranking.size());
+		assertEquals(numTicks, ranking.get(0).ticks());
+		assertEquals(numTicks, ranking.get(1).ticks());
+		assertEquals(numTicks / 2, ranking.get(2).ticks());
+		assertEquals(numTicks / 4, ranking.get(7).ticks());
+	}
+
+	@Test
+	public void testWinnerMatchesFullRun() {
+		Race r = new Race(candidates(), numTicks, numTicks / 8, 3, 2);
+		Race.Entry winner = r.run().get(0);
+
+		// Run every candidate to the end with the same seed
+		int best = Integer.MIN_VALUE;
+		for (LineBuilder b : candidates()) {
+			LayeredFactory fac = b.setUp(new SimulationContext(3));
+			new EventSimulator(fac).run(numTicks);
+			best = Math.max(best, b.profit(fac));
+		}
+		assertEquals(best, winner.profit());
+	}
+}
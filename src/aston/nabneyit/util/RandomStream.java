@@ -0,0 +1,145 @@
+package aston.nabneyit.util;
+
+/**
+ * Implements a splittable stream of random numbers using the SplitMix64
+ * algorithm (the one behind <code>java.util.SplittableRandom</code>).
+ * Unlike <code>java.util.Random</code> it does no synchronisation, so each
+ * unit can own a stream and draw from it without contention.  Streams for
+ * different units are derived from a master seed and a key, such as the
+ * unit ID, so a unit's random numbers do not depend on what any other unit
+ * does or on the order in which units are run.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class RandomStream {
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+	private long state;
+	private final long gamma;
+
+	/**
+	 * Creates a stream from a seed
+	 * @param seed initial state
+	 */
+	public RandomStream(long seed) {
+		this(seed, GOLDEN_GAMMA);
+	}
+
+	private RandomStream(long seed, long gamma) {
+		this.state = seed;
+		this.gamma = gamma;
+	}
+
+	/**
+	 * Derives a stream from a master seed and a key; different keys give
+	 * statistically independent streams
+	 * @param seed master seed
+	 * @param key identifies the stream, e.g. a unit ID
+	 * @return new stream
+	 */
+	public static RandomStream forKey(long seed, long key) {
+		return new RandomStream(mix64(seed + mix64(key * GOLDEN_GAMMA)),
+				mixGamma(seed ^ key));
+	}
+
+	/**
+	 * Returns a new stream that is independent of this one; this stream
+	 * moves on by two values
+	 * @return new stream
+	 */
+	public RandomStream split() {
+		return new RandomStream(nextLong(), mixGamma(nextSeed()));
+	}
+
+	public long nextLong() {
+		return mix64(nextSeed());
+	}
+
+	/**
+	 * Returns a random integer uniformly distributed in [0, bound)
+	 * @param bound upper limit, which must be positive
+	 * @return random integer
+	 */
+	public int nextInt(int bound) {
+		if (bound <= 0)
+			throw new IllegalArgumentException("Illegal bound: " + bound);
+		// Take the high bits and reject the values that would bias the result
+		long limit = Long.MAX_VALUE - Long.MAX_VALUE % bound;
+		long r;
+		do {
+			r = nextLong() >>> 1;
+		} while (r >= limit);
+		return (int) (r % bound);
+	}
+
+	/**
+	 * Returns a random number uniformly distributed in [0, 1)
+	 * @return random double
+	 */
+	public double nextDouble() {
+		return (nextLong() >>> 11) * DOUBLE_UNIT;
+	}
+
+	/**
+	 * Returns the internal state, so that a simulation can save it and
+	 * later carry on from the same point
+	 * @return state of the stream
+	 */
+	public long getState() {
+		return state;
+	}
+
+	/**
+	 * Restores state previously returned by {@link #getState()}
+	 * @param state state of the stream
+	 */
+	public void setState(long state) {
+		this.state = state;
+	}
+
+	/**
+	 * Returns the increment added to the state for each value, so that
+	 * code holding many streams in arrays can step them with
+	 * {@link #doubleAt(long)}
+	 * @return gamma of the stream
+	 */
+	long gamma() {
+		return gamma;
+	}
+
+	/**
+	 * Works out the value that {@link #nextDouble()} returns once the
+	 * state has been moved on to <code>state</code>
+	 * @param state state after adding the gamma
+	 * @return random double in [0, 1)
+	 */
+	static double doubleAt(long state) {
+		return (mix64(state) >>> 11) * DOUBLE_UNIT;
+	}
+
+	private long nextSeed() {
+		return state += gamma;
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static long mixGamma(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		// Avoid gammas with too few bit transitions
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+
+	public String toString() {
+		return "Random stream with state " + state;
+	}
+}
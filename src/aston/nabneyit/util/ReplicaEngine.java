@@ -0,0 +1,505 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Runs several replicas of the same factory in lockstep, one replica to a
+ * lane.  The replicas must have the same units and connections, but their
+ * settings and random number streams may differ.  Their state is kept
+ * structure-of-arrays fashion: there is one array for each variable, such
+ * as the processing time left in the machines, and the lanes of a unit
+ * sit side by side in it at <code>[unit * numLanes + lane]</code>.  A time
+ * step runs each unit of the factory once, in an inner loop over the
+ * lanes, so every pass over the factory's structure does the work of
+ * <code>numLanes</code> replications and the loops run over contiguous
+ * primitive arrays.
+ * <p>
+ * Food is held only as its spoil deadline, which is all that the units
+ * need to know about it, and each machine queue is a ring of deadlines.
+ * Rare events, such as a jam or an item spoiling, take a branch in their
+ * own lane; the rest of the work in a time step is counting down.
+ * <p>
+ * Each lane carries on from the state of its replica and gives exactly
+ * the same counts as running that replica with
+ * {@link LayeredFactory#tick()}.  The replicas themselves are not changed
+ * until {@link #writeCounts()} is called.  Only factories made from
+ * {@link Source Source}, {@link Machine Machine} and {@link Sink Sink}
+ * units joined by {@link IntelligentRouter IntelligentRouters} can be run,
+ * and counting sinks only have their totals kept.  This is the only
+ * array-based copy of what those units do: a {@link CompiledFactory
+ * CompiledFactory} is an engine with a single lane.
+ *
+ * @see ReplicationRunner#setLanes(int)
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class ReplicaEngine {
+
+	private static final int SOURCE = FactoryLayout.SOURCE;
+	private static final int MACHINE = FactoryLayout.MACHINE;
+
+	/** Outbox entry of a unit that sends nothing in this time step */
+	private static final long EMPTY = Long.MIN_VALUE;
+	private static final int INITIAL_QUEUE_CAPACITY = 16;
+
+	/** Layout of the replica in each lane */
+	private final List<FactoryLayout> layouts;
+	private final FactoryLayout layout;
+	private final int numLanes;
+	private final SimClock clock;
+
+	// One entry per unit and lane
+	/** Spoil deadline of the item that the unit sends on, or EMPTY */
+	private final long[] outbox;
+	private final int[] numProcessed;
+	private final int[] numSpoiled;
+	private final int[] numEntered;
+
+	// Sources
+	private final double[] genProb;
+	private final long[] spoilTime;
+	private final long[] arrivalCountdown;
+	private final long[] sourceRandom;
+	private final long[] sourceGamma;
+
+	// Machines; the queue of each lane is a ring of spoil deadlines whose
+	// capacity is a power of two
+	private final long[][] queue;
+	private final int[] queueHead;
+	private final int[] queueSize;
+	/** No item in the queue spoils before this time */
+	private final long[] queueMin;
+	/** Spoil deadline of the item being processed, or EMPTY */
+	private final long[] current;
+	private final int[] procTime;
+	private final int[] procTimeLeft;
+	private final double[] jamProb;
+	private final int[] jamTime;
+	private final boolean[] isJammed;
+	private final int[] jamTimeLeft;
+	private final long[] jamCountdown;
+	private final long[] machineRandom;
+	private final long[] machineGamma;
+
+	// Sinks only count what arrives
+	private final int[] sinkQueued;
+
+	/**
+	 * Copies replicas of a factory into lanes
+	 * @param replicas factories with the same units and connections, all
+	 * at the same time step; lane <code>i</code> carries on from
+	 * <code>replicas.get(i)</code>
+	 * @throws IllegalArgumentException if there are no replicas, if they
+	 * differ in shape or time, or if they contain units or connectors that
+	 * cannot be run in lanes
+	 */
+	public ReplicaEngine(List<LayeredFactory> replicas) {
+		if (replicas.isEmpty())
+			throw new IllegalArgumentException("Need at least one replica");
+		numLanes = replicas.size();
+		layouts = new ArrayList<FactoryLayout>();
+		long now = replicas.get(0).clock().now();
+		for (LayeredFactory fac : replicas) {
+			FactoryLayout l = new FactoryLayout(fac);
+			if (!l.sameShape(layouts.isEmpty() ? l : layouts.get(0)))
+				throw new IllegalArgumentException(
+						"Replicas differ in shape");
+			if (fac.clock().now() != now)
+				throw new IllegalArgumentException(
+						"Replicas are at different times");
+			layouts.add(l);
+		}
+		layout = layouts.get(0);
+		clock = new SimClock();
+		clock.setTime(now);
+
+		int k = numLanes;
+		int nu = layout.numUnits();
+		outbox = new long[nu * k];
+		numProcessed = new int[nu * k];
+		numSpoiled = new int[nu * k];
+		numEntered = new int[nu * k];
+		Arrays.fill(outbox, EMPTY);
+
+		int ns = layout.sources.size();
+		genProb = new double[ns * k];
+		spoilTime = new long[ns * k];
+		arrivalCountdown = new long[ns * k];
+		sourceRandom = new long[ns * k];
+		sourceGamma = new long[ns * k];
+
+		int nm = layout.machines.size();
+		queue = new long[nm * k][];
+		queueHead = new int[nm * k];
+		queueSize = new int[nm * k];
+		queueMin = new long[nm * k];
+		current = new long[nm * k];
+		procTime = new int[nm * k];
+		procTimeLeft = new int[nm * k];
+		jamProb = new double[nm * k];
+		jamTime = new int[nm * k];
+		isJammed = new boolean[nm * k];
+		jamTimeLeft = new int[nm * k];
+		jamCountdown = new long[nm * k];
+		machineRandom = new long[nm * k];
+		machineGamma = new long[nm * k];
+
+		sinkQueued = new int[layout.sinks.size() * k];
+
+		for (int lane = 0; lane < k; lane++)
+			copyLane(lane, layouts.get(lane));
+	}
+
+	/**
+	 * Copies the state of a replica into its lane
+	 */
+	private void copyLane(int lane, FactoryLayout l) {
+		int k = numLanes;
+		for (int u = 0; u < l.numUnits(); u++) {
+			Unit unit = l.units.get(u);
+			numProcessed[u * k + lane] = unit.numProcessed;
+			numSpoiled[u * k + lane] = unit.numSpoiled;
+			numEntered[u * k + lane] = unit.numEntered;
+		}
+		for (int s = 0; s < l.sources.size(); s++) {
+			Source src = l.sources.get(s);
+			int i = s * k + lane;
+			genProb[i] = src.genProb;
+			spoilTime[i] = src.productType.spoilDeadline();
+			arrivalCountdown[i] = src.arrivalCountdown;
+			sourceRandom[i] = src.gen.getState();
+			sourceGamma[i] = src.gen.gamma();
+		}
+		for (int m = 0; m < l.machines.size(); m++) {
+			Machine mc = l.machines.get(m);
+			int i = m * k + lane;
+			queue[i] = new long[INITIAL_QUEUE_CAPACITY];
+			queueMin[i] = Unit.NEVER;
+			for (Product p : mc.q)
+				enqueue(i, p.spoilDeadline());
+			current[i] = mc.currentItem == null ? EMPTY :
+				mc.currentItem.spoilDeadline();
+			procTime[i] = mc.procTime;
+			procTimeLeft[i] = mc.procTimeLeft;
+			jamProb[i] = mc.jamProb;
+			jamTime[i] = mc.jamTime;
+			isJammed[i] = mc.isJammed;
+			jamTimeLeft[i] = mc.jamTimeLeft;
+			jamCountdown[i] = mc.jamCountdown;
+			machineRandom[i] = mc.gen.getState();
+			machineGamma[i] = mc.gen.gamma();
+		}
+		for (int s = 0; s < l.sinks.size(); s++)
+			sinkQueued[s * k + lane] = l.sinks.get(s).q.size();
+	}
+
+	/**
+	 * Runs all the lanes for a single time step
+	 */
+	public void tick() {
+		int k = numLanes;
+		for (int n = 0; n < layout.numLayers(); n++) {
+			tickSources(layout.sourceStart[n], layout.sourceStart[n + 1]);
+			tickMachines(layout.machineStart[n], layout.machineStart[n + 1]);
+			tickSinks(layout.sinkStart[n], layout.sinkStart[n + 1]);
+			// Send on what the layer produced, in unit order
+			for (int u = layout.layerStart[n]; u < layout.layerStart[n + 1]; u++) {
+				int c = layout.outConnector[u];
+				for (int i = u * k; i < (u + 1) * k; i++) {
+					long d = outbox[i];
+					if (d != EMPTY) {
+						outbox[i] = EMPTY;
+						route(c, i - u * k, d);
+					}
+				}
+			}
+		}
+		clock.advance();
+	}
+
+	/**
+	 * Runs all the lanes for a number of time steps
+	 * @param numTicks number of time steps
+	 */
+	public void run(long numTicks) {
+		for (long t = 0; t < numTicks; t++)
+			tick();
+	}
+
+	private void tickSources(int from, int to) {
+		int k = numLanes;
+		long now = clock.now();
+		for (int s = from; s < to; s++) {
+			int base = layout.sourceUnit[s] * k;
+			for (int i = s * k; i < (s + 1) * k; i++) {
+				if (arrivalCountdown[i] == 0)
+					arrivalCountdown[i] = sourceGap(i);
+				if (--arrivalCountdown[i] == 0) {
+					int o = base + i - s * k;
+					numProcessed[o]++;
+					outbox[o] = Unit.later(now, spoilTime[i]);
+				}
+			}
+		}
+	}
+
+	private void tickMachines(int from, int to) {
+		int k = numLanes;
+		long now = clock.now();
+		for (int m = from; m < to; m++) {
+			int base = layout.machineUnit[m] * k;
+			for (int i = m * k; i < (m + 1) * k; i++) {
+				int o = base + i - m * k;
+				if (queueMin[i] <= now)
+					numSpoiled[o] += removeExpired(i, now);
+				if (isJammed[i]) {
+					if (--jamTimeLeft[i] < 0)
+						isJammed[i] = false;
+					continue;
+				}
+				if (jamCountdown[i] == 0)
+					jamCountdown[i] = machineGap(i);
+				if (--jamCountdown[i] == 0) {
+					// Jam, throwing away the item being processed
+					isJammed[i] = true;
+					jamTimeLeft[i] = jamTime[i];
+					current[i] = EMPTY;
+					numSpoiled[o]++;
+					continue;
+				}
+				if (current[i] == EMPTY && procTimeLeft[i] <= 0 &&
+						queueSize[i] > 0) {
+					procTimeLeft[i] = procTime[i];
+					current[i] = age(dequeue(i));
+				}
+				if (procTimeLeft[i] > 0)
+					procTimeLeft[i]--;
+				if (current[i] != EMPTY && procTimeLeft[i] == 0) {
+					outbox[o] = age(current[i]);
+					current[i] = EMPTY;
+				}
+			}
+		}
+	}
+
+	private void tickSinks(int from, int to) {
+		int k = numLanes;
+		for (int s = from; s < to; s++) {
+			int base = layout.sinkUnit[s] * k;
+			for (int i = s * k; i < (s + 1) * k; i++) {
+				numProcessed[base + i - s * k] += sinkQueued[i];
+				sinkQueued[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Sends an item in one lane to the output of a connector with the
+	 * shortest queue, as {@link IntelligentRouter IntelligentRouter} does
+	 */
+	private void route(int c, int lane, long deadline) {
+		int best = -1;
+		int bestLength = -1;
+		for (int j = layout.connectorStart[c]; j < layout.connectorStart[c + 1]; j++) {
+			int v = layout.connectorOut[j];
+			if (layout.kind[v] == SOURCE)
+				continue;
+			int length = queueLength(v, lane);
+			if (bestLength == -1 || length < bestLength) {
+				best = v;
+				bestLength = length;
+			}
+		}
+		if (best < 0)
+			throw new InternalError("Connector incorrect");
+		numEntered[best * numLanes + lane]++;
+		int i = layout.slot[best] * numLanes + lane;
+		if (layout.kind[best] == MACHINE)
+			enqueue(i, deadline);
+		else
+			sinkQueued[i]++;
+	}
+
+	/**
+	 * Ages an item by one time step, as {@link Product#tick()} does
+	 */
+	private static long age(long deadline) {
+		return deadline == Unit.NEVER ? deadline : deadline - 1;
+	}
+
+	private void enqueue(int i, long deadline) {
+		long[] ring = queue[i];
+		int size = queueSize[i];
+		if (size == ring.length) {
+			// Unwrap the ring into one twice the size
+			long[] bigger = new long[2 * size];
+			int head = queueHead[i];
+			System.arraycopy(ring, head, bigger, 0, size - head);
+			System.arraycopy(ring, 0, bigger, size - head, head);
+			queue[i] = ring = bigger;
+			queueHead[i] = 0;
+		}
+		ring[(queueHead[i] + size) & (ring.length - 1)] = deadline;
+		queueSize[i] = size + 1;
+		queueMin[i] = Math.min(queueMin[i], deadline);
+	}
+
+	/**
+	 * Takes the item at the front of a queue.  The earliest deadline is
+	 * left alone, so it may be too early until the queue is next searched
+	 * for spoiled items.
+	 */
+	private long dequeue(int i) {
+		long[] ring = queue[i];
+		long deadline = ring[queueHead[i]];
+		queueHead[i] = (queueHead[i] + 1) & (ring.length - 1);
+		if (--queueSize[i] == 0)
+			queueMin[i] = Unit.NEVER;
+		return deadline;
+	}
+
+	/**
+	 * Removes the spoiled items from a queue, keeping the rest in order,
+	 * and works out the earliest deadline of those that are left
+	 * @return number of items removed
+	 */
+	private int removeExpired(int i, long now) {
+		long[] ring = queue[i];
+		int mask = ring.length - 1;
+		int head = queueHead[i];
+		int size = queueSize[i];
+		int kept = 0;
+		long min = Unit.NEVER;
+		for (int j = 0; j < size; j++) {
+			long d = ring[(head + j) & mask];
+			if (d > now) {
+				ring[(head + kept++) & mask] = d;
+				min = Math.min(min, d);
+			}
+		}
+		queueSize[i] = kept;
+		queueMin[i] = min;
+		return size - kept;
+	}
+
+	/**
+	 * Draws the time until a source's next arrival from its own stream
+	 */
+	private long sourceGap(int i) {
+		double p = genProb[i];
+		if (p <= 0.0)
+			return Unit.NEVER;
+		if (p >= 1.0)
+			return 1;
+		sourceRandom[i] += sourceGamma[i];
+		return Unit.geometricGap(RandomStream.doubleAt(sourceRandom[i]), p);
+	}
+
+	/**
+	 * Draws the time until a machine's next jam from its own stream
+	 */
+	private long machineGap(int i) {
+		double p = jamProb[i];
+		if (p <= 0.0)
+			return Unit.NEVER;
+		if (p >= 1.0)
+			return 1;
+		machineRandom[i] += machineGamma[i];
+		return Unit.geometricGap(RandomStream.doubleAt(machineRandom[i]), p);
+	}
+
+	/**
+	 * Copies the counters of each lane back into the units of its replica,
+	 * so that {@link LayeredFactory#totalProcessed()} and the like report
+	 * the results of the lanes.  Only the counters are copied: the replicas
+	 * do not hold the food or the rest of the state of their lanes, so they
+	 * should not be run afterwards.
+	 */
+	public void writeCounts() {
+		for (int lane = 0; lane < numLanes; lane++) {
+			FactoryLayout l = layouts.get(lane);
+			for (int u = 0; u < l.numUnits(); u++) {
+				Unit unit = l.units.get(u);
+				int i = u * numLanes + lane;
+				unit.numProcessed = numProcessed[i];
+				unit.numSpoiled = numSpoiled[i];
+				unit.numEntered = numEntered[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of items waiting in a unit
+	 * @param u index of unit, in layer order
+	 * @param lane lane of the unit
+	 * @return queue length
+	 */
+	public int queueLength(int u, int lane) {
+		int i = layout.slot[u] * numLanes + lane;
+		switch (layout.kind[u]) {
+		case MACHINE:
+			return queueSize[i];
+		case FactoryLayout.SINK:
+			return sinkQueued[i];
+		default:
+			return 0;
+		}
+	}
+
+	public int numLanes() {
+		return numLanes;
+	}
+
+	public int numUnits() {
+		return layout.numUnits();
+	}
+
+	public int numProcessed(int u, int lane) {
+		return numProcessed[u * numLanes + lane];
+	}
+
+	public int numSpoiled(int u, int lane) {
+		return numSpoiled[u * numLanes + lane];
+	}
+
+	public int numEntered(int u, int lane) {
+		return numEntered[u * numLanes + lane];
+	}
+
+	/**
+	 * Returns the number of items processed in the sinks of the last layer
+	 * of one lane
+	 * @param lane lane to count
+	 * @return number of processed products
+	 * @see LayeredFactory#totalProcessed()
+	 */
+	public int totalProcessed(int lane) {
+		int total = 0;
+		int last = layout.numLayers() - 1;
+		for (int u = layout.layerStart[last]; u < layout.layerStart[last + 1]; u++)
+			total += numProcessed[u * numLanes + lane];
+		return total;
+	}
+
+	/**
+	 * Returns the number of spoiled items in one lane
+	 * @param lane lane to count
+	 * @return number of spoiled items
+	 * @see LayeredFactory#totalSpoiled()
+	 */
+	public int totalSpoiled(int lane) {
+		int total = 0;
+		for (int u = 0; u < layout.numUnits(); u++)
+			total += numSpoiled[u * numLanes + lane];
+		return total;
+	}
+
+	public SimClock clock() {
+		return clock;
+	}
+
+	public String toString() {
+		return "Replica engine with " + numLanes + " lanes of " +
+				layout.numUnits() + " units";
+	}
+}
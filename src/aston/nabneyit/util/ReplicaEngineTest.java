@@ -0,0 +1,126 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+import aston.nabneyit.model.Perishable;
+import aston.nabneyit.view.SimSetup;
+
+public class ReplicaEngineTest {
+	private static final int numTicks = 5000;
+
+	private LayeredFactory makeFactory(long seed, int soupTime) {
+		SimulationContext ctx = new SimulationContext(seed);
+		LayeredFactory fac = new LayeredFactory(4);
+		fac.addUnit(new Source(ctx, new Perishable(45), 0.03), 0);
+		fac.addUnit(new Source(ctx, new Perishable(40), 0.03), 0);
+		fac.addUnit(new Source(ctx, new NonPerishable(), 0.04), 0);
+		fac.addUnit(new Machine(ctx, 20, 0.002, 60), 1);
+		fac.addUnit(new Machine(ctx, 20, 0.002, 60), 1);
+		fac.addUnit(new Machine(ctx, soupTime, 0.002, 60), 1);
+		for (int i = 0; i < 2; i++) {
+			fac.addUnit(new Machine(ctx, 10, 0.002, 60), 2);
+			fac.addUnit(new Sink(ctx), 3);
+		}
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.directConnectLayers(2);
+		return fac;
+	}
+
+	/**
+	 * Checks every unit's counters and queue against its lane
+	 */
+	private void assertSame(LayeredFactory fac, ReplicaEngine engine,
+			int lane) {
+		int u = 0;
+		for (int n = 0; n < fac.numLayers(); n++) {
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext()) {
+				Unit unit = i.next();
+				assertEquals(unit.numProcessed(), engine.numProcessed(u, lane));
+				assertEquals(unit.numSpoiled(), engine.numSpoiled(u, lane));
+				assertEquals(unit.numEntered(), engine.numEntered(u, lane));
+				if (!(unit instanceof Sink))
+					assertEquals(unit.queueLength(), engine.queueLength(u, lane));
+				u++;
+			}
+		}
+		assertEquals(fac.totalProcessed(), engine.totalProcessed(lane));
+		assertEquals(fac.totalSpoiled(), engine.totalSpoiled(lane));
+		assertEquals(fac.clock().now(), engine.clock().now());
+	}
+
+	@Test
+	public void testLanesMatchReplicas() {
+		// The lanes have their own seeds and soup machines, some of which
+		// cannot keep up, so that their queues grow
+		List<LayeredFactory> replicas = new ArrayList<LayeredFactory>();
+		for (int lane = 0; lane < 7; lane++)
+			replicas.add(makeFactory(lane, 18 + 2 * lane));
+		ReplicaEngine engine = new ReplicaEngine(replicas);
+		assertEquals(7, engine.numLanes());
+		engine.run(numTicks);
+		for (int lane = 0; lane < replicas.size(); lane++) {
+			LayeredFactory fac = replicas.get(lane);
+			for (int t = 0; t < numTicks; t++)
+				fac.tick();
+			assertSame(fac, engine, lane);
+		}
+	}
+
+	@Test
+	public void testStartPartWayThrough() {
+		// Each lane carries on from the queues, jams and random number
+		// streams of its replica
+		List<LayeredFactory> replicas = new ArrayList<LayeredFactory>();
+		for (int lane = 0; lane < 3; lane++) {
+			LayeredFactory fac = makeFactory(100 + lane, 22);
+			for (int t = 0; t < 1234; t++)
+				fac.tick();
+			replicas.add(fac);
+		}
+		ReplicaEngine engine = new ReplicaEngine(replicas);
+		engine.run(numTicks);
+		for (int lane = 0; lane < replicas.size(); lane++) {
+			LayeredFactory fac = replicas.get(lane);
+			for (int t = 0; t < numTicks; t++)
+				fac.tick();
+			assertSame(fac, engine, lane);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectDifferentShapes() {
+		List<LayeredFactory> replicas = new ArrayList<LayeredFactory>();
+		replicas.add(makeFactory(1, 22));
+		LayeredFactory other = new LayeredFactory(2);
+		other.addUnit(new Source(new SimulationContext(2),
+				new NonPerishable(), 0.1), 0);
+		other.addUnit(new Sink(new SimulationContext(2)), 1);
+		other.directConnectLayers(0);
+		replicas.add(other);
+		new ReplicaEngine(replicas);
+	}
+
+	@Test
+	public void testRunnerWithLanes() {
+		// Running the replications in lanes gives the same summary
+		SimSetup sim = new SimSetup(0.02, 0.02, 0.03);
+		ReplicationRunner one = new ReplicationRunner(sim, 3000, 5, 1);
+		one.setEventDriven(false);
+		one.run(10);
+		ReplicationRunner lanes = new ReplicationRunner(sim, 3000, 5, 2);
+		lanes.setLanes(4);
+		lanes.run(10);
+		assertEquals(10, lanes.profit().count());
+		assertEquals(one.processed().mean(), lanes.processed().mean(), 1e-9);
+		assertEquals(one.spoiled().mean(), lanes.spoiled().mean(), 1e-9);
+		assertEquals(one.profit().mean(), lanes.profit().mean(), 1e-9);
+		assertEquals(one.profit().variance(), lanes.profit().variance(), 1e-9);
+	}
+}
@@ -0,0 +1,243 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs independent replications of a factory on all the processors of the
+ * machine and summarises the results with confidence intervals.
+ * <p>
+ * Every replication is built by a {@link FactoryBuilder FactoryBuilder} in
+ * its own {@link SimulationContext SimulationContext}.  The seed of the
+ * context depends only on the master seed and the number of the
+ * replication, and the results are combined in replication order, so the
+ * summary is the same however many threads are used.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class ReplicationRunner {
+
+	private FactoryBuilder builder;
+	private int numTicks;
+	private long masterSeed;
+	private int numThreads;
+	private boolean eventDriven = true;
+	private int numLanes = 1;
+
+	// Results of the replications run so far
+	private Statistic processed;
+	private Statistic spoiled;
+	private Statistic profit;
+
+	/**
+	 * Creates a runner that uses one thread per processor
+	 * @param builder builds each replication of the factory
+	 * @param numTicks number of time steps in each replication
+	 * @param masterSeed seed from which the seed of each replication is
+	 * derived
+	 */
+	public ReplicationRunner(FactoryBuilder builder, int numTicks,
+			long masterSeed) {
+		this(builder, numTicks, masterSeed,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a runner
+	 * @param builder builds each replication of the factory
+	 * @param numTicks number of time steps in each replication
+	 * @param masterSeed seed from which the seed of each replication is
+	 * derived
+	 * @param numThreads number of replications to run at the same time
+	 */
+	public ReplicationRunner(FactoryBuilder builder, int numTicks,
+			long masterSeed, int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		this.builder = builder;
+		this.numTicks = numTicks;
+		this.masterSeed = masterSeed;
+		this.numThreads = numThreads;
+		reset();
+	}
+
+	/**
+	 * Chooses how each replication is run when they are not run in
+	 * {@link #setLanes(int) lanes}
+	 * @param eventDriven true to use an {@link EventSimulator EventSimulator},
+	 * false to tick the factory in every time step
+	 */
+	public void setEventDriven(boolean eventDriven) {
+		this.eventDriven = eventDriven;
+	}
+
+	/**
+	 * Runs the replications in batches, each batch in the lanes of a
+	 * {@link ReplicaEngine ReplicaEngine}, rather than one at a time.  The
+	 * results are the same, but the factory must be one that the engine can
+	 * run.  The engine takes the place of the one chosen by
+	 * {@link #setEventDriven(boolean)}.
+	 * @param numLanes number of replications in a batch; 1 to run them one
+	 * at a time
+	 */
+	public void setLanes(int numLanes) {
+		if (numLanes < 1)
+			throw new IllegalArgumentException("Need at least one lane");
+		this.numLanes = numLanes;
+	}
+
+	/**
+	 * Throws away the results of the replications run so far
+	 */
+	public void reset() {
+		processed = new Statistic("Number of items packed");
+		spoiled = new Statistic("Number of items spoiled");
+		profit = new Statistic("Total profit made");
+	}
+
+	/**
+	 * Works out the seed of a replication
+	 * @param rep number of the replication
+	 * @return seed for the context of the replication
+	 */
+	public long seedFor(int rep) {
+		return RandomStream.forKey(masterSeed, rep).nextLong();
+	}
+
+	/**
+	 * Runs more replications and adds them to the results
+	 * @param numReplications number of replications to run
+	 * @throws ConnectionException if a factory fails its check
+	 */
+	public void run(int numReplications) {
+		int first = (int) processed.count();
+		// Split the replications into batches, one batch per job
+		List<long[]> batches = new ArrayList<long[]>();
+		for (int r = first; r < first + numReplications; r += numLanes) {
+			long[] seeds = new long[Math.min(numLanes,
+					first + numReplications - r)];
+			for (int i = 0; i < seeds.length; i++)
+				seeds[i] = seedFor(r + i);
+			batches.add(seeds);
+		}
+		if (numThreads == 1) {
+			// Run in this thread, e.g. when already inside a parameter sweep
+			for (long[] seeds : batches)
+				for (LayeredFactory fac : replicate(seeds))
+					record(fac);
+			return;
+		}
+		ExecutorService exec = Executors.newFixedThreadPool(
+				Math.min(numThreads, Math.max(batches.size(), 1)));
+		try {
+			List<Callable<List<LayeredFactory>>> jobs =
+					new ArrayList<Callable<List<LayeredFactory>>>();
+			for (final long[] seeds : batches) {
+				jobs.add(new Callable<List<LayeredFactory>>() {
+					public List<LayeredFactory> call() {
+						return replicate(seeds);
+					}
+				});
+			}
+			for (Future<List<LayeredFactory>> f : exec.invokeAll(jobs)) {
+				for (LayeredFactory fac : f.get())
+					record(fac);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Replications interrupted");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+		finally {
+			exec.shutdown();
+		}
+	}
+
+	/**
+	 * Keeps adding replications until the 95% confidence interval for the
+	 * mean profit is narrow enough.  Replications are added in batches of
+	 * one per thread, or one per lane of each thread, so that all the
+	 * threads are kept busy.
+	 * @param halfWidth largest acceptable half-width of the interval
+	 * @param minReplications number of replications to run before the
+	 * interval is first looked at; at least two
+	 * @param maxReplications the most replications to run
+	 * @return true if the interval is narrow enough, false if the largest
+	 * number of replications was reached first
+	 * @throws ConnectionException if a factory fails its check
+	 */
+	public boolean runUntil(double halfWidth, int minReplications,
+			int maxReplications) {
+		int n = (int) profit.count();
+		int start = Math.max(minReplications, 2) - n;
+		if (start > 0)
+			run(Math.min(start, maxReplications - n));
+		while (profit.halfWidth() > halfWidth && profit.count() < maxReplications)
+			run((int) Math.min((long) numThreads * numLanes,
+					maxReplications - profit.count()));
+		return profit.halfWidth() <= halfWidth;
+	}
+
+	/**
+	 * Adds the results of a replication
+	 * @param fac factory after it has been run
+	 */
+	private void record(LayeredFactory fac) {
+		processed.add(fac.totalProcessed());
+		spoiled.add(fac.totalSpoiled());
+		profit.add(builder.profit(fac));
+	}
+
+	/**
+	 * Builds and runs a batch of replications
+	 * @param seeds seed for the context of each replication
+	 * @return factories after they have been run
+	 * @throws ConnectionException if a factory fails its check
+	 */
+	private List<LayeredFactory> replicate(long[] seeds) {
+		List<LayeredFactory> facs = new ArrayList<LayeredFactory>();
+		for (long seed : seeds) {
+			LayeredFactory fac = builder.setUp(new SimulationContext(seed));
+			if (!fac.check())
+				throw new ConnectionException("Error in simulation set up");
+			facs.add(fac);
+		}
+		if (numLanes > 1) {
+			ReplicaEngine engine = new ReplicaEngine(facs);
+			engine.run(numTicks);
+			engine.writeCounts();
+		}
+		else if (eventDriven) {
+			new EventSimulator(facs.get(0)).run(numTicks);
+		}
+		else {
+			for (int t = 0; t < numTicks; t++)
+				facs.get(0).tick();
+		}
+		return facs;
+	}
+
+	public Statistic processed() {
+		return processed;
+	}
+
+	public Statistic spoiled() {
+		return spoiled;
+	}
+
+	public Statistic profit() {
+		return profit;
+	}
+
+	public String toString() {
+		String newLine = System.getProperty("line.separator");
+		return processed + newLine + spoiled + newLine + profit;
+	}
+}
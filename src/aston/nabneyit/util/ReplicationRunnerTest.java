@@ -0,0 +1,91 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+import aston.nabneyit.model.Perishable;
+
+public class ReplicationRunnerTest {
+	private static final int numTicks = 2000;
+
+	/**
+	 * Builds a small factory with one line for each kind of food
+	 */
+	private static class TestBuilder implements FactoryBuilder {
+		public LayeredFactory setUp(SimulationContext ctx) {
+			LayeredFactory fac = new LayeredFactory(3);
+			fac.addUnit(new Source(ctx, new Perishable(45), 0.04), 0);
+			fac.addUnit(new Source(ctx, new NonPerishable(), 0.04), 0);
+			fac.addUnit(new Machine(ctx, 20, 0.002, 60), 1);
+			fac.addUnit(new Machine(ctx, 22, 0.002, 60), 1);
+			fac.addUnit(new Sink(ctx), 2);
+			fac.directConnectLayers(0);
+			fac.multiConnectLayers(1);
+			return fac;
+		}
+
+		public int profit(LayeredFactory f) {
+			return f.totalProcessed()*10 - f.totalSpoiled()*20;
+		}
+	}
+
+	@Test
+	public void testStatistic() {
+		Statistic s = new Statistic("x");
+		assertTrue(Double.isInfinite(s.halfWidth()));
+		for (int i = 1; i <= 5; i++)
+			s.add(i);
+		assertEquals(5, s.count());
+		assertEquals(3.0, s.mean(), 1e-12);
+		assertEquals(2.5, s.variance(), 1e-12);
+		// t(4) = 2.776
+		assertEquals(2.776 * Math.sqrt(0.5), s.halfWidth(), 1e-9);
+	}
+
+	@Test
+	public void testIndependentOfThreads() {
+		// Each replication has its own seed, so the results must not depend
+		// on how many threads run them, or on how they are batched
+		ReplicationRunner r1 = new ReplicationRunner(new TestBuilder(),
+				numTicks, 7, 1);
+		ReplicationRunner r4 = new ReplicationRunner(new TestBuilder(),
+				numTicks, 7, 4);
+		r1.run(12);
+		r4.run(5);
+		r4.run(7);
+		assertEquals(12, r4.profit().count());
+		assertEquals(r1.profit().mean(), r4.profit().mean(), 0.0);
+		assertEquals(r1.profit().variance(), r4.profit().variance(), 0.0);
+		assertEquals(r1.spoiled().mean(), r4.spoiled().mean(), 0.0);
+		// Replications must actually differ from each other
+		assertTrue(r1.processed().variance() > 0);
+	}
+
+	@Test
+	public void testEnginesAgree() {
+		ReplicationRunner r1 = new ReplicationRunner(new TestBuilder(),
+				numTicks, 7, 2);
+		ReplicationRunner r2 = new ReplicationRunner(new TestBuilder(),
+				numTicks, 7, 2);
+		r1.setEventDriven(false);
+		r1.run(6);
+		r2.run(6);
+		assertEquals(r1.profit().mean(), r2.profit().mean(), 0.0);
+	}
+
+	@Test
+	public void testRunUntil() {
+		ReplicationRunner r = new ReplicationRunner(new TestBuilder(),
+				numTicks, 7, 4);
+		assertTrue(r.runUntil(100.0, 4, 400));
+		assertTrue(r.profit().halfWidth() <= 100.0);
+		assertTrue(r.profit().count() >= 4);
+
+		// A target that cannot be met stops at the most replications
+		r.reset();
+		assertFalse(r.runUntil(0.0, 4, 10));
+		assertEquals(10, r.profit().count());
+	}
+}
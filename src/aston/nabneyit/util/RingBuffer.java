@@ -0,0 +1,100 @@
+package aston.nabneyit.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue for passing items from one thread to another without
+ * locks.  Exactly one thread may add items and exactly one other thread
+ * may take them.  Each side only writes its own position counter, and the
+ * counters are published with ordered writes, so no compare-and-set is
+ * needed.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class RingBuffer<E> {
+
+	private final Object[] items;
+	private final int mask;
+	/** Position of the next item to take; written by the consumer only */
+	private final AtomicLong head = new AtomicLong(0);
+	/** Position of the next item to add; written by the producer only */
+	private final AtomicLong tail = new AtomicLong(0);
+	// Each side's cached copy of the other side's counter, so that the
+	// shared counters are read only when the buffer looks full or empty
+	private long cachedHead = 0;
+	private long cachedTail = 0;
+
+	/**
+	 * Creates an empty buffer
+	 * @param capacity smallest number of items the buffer must hold; it is
+	 * rounded up to a power of two
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Illegal Capacity: " +
+					capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		items = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an item if there is room; called by the producer only
+	 * @param e item to add, not null
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E e) {
+		long t = tail.get();
+		if (t - cachedHead == items.length) {
+			cachedHead = head.get();
+			if (t - cachedHead == items.length)
+				return false;
+		}
+		items[(int) t & mask] = e;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Takes the oldest item; called by the consumer only
+	 * @return item, or null if the buffer is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long h = head.get();
+		if (h == cachedTail) {
+			cachedTail = tail.get();
+			if (h == cachedTail)
+				return null;
+		}
+		int i = (int) h & mask;
+		E e = (E) items[i];
+		items[i] = null;
+		head.lazySet(h + 1);
+		return e;
+	}
+
+	/**
+	 * Returns the number of items in the buffer; this is only a snapshot
+	 * if the other thread is active
+	 * @return number of items
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return items.length;
+	}
+
+	public String toString() {
+		return "Ring buffer with " + size() + "/" + items.length + " items";
+	}
+}
@@ -0,0 +1,71 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Defines a {@link Connector Connector} that sends food to its outputs in
+ * turn, skipping any that do not accept input.  It does not look at the
+ * queues at all, so it costs the same however many outputs there are, but
+ * it only balances the load when the outputs work at the same rate.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class RoundRobinRouter extends Connector {
+
+	/** Position of the output to try next */
+	private int next = 0;
+
+	public RoundRobinRouter() {
+		super();
+	}
+
+	/**
+	 * Transfers product to the next output in turn
+	 */
+	public void transferProduct(Product p) {
+		choose().inputProduct(p);
+	}
+
+	/**
+	 * Shares out a chunk of products in turn, or one at a time if
+	 * an output queue might fill up
+	 */
+	public void transferProducts(List<Product> ps) {
+		if (hasBoundedOutputs()) {
+			super.transferProducts(ps);
+			return;
+		}
+		int[] choice = new int[ps.size()];
+		for (int k = 0; k < choice.length; k++) {
+			choice[k] = nextAccepting(next);
+			next = (choice[k] + 1) % outUnits.size();
+		}
+		deliver(ps, choice);
+	}
+
+	/**
+	 * Transfers stored product to the next output in turn
+	 */
+	public void transferHandle(ProductStore s, int h) {
+		choose().inputHandle(s, h);
+	}
+
+	private Unit choose() {
+		int i = nextAccepting(next);
+		next = (i + 1) % outUnits.size();
+		return outUnits.get(i);
+	}
+
+	protected Object saveState() {
+		return Integer.valueOf(next);
+	}
+
+	protected void restoreState(Object state) {
+		next = ((Integer) state).intValue();
+	}
+
+	public String toString() {
+		return "Round-robin " + super.toString();
+	}
+}
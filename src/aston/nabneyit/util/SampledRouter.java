@@ -0,0 +1,88 @@
+package aston.nabneyit.util;
+
+/**
+ * Defines a {@link Connector Connector} that joins the shortest of a few
+ * queues chosen at random, rather than the shortest of all of them as
+ * {@link IntelligentRouter IntelligentRouter} does.  Each item looks at
+ * <code>d</code> outputs, drawn independently, and goes to the one with
+ * the shortest queue; ties go to the unit that comes first in the output
+ * list.  Even two choices balance the load far better than one, at a
+ * cost that does not grow with the number of outputs.
+ * <p>
+ * If none of the chosen outputs accepts input, the item goes to the
+ * first one after them that does.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class SampledRouter extends Connector {
+
+	private final int numChoices;
+	private final RandomStream gen;
+
+	/**
+	 * Creates a router
+	 * @param numChoices number of outputs looked at for each item
+	 * @param gen random number stream used to choose the outputs
+	 */
+	public SampledRouter(int numChoices, RandomStream gen) {
+		super();
+		if (numChoices < 1)
+			throw new IllegalArgumentException("Need at least one choice");
+		this.numChoices = numChoices;
+		this.gen = gen;
+	}
+
+	/**
+	 * Transfers product to the shortest of the sampled queues
+	 */
+	public void transferProduct(Product p) {
+		choose().inputProduct(p);
+	}
+
+	/**
+	 * Transfers stored product to the shortest of the sampled queues
+	 */
+	public void transferHandle(ProductStore s, int h) {
+		choose().inputHandle(s, h);
+	}
+
+	private Unit choose() {
+		int n = outUnits.size();
+		int best = -1;
+		int bestLength = -1;
+		int last = 0;
+		for (int k = 0; k < numChoices; k++) {
+			int i = gen.nextInt(n);
+			last = i;
+			Unit o = outUnits.get(i);
+			if (!o.acceptsInput())
+				continue;
+			int length = o.queueLength();
+			if (bestLength == -1 || length < bestLength ||
+					(length == bestLength && i < best)) {
+				best = i;
+				bestLength = length;
+			}
+		}
+		if (best < 0)
+			best = nextAccepting(last);
+		return outUnits.get(best);
+	}
+
+	public int numChoices() {
+		return numChoices;
+	}
+
+	protected Object saveState() {
+		return Long.valueOf(gen.getState());
+	}
+
+	protected void restoreState(Object state) {
+		gen.setState(((Long) state).longValue());
+	}
+
+	public String toString() {
+		return "Join shortest of " + numChoices + " " + super.toString();
+	}
+}
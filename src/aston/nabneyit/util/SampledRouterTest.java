@@ -0,0 +1,64 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+
+public class SampledRouterTest {
+
+	private List<Sink> connect(Connector c, int n) {
+		List<Sink> sinks = new ArrayList<Sink>();
+		for (int i = 0; i < n; i++) {
+			Sink s = new Sink(new SimulationContext(i));
+			c.addOutputUnit(s);
+			sinks.add(s);
+		}
+		return sinks;
+	}
+
+	@Test
+	public void testAllChoicesIsShortestQueue() {
+		// With many choices nearly every output is looked at, so the queues
+		// stay within one item of each other
+		SampledRouter r = new SampledRouter(200, new RandomStream(1));
+		List<Sink> sinks = connect(r, 10);
+		for (int k = 0; k < 1000; k++)
+			r.transferProduct(new NonPerishable());
+		for (Sink s : sinks)
+			assertEquals(100, s.queueLength());
+	}
+
+	@Test
+	public void testTwoChoicesBalance() {
+		// Two choices keep the longest queue far shorter than one choice
+		int[] longest = new int[2];
+		for (int d = 1; d <= 2; d++) {
+			SampledRouter r = new SampledRouter(d, new RandomStream(5));
+			List<Sink> sinks = connect(r, 100);
+			for (int k = 0; k < 1000; k++)
+				r.transferProduct(new NonPerishable());
+			for (Sink s : sinks)
+				longest[d - 1] = Math.max(longest[d - 1], s.queueLength());
+		}
+		assertTrue(longest[1] <= 13);
+		assertTrue(longest[0] > longest[1]);
+	}
+
+	@Test
+	public void testSameStreamSameChoices() {
+		SampledRouter r1 = new SampledRouter(2, new RandomStream(9));
+		SampledRouter r2 = new SampledRouter(2, new RandomStream(9));
+		List<Sink> a = connect(r1, 30);
+		List<Sink> b = connect(r2, 30);
+		for (int k = 0; k < 500; k++) {
+			r1.transferProduct(new NonPerishable());
+			r2.transferProduct(new NonPerishable());
+		}
+		for (int i = 0; i < a.size(); i++)
+			assertEquals(a.get(i).queueLength(), b.get(i).queueLength());
+	}
+}
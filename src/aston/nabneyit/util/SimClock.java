@@ -0,0 +1,43 @@
+package aston.nabneyit.util;
+
+/**
+ * Defines the simulation clock shared by the units of a factory.  Food
+ * records the time at which it entered the factory against the clock, so
+ * that how long it has been waiting can be worked out when it is needed
+ * rather than being counted up in every time step.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class SimClock {
+
+	private long time = 0;
+
+	/**
+	 * Returns the current time step
+	 * @return current time
+	 */
+	public long now() {
+		return time;
+	}
+
+	/**
+	 * Moves the clock on by a single time step
+	 */
+	public void advance() {
+		time++;
+	}
+
+	/**
+	 * Sets the clock to a given time step; used by simulators that jump
+	 * from one event to the next
+	 * @param t new time
+	 */
+	public void setTime(long t) {
+		time = t;
+	}
+
+	public String toString() {
+		return "Clock at " + time;
+	}
+}
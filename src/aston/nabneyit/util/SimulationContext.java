@@ -0,0 +1,91 @@
+package aston.nabneyit.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the state that belongs to a whole simulation rather than to any one
+ * unit: the counters used to give units and food items their IDs, and the
+ * seed from which every unit's random number generator is derived.  Giving
+ * each factory its own context means that several factories can be run at
+ * the same time, on different threads, without sharing anything, and that
+ * a run is fully reproducible from its seed.  Each unit has its own
+ * {@link RandomStream RandomStream}, so results do not depend on the order
+ * in which units are run.
+ * <p>
+ * Units created without a context share a single default context.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class SimulationContext {
+
+	public static final long DEFAULT_SEED = 42;
+	private static final SimulationContext defaultContext =
+		new SimulationContext(DEFAULT_SEED);
+
+	private final long seed;
+	private final AtomicInteger unitID = new AtomicInteger();
+	private final AtomicInteger foodID = new AtomicInteger();
+
+	/**
+	 * Creates a context with the default seed
+	 */
+	public SimulationContext() {
+		this(DEFAULT_SEED);
+	}
+
+	/**
+	 * Creates a context
+	 * @param seed seed from which all random number streams are derived
+	 */
+	public SimulationContext(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the context shared by units that were created without one
+	 * @return default context
+	 */
+	public static SimulationContext getDefault() {
+		return defaultContext;
+	}
+
+	/**
+	 * Returns the seed that this context was created with
+	 * @return master seed
+	 */
+	public long seed() {
+		return seed;
+	}
+
+	/**
+	 * Returns a new unit ID
+	 * @return unique ID within this context
+	 */
+	public int nextUnitID() {
+		return unitID.getAndIncrement();
+	}
+
+	/**
+	 * Returns a new food ID
+	 * @return unique ID within this context
+	 */
+	public int nextFoodID() {
+		return foodID.getAndIncrement();
+	}
+
+	/**
+	 * Creates the random number stream for a unit.  The stream is derived
+	 * from the master seed and the unit ID alone, so it is not affected by
+	 * any other unit.
+	 * @param id ID of the unit
+	 * @return new random number stream
+	 */
+	public RandomStream streamFor(int id) {
+		return RandomStream.forKey(seed, id);
+	}
+
+	public String toString() {
+		return "Simulation context with seed " + seed;
+	}
+}
@@ -0,0 +1,90 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.*;
+
+public class SimulationContextTest {
+	private static final int numTicks = 7200;
+	private static final int numRuns = 4;
+
+	private LayeredFactory makeFactory(SimulationContext ctx) {
+		LayeredFactory fac = new LayeredFactory(4);
+		fac.addUnit(new Source(ctx, new Perishable(45), 0.03), 0);
+		fac.addUnit(new Source(ctx, new NonPerishable(), 0.03), 0);
+		fac.addUnit(new Machine(ctx, 20, 0.001, 60), 1);
+		fac.addUnit(new Machine(ctx, 22, 0.001, 60), 1);
+		fac.addUnit(new Machine(ctx, 10, 0.001, 60), 2);
+		fac.addUnit(new Sink(ctx), 3);
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.directConnectLayers(2);
+		return fac;
+	}
+
+	private int[] run(long seed) {
+		LayeredFactory fac = makeFactory(new SimulationContext(seed));
+		for (int t = 0; t < numTicks; t++)
+			fac.tick();
+		return new int[] {fac.totalProcessed(), fac.totalSpoiled()};
+	}
+
+	@Test
+	public void testReproducible() {
+		assertArrayEquals(run(7), run(7));
+		SimulationContext ctx = new SimulationContext(7);
+		assertEquals(0, ctx.nextUnitID());
+		assertEquals(0, ctx.nextFoodID());
+		assertEquals(1, ctx.nextUnitID());
+	}
+
+	@Test
+	public void testStreamsIndependent() {
+		// A unit's stream does not depend on how much other units have drawn
+		SimulationContext c1 = new SimulationContext(7);
+		SimulationContext c2 = new SimulationContext(7);
+		RandomStream other = c1.streamFor(0);
+		for (int i = 0; i < 1000; i++)
+			other.nextDouble();
+		RandomStream s1 = c1.streamFor(1);
+		RandomStream s2 = c2.streamFor(1);
+		for (int i = 0; i < 100; i++)
+			assertEquals(s2.nextLong(), s1.nextLong());
+		assertFalse(c1.streamFor(2).nextLong() == c1.streamFor(1).nextLong());
+
+		// Draws are uniform on [0, 1)
+		double sum = 0;
+		int n = 100000;
+		for (int i = 0; i < n; i++) {
+			double u = s1.nextDouble();
+			assertTrue(u >= 0.0 && u < 1.0);
+			sum += u;
+		}
+		assertEquals(0.5, sum / n, 0.01);
+	}
+
+	@Test
+	public void testConcurrentRuns() throws Exception {
+		final int[][] expected = new int[numRuns][];
+		for (int r = 0; r < numRuns; r++)
+			expected[r] = run(r);
+
+		final int[][] results = new int[numRuns][];
+		Thread[] threads = new Thread[numRuns];
+		for (int r = 0; r < numRuns; r++) {
+			final int seed = r;
+			threads[r] = new Thread() {
+				public void run() {
+					results[seed] = SimulationContextTest.this.run(seed);
+				}
+			};
+			threads[r].start();
+		}
+		for (int r = 0; r < numRuns; r++) {
+			threads[r].join();
+			assertArrayEquals(expected[r], results[r]);
+		}
+	}
+}
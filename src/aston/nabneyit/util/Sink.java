@@ -9,6 +9,13 @@ import java.util.*;
  * of units processed by all such units is the total number of saleable items
  * from the factory.  Sinks only need an input queue in case they are
  * connected to more than one unit.
+ * <p>
+ * A sink that is {@link #useCounting() counting} does not queue food at
+ * all.  It counts each item as it arrives, keeping a tally for each
+ * {@link Product#typeName() type of product} and a {@link Histogram
+ * Histogram} of the time the items took to pass through the factory,
+ * and recycles the item at once.  As the sinks are in the last layer,
+ * food is counted in the same time step either way.
  *
  * @author Ian T. Nabney
  * @version 2.0
@@ -16,13 +23,26 @@ import java.util.*;
 public class Sink extends Unit {
 
 	protected Queue<Product> q;
+	protected HandleQueue hq = null;
+	// Used instead of the queues when counting on arrival
+	protected boolean counting = false;
+	protected Map<String, int[]> tallies = null;
+	protected Histogram latency = null;
 
 	/**
-	 * Creates a sink object
+	 * Creates a sink object in the default context
 	 */
 	public Sink() {
-		super();
-		q = new LinkedList<Product>();
+		this(SimulationContext.getDefault());
+	}
+
+	/**
+	 * Creates a sink object
+	 * @param ctx context of the simulation that the sink belongs to
+	 */
+	public Sink(SimulationContext ctx) {
+		super(ctx);
+		q = new ArrayDeque<Product>();
 	}
 
 	/**
@@ -30,27 +50,219 @@ public class Sink extends Unit {
 	 */
 	public void tick() {
 		// Sinks are simple; just count the food in the queue and remove
-		// it all
+		// it all, recycling it if possible
+		if (queueLength() == 0)
+			return;
 		while (!q.isEmpty()) {
 			numProcessed++;
-			q.remove();
+			Product p = q.remove();
+			if (metrics != null)
+				metrics.recordWait(p.waitingTime());
+			p.recycle();
+		}
+		if (hq != null) {
+			while (!hq.isEmpty()) {
+				numProcessed++;
+				int h = hq.remove();
+				if (metrics != null)
+					metrics.recordWait(store.waitingTime(h));
+				store.release(h);
+			}
+		}
+		queueChanged();
+	}
+
+	/**
+	 * Makes the sink count food as it arrives instead of queueing it.  Any
+	 * food already waiting is counted now.
+	 */
+	public void useCounting() {
+		if (counting)
+			return;
+		counting = true;
+		tallies = new LinkedHashMap<String, int[]>();
+		latency = new Histogram();
+		while (!q.isEmpty()) {
+			Product p = q.remove();
+			numProcessed++;
+			count(p.typeName(), p.waitingTime());
+			p.recycle();
+		}
+		if (hq != null) {
+			while (!hq.isEmpty()) {
+				int h = hq.remove();
+				numProcessed++;
+				count(store.typeName(h), store.waitingTime(h));
+				store.release(h);
+			}
+		}
+		queueChanged();
+	}
+
+	public boolean isCounting() {
+		return counting;
+	}
+
+	/**
+	 * Returns the number of items of each type that have arrived
+	 * @return counts by type name, in the order that the types first
+	 * arrived; empty unless the sink is counting
+	 */
+	public Map<String, Integer> processedByType() {
+		Map<String, Integer> m = new LinkedHashMap<String, Integer>();
+		if (tallies != null) {
+			for (Map.Entry<String, int[]> e : tallies.entrySet())
+				m.put(e.getKey(), e.getValue()[0]);
 		}
+		return m;
+	}
+
+	/**
+	 * Returns the histogram of the waiting times of the items when they
+	 * arrived, which is the time they took to pass through the factory
+	 * @return histogram, or null unless the sink is counting
+	 */
+	public Histogram latency() {
+		return latency;
 	}
 
 	/**
-	 * Sinks always accept inputs
+	 * Adds an item to the tally of its type and the histogram, and to the
+	 * waiting times in the metrics
+	 */
+	private void count(String type, int waitingTime) {
+		if (metrics != null)
+			metrics.recordWait(waitingTime);
+		int[] tally = tallies.get(type);
+		if (tally == null) {
+			tally = new int[1];
+			tallies.put(type, tally);
+		}
+		tally[0]++;
+		latency.add(waitingTime);
+	}
+
+	/**
+	 * Sets the clock and moves any food waiting in the sink onto it
+	 */
+	public void setClock(SimClock c) {
+		super.setClock(c);
+		for (Product p : q)
+			p.setClock(c);
+	}
+
+	/**
+	 * Saves the counters and any food waiting in the sink, or the tallies
+	 * if it is counting
+	 */
+	protected Object saveState() {
+		List<Product> items = new ArrayList<Product>();
+		for (Product p : q)
+			items.add(p.duplicate());
+		return new Object[] {super.saveState(), items,
+				counting ? processedByType() : null,
+				counting ? latency.copy() : null};
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void restoreState(Object state) {
+		Object[] s = (Object[]) state;
+		super.restoreState(s[0]);
+		q.clear();
+		for (Product p : (List<Product>) s[1])
+			q.add(p.duplicate());
+		if (counting) {
+			tallies.clear();
+			for (Map.Entry<String, Integer> e :
+					((Map<String, Integer>) s[2]).entrySet())
+				tallies.put(e.getKey(), new int[] {e.getValue()});
+			latency = ((Histogram) s[3]).copy();
+		}
+		queueChanged();
+	}
+
+	/**
+	 * Sinks report every change to their queue, except when counting: then
+	 * the queue stays empty, so an item sent to the sink does not add one
+	 * to its length as a router sharing out a chunk would expect
+	 */
+	public boolean reportsQueueChanges() {
+		return !counting;
+	}
+
+	/**
+	 * Sinks accept inputs unless their queue is full
 	 */
 	public boolean acceptsInput() {
-		return true;
+		return hasRoom();
 	}
 
 	public int queueLength() {
-		return q.size();
+		return hq == null ? q.size() : q.size() + hq.size();
 	}
 
 	public void inputProduct(Product p) {
+		if (counting) {
+			numEntered++;
+			numProcessed++;
+			count(p.typeName(), p.waitingTime());
+			p.recycle();
+			return;
+		}
+		inputArrived();
 		q.add(p);
 		numEntered++;
+		queueChanged();
+	}
+
+	/**
+	 * Takes in a chunk of food in one go
+	 */
+	public void inputProducts(List<Product> ps) {
+		if (counting) {
+			for (Product p : ps)
+				inputProduct(p);
+			return;
+		}
+		if (ps.isEmpty())
+			return;
+		inputArrived();
+		q.addAll(ps);
+		numEntered += ps.size();
+		queueChanged();
+	}
+
+	/**
+	 * Keeps stored food as handles
+	 */
+	public void inputHandle(ProductStore s, int h) {
+		if (s != store) {
+			super.inputHandle(s, h);
+			return;
+		}
+		if (counting) {
+			numEntered++;
+			numProcessed++;
+			count(s.typeName(h), s.waitingTime(h));
+			s.release(h);
+			return;
+		}
+		inputArrived();
+		hq.add(h);
+		numEntered++;
+		queueChanged();
+	}
+
+	public void useStore(ProductStore s) {
+		super.useStore(s);
+		hq = new HandleQueue(s);
+	}
+
+	/**
+	 * Sinks only need to run when food has arrived
+	 */
+	protected long nextEventTime() {
+		return queueLength() == 0 ? NEVER : lastTick + 1;
 	}
 
 	public String toString() {
@@ -31,6 +31,20 @@ public class SinkTest {
 		assertEquals(0, s2.numSpoiled());
 	}
 
+	@Test
+	public  void testRecycle() {
+		ProductPool pool = new ProductPool(new Perishable(40), 2);
+		for (int i = 0; i < 3; i++)
+			s1.inputProduct(pool.acquire());
+		s1.tick();
+		// The pool only has room for two of the three items
+		assertEquals(2, pool.size());
+		assertEquals(3, pool.misses());
+		Food f = (Food) pool.acquire();
+		assertEquals(0, f.waitingTime());
+		assertEquals(1, pool.hits());
+	}
+
 	@Test
 	public  void testAcceptsInput() {
 		assertTrue(s1.acceptsInput());
@@ -44,4 +58,38 @@ public class SinkTest {
 		assertEquals(foodArray.length, s2.queueLength());
 	}
 
+	@Test
+	public void testCounting() {
+		// Food already waiting is counted, and food that arrives later is
+		// counted at once and recycled
+		SimClock clock = new SimClock();
+		ProductPool pool = new ProductPool(new Perishable("cheese", 40), 2);
+		s2.useCounting();
+		assertTrue(s2.isCounting());
+		assertEquals(0, s2.queueLength());
+		assertEquals(foodArray.length, s2.numProcessed());
+		for (int t = 0; t < 5; t++)
+			clock.advance();
+		for (int i = 0; i < 2; i++) {
+			Product p = pool.acquire();
+			p.stamp(clock, i);
+			clock.advance();
+			p.tick();
+			s2.inputProduct(p);
+		}
+		assertEquals(0, s2.queueLength());
+		assertEquals(foodArray.length + 2, s2.numProcessed());
+		assertEquals(foodArray.length + 2, s2.numEntered());
+		// The second item is the first one back from the pool
+		assertEquals(1, pool.size());
+		assertEquals(1, pool.hits());
+		assertEquals(Integer.valueOf(2), s2.processedByType().get("cheese"));
+		assertEquals(Integer.valueOf(2),
+				s2.processedByType().get("Perishable"));
+		assertEquals(Integer.valueOf(1),
+				s2.processedByType().get("NonPerishable"));
+		assertEquals(foodArray.length + 2, s2.latency().count());
+		assertEquals(2, s2.latency().max());
+	}
+
 }
@@ -1,13 +1,14 @@
 package aston.nabneyit.util;
 
-import java.util.*;
-
-
 /**
  * Models the arrival of new food items in the factory.  It
  * creates a copy of the type of food stored in the object when it is
- * constructed.  The use of a single random number generator for all
- * sources ensures that the items of food are generated independently.
+ * constructed.  Each source has its own random number generator, taken
+ * from the simulation context, which ensures that the items of food are
+ * generated independently.
+ * <p>
+ * Food that arrives when every queue it could go to is full cannot be
+ * held back, so it is thrown away and counted as spoiled.
  *
  * @author Ian T. Nabney
  * @version 2.0
@@ -15,11 +16,14 @@ import java.util.*;
 
 public class Source extends Unit {
 
-	private static final int DEFAULT_SEED = 42;
-	private static Random gen = new Random(DEFAULT_SEED);
-
+	protected RandomStream gen;
 	protected Product productType;
 	protected double genProb;
+	/** Time steps left until the next arrival; zero if not yet sampled */
+	protected long arrivalCountdown = 0;
+	protected long nextArrival = NEVER;
+	protected int productIndex = -1;
+	protected ProductPool pool = null;
 
 	/**
 	 * Creates a source object
@@ -27,14 +31,31 @@ public class Source extends Unit {
 	 * @param genProb probability of generating a product item in a single time step
 	 */
 	public Source(Product f, double genProb) {
-		super();
-		init(f, genProb);
+		this(SimulationContext.getDefault(), f, genProb);
 	}
 
+	/**
+	 * Creates a source object with its own seed
+	 * @param f defines the type of product that the source generates
+	 * @param genProb probability of generating a product item in a single time step
+	 * @param seed seed for this source's random number generator only
+	 */
 	public Source(Product f, double genProb, int seed) {
 		super();
 		init(f, genProb);
-		gen.setSeed(seed);
+		gen = new RandomStream(seed);
+	}
+
+	/**
+	 * Creates a source object
+	 * @param ctx context of the simulation that the source belongs to
+	 * @param f defines the type of product that the source generates
+	 * @param genProb probability of generating a product item in a single time step
+	 */
+	public Source(SimulationContext ctx, Product f, double genProb) {
+		super(ctx);
+		init(f, genProb);
+		gen = ctx.streamFor(ID);
 	}
 
 	/**
@@ -47,16 +68,112 @@ public class Source extends Unit {
 
 	/**
 	 * Runs the source for one time step.  Generates a new product
-	 * with the appropriate probability.
+	 * with the appropriate probability.  Rather than draw a random number
+	 * in every time step, the source samples the number of steps until the
+	 * next arrival from the geometric distribution and counts down; this
+	 * gives arrivals with exactly the same distribution.
 	 */
 	public void tick() {
-		double prob = gen.nextDouble();
-		// If probability is correct, generate a new piece of food.
-		if (prob < genProb) {
-			Product newProduct = productType.copy();
-			numProcessed++;
-			outC.transferProduct(newProduct);
+		if (arrivalCountdown == 0)
+			arrivalCountdown = ticksUntil(gen, genProb);
+		// If the countdown has finished, generate a new piece of food.
+		if (--arrivalCountdown == 0)
+			generate();
+	}
+
+	/**
+	 * Creates a new product and sends it on, or turns it away if there is
+	 * no room for it
+	 */
+	protected void generate() {
+		numProcessed++;
+		if (!outC.canTransfer()) {
+			numSpoiled++;
+			return;
 		}
+		if (store != null) {
+			outC.transferHandle(store, store.allocate(productIndex));
+			return;
+		}
+		Product newProduct = (pool == null) ? productType.copy() :
+			pool.acquire();
+		newProduct.stamp(clock, context.nextFoodID());
+		outC.transferProduct(newProduct);
+	}
+
+	/**
+	 * Saves the countdown and the state of the random number stream
+	 */
+	protected Object saveState() {
+		return new Object[] {super.saveState(),
+				new long[] {arrivalCountdown, nextArrival, gen.getState()}};
+	}
+
+	protected void restoreState(Object state) {
+		Object[] s = (Object[]) state;
+		super.restoreState(s[0]);
+		long[] own = (long[]) s[1];
+		arrivalCountdown = own[0];
+		nextArrival = own[1];
+		gen.setState(own[2]);
+	}
+
+	/**
+	 * Makes the source take products from a recycling pool rather than
+	 * copying its product type every time
+	 * @param pool pool holding products of this source's type
+	 */
+	public void usePool(ProductPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the product type that the source generates
+	 * @return prototype product
+	 */
+	public Product productType() {
+		return productType;
+	}
+
+	/**
+	 * Registers the product type with the store
+	 */
+	public void useStore(ProductStore s) {
+		super.useStore(s);
+		productIndex = s.registerType(productType);
+	}
+
+	/**
+	 * Works out the time of the first arrival, carrying on from the
+	 * countdown if the source has already been run
+	 */
+	protected void startEvents(long t) {
+		super.startEvents(t);
+		if (arrivalCountdown == 0)
+			arrivalCountdown = ticksUntil(gen, genProb);
+		nextArrival = later(t - 1, arrivalCountdown);
+	}
+
+	/**
+	 * Turns the time of the next arrival back into a countdown, so that the
+	 * source can carry on with {@link #tick()}
+	 */
+	protected void finishEvents(long t) {
+		super.finishEvents(t);
+		arrivalCountdown = (nextArrival == NEVER) ? NEVER : nextArrival - t;
+	}
+
+	protected long nextEventTime() {
+		return nextArrival;
+	}
+
+	/**
+	 * Generates a product and samples the time of the next arrival
+	 */
+	protected void runEvent(long t) {
+		generate();
+		nextArrival = later(t, ticksUntil(gen, genProb));
+		lastTick = t;
 	}
 
 	/**
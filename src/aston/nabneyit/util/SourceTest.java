@@ -60,4 +60,38 @@ public class SourceTest {
 				s1.numProcessed() > numIterations*probPerish*0.9);
 	}
 
+	@Test
+	public void testGeometricGaps() {
+		// Gaps between arrivals should follow the same geometric distribution
+		// as a Bernoulli trial in every time step: P(gap = k) = p(1-p)^(k-1)
+		int numBins = 30;
+		long[] counts = new long[numBins + 1];
+		int numIterations = 200000;
+		int last = -1;
+		int numArrivals = 0;
+		for (int i = 0; i < numIterations; i++) {
+			s1.tick();
+			if (s1.numProcessed() > numArrivals) {
+				numArrivals = s1.numProcessed();
+				int gap = i - last;
+				counts[Math.min(gap, numBins + 1) - 1]++;
+				last = i;
+			}
+		}
+		// Chi-squared goodness of fit; the last bin holds the tail
+		double chi2 = 0;
+		double tail = 1.0;
+		for (int k = 1; k <= numBins + 1; k++) {
+			double prob = (k <= numBins) ?
+					probPerish * Math.pow(1 - probPerish, k - 1) : tail;
+			tail -= prob;
+			double expected = numArrivals * prob;
+			chi2 += (counts[k - 1] - expected) * (counts[k - 1] - expected) /
+					expected;
+		}
+		// 30 degrees of freedom: the 99.9% point is about 59.7
+		assertTrue("chi2 = " + chi2, chi2 < 59.7);
+		assertEquals(probPerish, (double) numArrivals / numIterations, 0.005);
+	}
+
 }
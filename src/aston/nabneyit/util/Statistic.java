@@ -0,0 +1,87 @@
+package aston.nabneyit.util;
+
+/**
+ * Accumulates the mean and variance of a series of observations, such as
+ * the results of independent replications of a simulation, and works out a
+ * 95% confidence interval for the mean.  The running totals are updated
+ * with Welford's method, which is numerically stable.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class Statistic {
+
+	/** 97.5% points of Student's t distribution for 1 to 30 degrees of freedom */
+	private static final double[] T_975 = {
+		12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+		2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+		2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+	};
+	private static final double Z_975 = 1.960;
+
+	private String name;
+	private long n = 0;
+	private double mean = 0.0;
+	private double sumSq = 0.0;
+
+	/**
+	 * Creates an empty statistic
+	 * @param name describes what is being measured
+	 */
+	public Statistic(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Adds an observation
+	 * @param x observed value
+	 */
+	public void add(double x) {
+		n++;
+		double delta = x - mean;
+		mean += delta / n;
+		sumSq += delta * (x - mean);
+	}
+
+	public long count() {
+		return n;
+	}
+
+	public double mean() {
+		return mean;
+	}
+
+	/**
+	 * Returns the sample variance
+	 * @return unbiased estimate of the variance, or 0 with fewer than two
+	 * observations
+	 */
+	public double variance() {
+		return n < 2 ? 0.0 : sumSq / (n - 1);
+	}
+
+	/**
+	 * Returns half the width of the 95% confidence interval for the mean
+	 * @return half-width, or infinity with fewer than two observations
+	 */
+	public double halfWidth() {
+		if (n < 2)
+			return Double.POSITIVE_INFINITY;
+		long df = n - 1;
+		double t = df <= T_975.length ? T_975[(int) df - 1] : Z_975;
+		return t * Math.sqrt(variance() / n);
+	}
+
+	public double lower() {
+		return mean - halfWidth();
+	}
+
+	public double upper() {
+		return mean + halfWidth();
+	}
+
+	public String toString() {
+		return String.format("%s = %.2f +/- %.2f (n=%d, sd=%.2f)", name,
+				mean, halfWidth(), n, Math.sqrt(variance()));
+	}
+}
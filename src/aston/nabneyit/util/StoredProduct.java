@@ -0,0 +1,102 @@
+package aston.nabneyit.util;
+
+/**
+ * Adapts a product held in a {@link ProductStore ProductStore} to the
+ * {@link Product Product} interface, so that code written for product
+ * objects can work with stored products.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class StoredProduct implements Product {
+
+	private ProductStore store;
+	private int handle;
+
+	/**
+	 * Creates a view on a stored product
+	 * @param store store holding the product
+	 * @param handle handle of the product
+	 */
+	public StoredProduct(ProductStore store, int handle) {
+		this.store = store;
+		this.handle = handle;
+	}
+
+	public ProductStore store() {
+		return store;
+	}
+
+	public int handle() {
+		return handle;
+	}
+
+	public void tick() {
+		store.tick(handle);
+	}
+
+	public boolean isRemovable() {
+		return store.isRemovable(handle);
+	}
+
+	/**
+	 * Restarts timing from now; stored products always use the clock of
+	 * their store and keep the ID of their slot
+	 */
+	public void stamp(SimClock clock, int id) {
+		store.stamp(handle);
+	}
+
+	/**
+	 * Stored products always use the clock of their store
+	 */
+	public void setClock(SimClock clock) {
+	}
+
+	/**
+	 * Stored products live in their store, which cannot be rolled back
+	 */
+	public Product duplicate() {
+		throw new IllegalStateException("Stored products cannot be duplicated");
+	}
+
+	public String typeName() {
+		return store.typeName(handle);
+	}
+
+	public int waitingTime() {
+		return store.waitingTime(handle);
+	}
+
+	public long spoilDeadline() {
+		return store.spoilDeadline(handle);
+	}
+
+	/**
+	 * Restarts timing; the slot keeps its ID
+	 */
+	public void reset() {
+		store.stamp(handle);
+	}
+
+	/**
+	 * Stored products are recycled by releasing their slot, so they do not
+	 * use pools
+	 */
+	public void setPool(ProductPool pool) {
+	}
+
+	public void recycle() {
+	}
+
+	/**
+	 * Creates a new product of the same type in the store
+	 */
+	public Product copy() {
+		return store.get(store.allocate(store.type(handle)));
+	}
+
+	public String toString() {
+		return store.toString(handle);
+	}
+}
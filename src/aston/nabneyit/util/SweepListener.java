@@ -0,0 +1,20 @@
+package aston.nabneyit.util;
+
+/**
+ * Receives the results of a {@link ParameterSweep ParameterSweep} as each
+ * point finishes.  The sweep never calls a listener from two threads at
+ * once, but the points may finish in any order; see
+ * {@link OrderedSweepListener OrderedSweepListener}.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public interface SweepListener<R> {
+	/**
+	 * Called when a point of the sweep has been run
+	 * @param index position of the point in the sweep
+	 * @param point value of each parameter
+	 * @param result result of the run
+	 */
+	public abstract void pointFinished(int index, double[] point, R result);
+}
@@ -0,0 +1,20 @@
+package aston.nabneyit.util;
+
+/**
+ * Runs a simulation for a single point of a {@link ParameterSweep
+ * ParameterSweep}.  Points are run at the same time on different threads,
+ * so each run must build its own factory.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public interface SweepModel<R> {
+	/**
+	 * Runs the simulation
+	 * @param point value of each parameter, in the order the parameters
+	 * were given to the sweep
+	 * @param seed seed for the simulation context
+	 * @return result of the run
+	 */
+	public abstract R run(double[] point, long seed);
+}
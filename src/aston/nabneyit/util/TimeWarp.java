@@ -0,0 +1,546 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a {@link LayeredFactory LayeredFactory} as an optimistic parallel
+ * simulation in the style of Time Warp.  The layers are split into groups
+ * of neighbouring layers, called logical processes, and each one is run
+ * by its own thread with its own clock.
+ * <p>
+ * Food sent from one logical process to the next travels as a message
+ * stamped with the time step it was sent in.  A logical process does not
+ * wait for its messages: it carries on as if nothing more will arrive and
+ * saves its state every few time steps.  When a message arrives for a time
+ * step that it has already run (a straggler), it rolls back to the last
+ * saved state before that step, sends anti-messages to cancel everything
+ * it sent from then on, and runs forward again.  An anti-message that
+ * meets a message that has not been used yet simply removes it; otherwise
+ * the receiver rolls back too.  While catching up to the time of the
+ * straggler nothing is sent, because those messages were never cancelled.
+ * <p>
+ * The processes run in rounds.  At the end of each round, when they are
+ * all waiting, the global virtual time is worked out as the earliest time
+ * that any process could still be rolled back to.  Saved states, messages
+ * and records older than that are thrown away (fossil collection), and
+ * in the next round no process may run more than a fixed window ahead of
+ * it, which bounds the memory used.
+ * <p>
+ * Messages are handed on before the receiving process ticks its layers,
+ * in the order they were sent, so the results are the same as calling
+ * {@link LayeredFactory#tick()}.  Connectors that remember their earlier
+ * choices are saved and rolled back by the process that routes through
+ * them.  Product stores and recycling pools
+ * cannot be used, as neither can be rolled back, and the IDs given to food
+ * may differ.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class TimeWarp {
+
+	public static final int DEFAULT_WINDOW = 256;
+	public static final int DEFAULT_SAVE_INTERVAL = 8;
+
+	/** Food sent from one logical process to the next, or its cancellation */
+	private static class Message {
+		final long time;
+		final long id;
+		/** Position among the messages sent in the same time step */
+		final int seq;
+		final Connector target;
+		/** Food as it was sent; only duplicates of it are handed on */
+		final Product product;
+		final boolean anti;
+
+		Message(long time, long id, int seq, Connector target,
+				Product product, boolean anti) {
+			this.time = time;
+			this.id = id;
+			this.seq = seq;
+			this.target = target;
+			this.product = product;
+			this.anti = anti;
+		}
+
+		Message cancel() {
+			return new Message(time, id, seq, target, null, true);
+		}
+	}
+
+	private static final Comparator<Message> BY_SEQ = new Comparator<Message>() {
+		public int compare(Message a, Message b) {
+			return Integer.compare(a.seq, b.seq);
+		}
+	};
+
+	/**
+	 * Stands in for the output connector of a unit at the end of a logical
+	 * process and sends its food to the next process
+	 */
+	private static class WarpOutput extends Connector {
+		private Connector target;
+		private LogicalProcess lp;
+
+		WarpOutput(Connector target, LogicalProcess lp) {
+			this.target = target;
+			this.lp = lp;
+		}
+
+		/** Bounded queues are not allowed, so there is always room */
+		public boolean canTransfer() {
+			return true;
+		}
+
+		public void transferProduct(Product p) {
+			lp.send(target, p);
+		}
+
+		public void transferHandle(ProductStore s, int h) {
+			throw new IllegalStateException(
+					"Product stores cannot be used with Time Warp");
+		}
+	}
+
+	/**
+	 * Group of layers run by one thread
+	 */
+	private class LogicalProcess {
+		final int firstLayer;
+		final int endLayer;
+		final List<Unit> units;
+		/** Connectors that this process sends food through; their choices
+		 * are rolled back along with the units */
+		final List<Connector> connectors = new ArrayList<Connector>();
+		final SimClock clock = new SimClock();
+		LogicalProcess next = null;
+
+		/** Messages and anti-messages sent by the previous process */
+		final Queue<Message> inbox = new ConcurrentLinkedQueue<Message>();
+		/** Messages received, by time step, until fossil collected */
+		final TreeMap<Long, List<Message>> inputs =
+				new TreeMap<Long, List<Message>>();
+		final Map<Long, Message> inputsById = new HashMap<Long, Message>();
+		/** Saved states of the units, by the time step they were saved at
+		 * the start of */
+		final TreeMap<Long, Object[]> saved = new TreeMap<Long, Object[]>();
+		/** Messages sent that could still be cancelled */
+		final Deque<Message> sent = new ArrayDeque<Message>();
+
+		/** Next time step to run */
+		long now;
+		/** Nothing is sent for time steps before this one */
+		long quietUntil;
+		long nextId = 0;
+		int nextSeq = 0;
+
+		long numRollbacks = 0;
+		long ticksRolledBack = 0;
+		long numAntiMessages = 0;
+
+		LogicalProcess(int firstLayer, int endLayer, long start) {
+			this.firstLayer = firstLayer;
+			this.endLayer = endLayer;
+			units = units(firstLayer, endLayer);
+			// Food sent to the first layer is routed by this process when
+			// it arrives
+			Set<Connector> seen = new HashSet<Connector>();
+			for (Unit u : units(Math.max(firstLayer - 1, 0), endLayer - 1)) {
+				if (u.outC != null && seen.add(u.outC))
+					connectors.add(u.outC);
+			}
+			clock.setTime(start);
+			now = start;
+			quietUntil = start;
+		}
+
+		/**
+		 * Runs time steps up to a limit, dealing with messages as they come
+		 */
+		void runTo(long limit) {
+			receive();
+			while (now < limit) {
+				tick();
+				receive();
+			}
+		}
+
+		/**
+		 * Runs one time step: saves the state if it is due, hands on the
+		 * food sent for this step and then ticks the layers
+		 */
+		void tick() {
+			if ((now - start) % saveInterval == 0 && !saved.containsKey(now))
+				save();
+			List<Message> in = inputs.get(now);
+			if (in != null) {
+				// Hand on neighbouring messages to the same connector as
+				// one chunk
+				Collections.sort(in, BY_SEQ);
+				List<Product> chunk = new ArrayList<Product>();
+				for (int i = 0; i < in.size(); i++) {
+					Message m = in.get(i);
+					Product p = m.product.duplicate();
+					p.setClock(clock);
+					chunk.add(p);
+					if (i + 1 == in.size() || in.get(i + 1).target != m.target) {
+						m.target.transferProducts(chunk);
+						chunk.clear();
+					}
+				}
+			}
+			nextSeq = 0;
+			for (int i = firstLayer; i < endLayer; i++)
+				fac.getLayer(i).tick();
+			clock.advance();
+			now++;
+		}
+
+		/**
+		 * Sends food to the next process, unless catching up after a
+		 * rollback
+		 * @param target real connector
+		 * @param p food
+		 */
+		void send(Connector target, Product p) {
+			long t = clock.now();
+			if (t < quietUntil)
+				return;
+			Message m = new Message(t, nextId++, nextSeq++, target, p, false);
+			sent.addLast(m);
+			next.inbox.add(m);
+		}
+
+		/**
+		 * Deals with the messages and anti-messages that have arrived
+		 */
+		void receive() {
+			Message m;
+			while ((m = inbox.poll()) != null) {
+				if (m.anti) {
+					Message orig = inputsById.remove(m.id);
+					inputs.get(orig.time).remove(orig);
+					if (orig.time < now)
+						rollback(orig.time);
+				}
+				else {
+					List<Message> list = inputs.get(m.time);
+					if (list == null) {
+						list = new ArrayList<Message>();
+						inputs.put(m.time, list);
+					}
+					list.add(m);
+					inputsById.put(m.id, m);
+					if (m.time < now)
+						rollback(m.time);
+				}
+			}
+		}
+
+		void save() {
+			int n = units.size();
+			Object[] state = new Object[n + connectors.size()];
+			for (int i = 0; i < n; i++)
+				state[i] = units.get(i).saveState();
+			for (int i = 0; i < connectors.size(); i++)
+				state[n + i] = connectors.get(i).saveState();
+			saved.put(now, state);
+		}
+
+		/**
+		 * Goes back to the start of time step t
+		 */
+		void rollback(long t) {
+			numRollbacks++;
+			ticksRolledBack += now - t;
+			long from = saved.floorKey(t);
+			Object[] state = saved.get(from);
+			int n = units.size();
+			for (int i = 0; i < n; i++)
+				units.get(i).restoreState(state[i]);
+			for (int i = 0; i < connectors.size(); i++)
+				connectors.get(i).restoreState(state[n + i]);
+			saved.tailMap(t, false).clear();
+
+			// Cancel everything sent from time step t on
+			while (!sent.isEmpty() && sent.peekLast().time >= t) {
+				next.inbox.add(sent.pollLast().cancel());
+				numAntiMessages++;
+			}
+			quietUntil = t;
+			now = from;
+			clock.setTime(from);
+		}
+
+		/**
+		 * Returns the earliest time this process could be rolled back to
+		 */
+		long earliestTime() {
+			long t = now;
+			for (Message m : inbox)
+				t = Math.min(t, m.time);
+			return t;
+		}
+
+		/**
+		 * Throws away what can no longer be needed once nothing can roll
+		 * back before time step gvt
+		 */
+		void collectFossils(long gvt) {
+			while (!sent.isEmpty() && sent.peekFirst().time < gvt)
+				sent.pollFirst();
+			Long keep = saved.floorKey(gvt);
+			if (keep == null)
+				return;
+			saved.headMap(keep, false).clear();
+			Iterator<List<Message>> i = inputs.headMap(keep, false).values().iterator();
+			while (i.hasNext()) {
+				for (Message m : i.next())
+					inputsById.remove(m.id);
+				i.remove();
+			}
+		}
+	}
+
+	private LayeredFactory fac;
+	/** Index of the first layer of each process, followed by the number of
+	 * layers */
+	private int[] firstLayer;
+	private int window;
+	private int saveInterval;
+
+	// Used while running
+	private long start;
+	private long end;
+	private volatile long gvt;
+	private volatile Throwable failure;
+	private long numRounds = 0;
+	private LogicalProcess[] lps;
+
+	/**
+	 * Creates a simulation with the default window and save interval
+	 * @param fac factory to run
+	 * @param numProcesses number of logical processes; the layers are
+	 * shared between them as evenly as possible
+	 */
+	public TimeWarp(LayeredFactory fac, int numProcesses) {
+		this(fac, numProcesses, DEFAULT_WINDOW, DEFAULT_SAVE_INTERVAL);
+	}
+
+	/**
+	 * Creates a simulation
+	 * @param fac factory to run
+	 * @param numProcesses number of logical processes; the layers are
+	 * shared between them as evenly as possible
+	 * @param window how many time steps a process may run ahead of the
+	 * global virtual time in each round
+	 * @param saveInterval number of time steps between saved states
+	 */
+	public TimeWarp(LayeredFactory fac, int numProcesses, int window,
+			int saveInterval) {
+		if (numProcesses < 1)
+			throw new IllegalArgumentException("Need at least one process");
+		if (window < 1 || saveInterval < 1)
+			throw new IllegalArgumentException("Illegal window or interval");
+		int numLayers = fac.numLayers();
+		numProcesses = Math.min(numProcesses, numLayers);
+		this.fac = fac;
+		this.window = window;
+		this.saveInterval = saveInterval;
+		firstLayer = new int[numProcesses + 1];
+		for (int g = 0; g <= numProcesses; g++)
+			firstLayer[g] = g * numLayers / numProcesses;
+	}
+
+	public int numProcesses() {
+		return firstLayer.length - 1;
+	}
+
+	/**
+	 * Runs the factory for a number of time steps.  When it returns, the
+	 * factory is back in its usual state and can be ticked as normal.
+	 * @param numTicks number of time steps
+	 */
+	public void run(long numTicks) {
+		if (fac.productStore() != null)
+			throw new IllegalStateException(
+					"Product stores cannot be used with Time Warp");
+		if (usesPools())
+			throw new IllegalStateException(
+					"Recycling pools cannot be used with Time Warp");
+		if (fac.hasBoundedQueues())
+			throw new IllegalStateException(
+					"Bounded queues cannot be used with Time Warp");
+		final int n = numProcesses();
+		start = fac.clock().now();
+		end = start + numTicks;
+		gvt = start;
+		failure = null;
+
+		lps = new LogicalProcess[n];
+		for (int g = 0; g < n; g++) {
+			lps[g] = new LogicalProcess(firstLayer[g], firstLayer[g + 1], start);
+			for (Unit u : lps[g].units)
+				u.setClock(lps[g].clock);
+		}
+		Map<Unit, Connector> outputs = new HashMap<Unit, Connector>();
+		for (int g = 0; g < n - 1; g++) {
+			lps[g].next = lps[g + 1];
+			for (Unit u : units(firstLayer[g + 1] - 1, firstLayer[g + 1])) {
+				if (u.outC != null) {
+					outputs.put(u, u.outC);
+					u.outC = new WarpOutput(u.outC, lps[g]);
+				}
+			}
+		}
+
+		// Work out the global virtual time whenever all the processes are
+		// waiting at the end of a round.  A process that fails leaves the
+		// phaser, so that the others are not left waiting for it.
+		final Phaser rounds = new Phaser(n) {
+			protected boolean onAdvance(int phase, int parties) {
+				if (failure != null || parties == 0)
+					return true;
+				numRounds++;
+				long t = end;
+				for (LogicalProcess lp : lps)
+					t = Math.min(t, lp.earliestTime());
+				for (LogicalProcess lp : lps)
+					lp.collectFossils(t);
+				gvt = t;
+				return t >= end;
+			}
+		};
+
+		Thread[] threads = new Thread[n];
+		for (int g = 0; g < n; g++) {
+			final LogicalProcess lp = lps[g];
+			threads[g] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (gvt < end && failure == null) {
+							lp.runTo(Math.min(end, gvt + window));
+							rounds.arriveAndAwaitAdvance();
+						}
+					}
+					catch (Throwable e) {
+						if (failure == null)
+							failure = e;
+						rounds.arriveAndDeregister();
+					}
+				}
+			}, "time-warp-" + g);
+			threads[g].start();
+		}
+
+		try {
+			for (Thread t : threads) {
+				boolean interrupted = false;
+				while (true) {
+					try {
+						t.join();
+						break;
+					}
+					catch (InterruptedException e) {
+						interrupted = true;
+						if (failure == null)
+							failure = e;
+					}
+				}
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+		finally {
+			// Put the factory back together
+			for (Map.Entry<Unit, Connector> e : outputs.entrySet())
+				e.getKey().outC = e.getValue();
+			fac.clock().setTime(failure == null ? end : lps[0].now);
+			for (Unit u : units(0, fac.numLayers()))
+				u.setClock(fac.clock());
+		}
+
+		Throwable e = failure;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+		if (e != null)
+			throw new IllegalStateException("Time Warp failed", e);
+	}
+
+	/**
+	 * Checks whether any source takes food from a recycling pool
+	 */
+	private boolean usesPools() {
+		for (Unit u : units(0, fac.numLayers())) {
+			if (u instanceof Source && ((Source) u).pool != null)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Lists the units in a range of layers
+	 */
+	private List<Unit> units(int from, int to) {
+		List<Unit> list = new ArrayList<Unit>();
+		for (int n = from; n < to; n++) {
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext())
+				list.add(i.next());
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the number of rounds in the last run
+	 * @return number of rounds
+	 */
+	public long numRounds() {
+		return numRounds;
+	}
+
+	/**
+	 * Returns the number of rollbacks in the last run
+	 * @return number of rollbacks
+	 */
+	public long numRollbacks() {
+		long n = 0;
+		for (LogicalProcess lp : lps)
+			n += lp.numRollbacks;
+		return n;
+	}
+
+	/**
+	 * Returns the number of time steps that were undone by rollbacks
+	 * @return time steps rolled back
+	 */
+	public long ticksRolledBack() {
+		long n = 0;
+		for (LogicalProcess lp : lps)
+			n += lp.ticksRolledBack;
+		return n;
+	}
+
+	/**
+	 * Returns the number of anti-messages sent in the last run
+	 * @return number of anti-messages
+	 */
+	public long numAntiMessages() {
+		long n = 0;
+		for (LogicalProcess lp : lps)
+			n += lp.numAntiMessages;
+		return n;
+	}
+
+	public String toString() {
+		if (lps == null)
+			return "Time Warp with " + numProcesses() + " processes";
+		return "Time Warp with " + numProcesses() + " processes: " +
+				numRounds + " rounds, " + numRollbacks() + " rollbacks of " +
+				ticksRolledBack() + " ticks, " + numAntiMessages() +
+				" anti-messages";
+	}
+}
@@ -0,0 +1,141 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+import aston.nabneyit.model.Perishable;
+
+public class TimeWarpTest {
+	private static final int numTicks = 3000;
+
+	/**
+	 * Builds a factory with a router between the machine layers
+	 */
+	private LayeredFactory makeFactory(long seed) {
+		return makeFactory(seed, new IntelligentRouter());
+	}
+
+	/**
+	 * Builds a factory with the given connector between the machine layers
+	 */
+	private LayeredFactory makeFactory(long seed, Connector router) {
+		SimulationContext ctx = new SimulationContext(seed);
+		LayeredFactory fac = new LayeredFactory(5);
+		for (int i = 0; i < 6; i++) {
+			Product p = (i % 3 == 2) ? new NonPerishable() : new Perishable(40 + i);
+			fac.addUnit(new Source(ctx, p, 0.04), 0);
+			fac.addUnit(new Machine(ctx, 15 + i, 0.003, 60), 1);
+		}
+		for (int i = 0; i < 3; i++) {
+			fac.addUnit(new Machine(ctx, 10, 0.003, 60), 2);
+			fac.addUnit(new Machine(ctx, 5, 0.003, 30), 3);
+			fac.addUnit(new Sink(ctx), 4);
+		}
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1, router);
+		fac.directConnectLayers(2);
+		fac.directConnectLayers(3);
+		return fac;
+	}
+
+	private List<Unit> units(LayeredFactory fac) {
+		List<Unit> units = new ArrayList<Unit>();
+		for (int n = 0; n < fac.numLayers(); n++) {
+			Iterator<Unit> i = fac.getLayer(n).iterator();
+			while (i.hasNext())
+				units.add(i.next());
+		}
+		return units;
+	}
+
+	private List<Integer> unitState(LayeredFactory fac) {
+		List<Integer> state = new ArrayList<Integer>();
+		for (Unit u : units(fac)) {
+			state.add(u.numProcessed());
+			state.add(u.numSpoiled());
+			state.add(u.queueLength());
+		}
+		return state;
+	}
+
+	@Test
+	public void testSaveAndRestore() {
+		LayeredFactory fac = makeFactory(1);
+		for (int t = 0; t < 500; t++)
+			fac.tick();
+		List<Unit> units = units(fac);
+		List<Object> saved = new ArrayList<Object>();
+		for (Unit u : units)
+			saved.add(u.saveState());
+
+		// Running on from the saved state twice gives the same result
+		for (int t = 0; t < 1000; t++)
+			fac.tick();
+		List<Integer> first = unitState(fac);
+		for (int k = 0; k < 2; k++) {
+			for (int i = 0; i < units.size(); i++)
+				units.get(i).restoreState(saved.get(i));
+			fac.clock().setTime(500);
+			for (int t = 0; t < 1000; t++)
+				fac.tick();
+			assertEquals(first, unitState(fac));
+		}
+	}
+
+	@Test
+	public void testMatchesSerial() {
+		for (int lps = 1; lps <= 5; lps++) {
+			LayeredFactory f1 = makeFactory(lps);
+			LayeredFactory f2 = makeFactory(lps);
+			for (int t = 0; t < numTicks; t++)
+				f1.tick();
+			// A short window and save interval exercise fossil collection
+			TimeWarp tw = new TimeWarp(f2, lps, 50, 4);
+			tw.run(numTicks / 2);
+			tw.run(numTicks - numTicks / 2);
+			assertEquals(numTicks, f2.clock().now());
+			assertEquals(unitState(f1), unitState(f2));
+			assertTrue(tw.numRounds() > 0);
+
+			// The factory carries on as normal afterwards
+			for (int t = 0; t < 500; t++) {
+				f1.tick();
+				f2.tick();
+			}
+			assertEquals(unitState(f1), unitState(f2));
+		}
+	}
+
+	@Test
+	public void testRollBackRouters() {
+		// Routers that draw random numbers or take turns are rolled back
+		// with the units, so the results still match
+		for (int lps = 2; lps <= 4; lps++) {
+			for (int kind = 0; kind < 2; kind++) {
+				LayeredFactory f1 = makeFactory(lps, router(kind, lps));
+				LayeredFactory f2 = makeFactory(lps, router(kind, lps));
+				for (int t = 0; t < numTicks; t++)
+					f1.tick();
+				new TimeWarp(f2, lps, 50, 4).run(numTicks);
+				assertEquals(unitState(f1), unitState(f2));
+			}
+		}
+	}
+
+	private Connector router(int kind, long seed) {
+		if (kind == 0)
+			return new SampledRouter(2, new RandomStream(seed));
+		return new RoundRobinRouter();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNoRecycling() {
+		LayeredFactory fac = makeFactory(0);
+		fac.useRecycling(16);
+		new TimeWarp(fac, 2).run(10);
+	}
+}
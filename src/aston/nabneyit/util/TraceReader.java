@@ -0,0 +1,179 @@
+package aston.nabneyit.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads a file written by a {@link TraceRecorder TraceRecorder}.  A column
+ * is read over a range of time steps by working out where its values lie
+ * in each block the range covers and reading only those bytes, so the
+ * cost depends on the length of the range and not on the size of the
+ * file.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class TraceReader implements Closeable {
+
+	private FileChannel channel;
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, Integer> columns = new HashMap<String, Integer>();
+	private final int blockRows;
+	private final int interval;
+	private final long start;
+	private final long numRows;
+	private final int headerSize;
+	private final long blockBytes;
+
+	/**
+	 * Opens a trace file and reads its header
+	 * @param file file written by a recorder
+	 * @exception IOException if the file cannot be read or is not a trace
+	 */
+	public TraceReader(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer fixed = read(0, TraceRecorder.NAMES_AT);
+			if (fixed.getInt(0) != TraceRecorder.MAGIC ||
+					fixed.getInt(4) != TraceRecorder.VERSION)
+				throw new IOException("Not a trace file: " + file);
+			int numColumns = fixed.getInt(TraceRecorder.NUM_COLUMNS_AT);
+			blockRows = fixed.getInt(TraceRecorder.BLOCK_ROWS_AT);
+			interval = fixed.getInt(TraceRecorder.INTERVAL_AT);
+			headerSize = fixed.getInt(TraceRecorder.HEADER_SIZE_AT);
+			start = fixed.getLong(TraceRecorder.START_AT);
+			numRows = fixed.getLong(TraceRecorder.NUM_ROWS_AT);
+			blockBytes = 4L * numColumns * blockRows;
+
+			ByteBuffer head = read(0, headerSize);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					head.array(), TraceRecorder.NAMES_AT,
+					headerSize - TraceRecorder.NAMES_AT));
+			for (int c = 0; c < numColumns; c++) {
+				String name = in.readUTF();
+				columns.put(name, c);
+				names.add(name);
+			}
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads bytes from a position in the file
+	 */
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0)
+				throw new EOFException("Trace file is cut short");
+		}
+		buf.flip();
+		return buf;
+	}
+
+	public int numColumns() {
+		return names.size();
+	}
+
+	public String columnName(int c) {
+		return names.get(c);
+	}
+
+	/**
+	 * Finds a column by name, such as <tt>layer1.unit0.queue</tt>
+	 * @param name name of column
+	 * @return index of column, or -1 if there is none of that name
+	 */
+	public int column(String name) {
+		Integer c = columns.get(name);
+		return c == null ? -1 : c.intValue();
+	}
+
+	public long numRows() {
+		return numRows;
+	}
+
+	/**
+	 * Returns the time step recorded in a row
+	 * @param row index of row
+	 * @return time step
+	 */
+	public long timeOf(long row) {
+		return start + row * interval;
+	}
+
+	/**
+	 * Returns the time steps from one row to the next
+	 */
+	public int interval() {
+		return interval;
+	}
+
+	/**
+	 * Reads the values of a column at the recorded time steps in a range
+	 * @param c index of column
+	 * @param from first time step of the range
+	 * @param to time step after the last of the range
+	 * @return values in order of time; empty if no recorded step is in the
+	 * range
+	 * @exception IOException if the file cannot be read
+	 */
+	public int[] read(int c, long from, long to) throws IOException {
+		if (c < 0 || c >= names.size())
+			throw new IndexOutOfBoundsException("No column " + c);
+		// Rows whose time steps fall in the range
+		long first = Math.max(0, ceilDiv(from - start, interval));
+		long end = Math.min(numRows,
+				Math.max(0, ceilDiv(to - start, interval)));
+		if (first >= end)
+			return new int[0];
+		int[] values = new int[(int) (end - first)];
+		int k = 0;
+		for (long row = first; row < end; ) {
+			long b = row / blockRows;
+			int r = (int) (row % blockRows);
+			int n = (int) Math.min(blockRows - r, end - row);
+			long position = headerSize + b * blockBytes +
+				4L * ((long) c * blockRows + r);
+			read(position, 4 * n).asIntBuffer().get(values, k, n);
+			k += n;
+			row += n;
+		}
+		return values;
+	}
+
+	/**
+	 * Reads the values of a column by name
+	 * @param name name of column
+	 * @param from first time step of the range
+	 * @param to time step after the last of the range
+	 * @return values in order of time
+	 * @exception IllegalArgumentException if there is no such column
+	 * @exception IOException if the file cannot be read
+	 */
+	public int[] read(String name, long from, long to) throws IOException {
+		int c = column(name);
+		if (c < 0)
+			throw new IllegalArgumentException("No column " + name);
+		return read(c, from, to);
+	}
+
+	/**
+	 * Divides, rounding up, for a positive divisor
+	 */
+	private static long ceilDiv(long a, long b) {
+		return a >= 0 ? (a + b - 1) / b : -((-a) / b);
+	}
+
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+		channel = null;
+	}
+}
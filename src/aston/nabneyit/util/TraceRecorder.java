@@ -0,0 +1,230 @@
+package aston.nabneyit.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Records the state of every unit of a {@link LayeredFactory
+ * LayeredFactory} in each time step, or in every <code>interval</code>th
+ * step, to a file that can be read back by a {@link TraceReader
+ * TraceReader}.  For each unit there are columns for the queue length and
+ * the counts of items entered, processed and spoiled so far, and for
+ * machines the number of servers jammed.  Every value is a four-byte int,
+ * so a row is the same size at every time step.
+ * <p>
+ * The file starts with a header giving the column names, and the rows
+ * follow in blocks of a fixed number of rows.  Within a block each column
+ * is stored contiguously, so one column over a range of time steps is a
+ * few contiguous runs of bytes whose positions can be worked out from the
+ * header.  The block being filled is mapped into memory, so recording a
+ * row is a store to memory for each column.  The operating system writes
+ * the pages back to the file.
+ * <p>
+ * The factory records a row after each {@link LayeredFactory#tick()},
+ * whether the units are ticked one after another or in parallel and
+ * whether or not the factory uses a {@link ProductStore ProductStore}.
+ * Time steps run by an {@link EventSimulator EventSimulator}, a
+ * {@link Pipeline Pipeline}, {@link TimeWarp TimeWarp}, a
+ * {@link CompiledFactory CompiledFactory} or a {@link ReplicaEngine
+ * ReplicaEngine} do not go through that method and are not recorded.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class TraceRecorder implements Closeable {
+
+	/** Marks the start of a trace file */
+	public static final int MAGIC = 0x46505452;
+	public static final int VERSION = 1;
+	/** Rows in a block unless given otherwise */
+	public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+	// Offsets of the fields of the header
+	static final int NUM_COLUMNS_AT = 8;
+	static final int BLOCK_ROWS_AT = 12;
+	static final int INTERVAL_AT = 16;
+	static final int HEADER_SIZE_AT = 20;
+	static final int START_AT = 24;
+	static final int NUM_ROWS_AT = 32;
+	static final int NAMES_AT = 40;
+
+	private final LayeredFactory fac;
+	private final List<Unit> units = new ArrayList<Unit>();
+	private final List<String> names = new ArrayList<String>();
+	private final int[] firstColumn;
+	private final boolean[] hasJamColumn;
+	private final int interval;
+	private final int blockRows;
+	private final long start;
+	private final int headerSize;
+	private final long blockBytes;
+
+	private FileChannel channel;
+	private MappedByteBuffer header;
+	private MappedByteBuffer block = null;
+	private IntBuffer columns = null;
+	private long numRows = 0;
+
+	/**
+	 * Creates a recorder that records every time step
+	 * @param fac factory to record
+	 * @param file file to write, replacing any that exists
+	 * @exception IOException if the file cannot be written
+	 */
+	public TraceRecorder(LayeredFactory fac, File file) throws IOException {
+		this(fac, file, 1, DEFAULT_BLOCK_ROWS);
+	}
+
+	/**
+	 * Creates a recorder.  Units added to the factory later are not
+	 * recorded.
+	 * @param fac factory to record
+	 * @param file file to write, replacing any that exists
+	 * @param interval time steps from one recorded row to the next
+	 * @param blockRows rows in each block of the file
+	 * @exception IOException if the file cannot be written
+	 */
+	public TraceRecorder(LayeredFactory fac, File file, int interval,
+			int blockRows) throws IOException {
+		if (interval < 1 || blockRows < 1)
+			throw new IllegalArgumentException("Interval " + interval +
+					" and block size " + blockRows + " must be positive");
+		this.fac = fac;
+		this.interval = interval;
+		this.blockRows = blockRows;
+		start = fac.clock().now();
+		int numUnits = 0;
+		for (int l = 0; l < fac.numLayers(); l++)
+			numUnits += fac.getLayer(l).numUnits();
+		firstColumn = new int[numUnits];
+		hasJamColumn = new boolean[numUnits];
+		int u = 0;
+		for (int l = 0; l < fac.numLayers(); l++) {
+			Iterator<Unit> i = fac.getLayer(l).iterator();
+			for (int k = 0; i.hasNext(); k++, u++) {
+				Unit unit = i.next();
+				units.add(unit);
+				String prefix = "layer" + l + ".unit" + k + ".";
+				firstColumn[u] = names.size();
+				names.add(prefix + "queue");
+				names.add(prefix + "entered");
+				names.add(prefix + "processed");
+				names.add(prefix + "spoiled");
+				hasJamColumn[u] = unit instanceof Machine ||
+					unit instanceof MultiServerMachine;
+				if (hasJamColumn[u])
+					names.add(prefix + "jammed");
+			}
+		}
+		blockBytes = 4L * names.size() * blockRows;
+
+		byte[] head = headerBytes();
+		headerSize = head.length;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize);
+		header.put(head);
+		fac.setRecorder(this);
+	}
+
+	/**
+	 * Lays out the header; the names are padded to a multiple of eight
+	 * bytes so that the blocks are aligned
+	 */
+	private byte[] headerBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(names.size());
+		out.writeInt(blockRows);
+		out.writeInt(interval);
+		out.writeInt(0);
+		out.writeLong(start);
+		out.writeLong(0);
+		for (String name : names)
+			out.writeUTF(name);
+		while (out.size() % 8 != 0)
+			out.writeByte(0);
+		out.close();
+		byte[] b = bytes.toByteArray();
+		ByteBuffer.wrap(b).putInt(HEADER_SIZE_AT, b.length);
+		return b;
+	}
+
+	/**
+	 * Records the state of the units at the end of a time step, if it is
+	 * one of the steps to be recorded
+	 * @param t time step that has just been run
+	 * @exception IllegalStateException if the file cannot be extended
+	 */
+	void record(long t) {
+		if ((t - start) % interval != 0)
+			return;
+		int r = (int) (numRows % blockRows);
+		if (r == 0)
+			mapBlock(numRows / blockRows);
+		for (int u = 0; u < units.size(); u++) {
+			Unit unit = units.get(u);
+			int c = firstColumn[u];
+			columns.put(c * blockRows + r, unit.queueLength());
+			columns.put((c + 1) * blockRows + r, unit.numEntered());
+			columns.put((c + 2) * blockRows + r, unit.numProcessed());
+			columns.put((c + 3) * blockRows + r, unit.numSpoiled());
+			if (hasJamColumn[u])
+				columns.put((c + 4) * blockRows + r, jammed(unit));
+		}
+		numRows++;
+		header.putLong(NUM_ROWS_AT, numRows);
+	}
+
+	private static int jammed(Unit u) {
+		if (u instanceof Machine)
+			return ((Machine) u).isJammed() ? 1 : 0;
+		return ((MultiServerMachine) u).numJammed();
+	}
+
+	/**
+	 * Maps the next block of the file into memory, which extends the file
+	 */
+	private void mapBlock(long b) {
+		try {
+			block = channel.map(FileChannel.MapMode.READ_WRITE,
+					headerSize + b * blockBytes, blockBytes);
+			columns = block.asIntBuffer();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Cannot extend trace file", e);
+		}
+	}
+
+	public long numRows() {
+		return numRows;
+	}
+
+	public int numColumns() {
+		return names.size();
+	}
+
+	/**
+	 * Writes out everything recorded and closes the file.  The factory
+	 * stops recording.
+	 * @exception IOException if the file cannot be written
+	 */
+	public void close() throws IOException {
+		if (channel == null)
+			return;
+		if (block != null)
+			block.force();
+		header.force();
+		channel.close();
+		channel = null;
+		fac.stopRecording(this);
+		block = null;
+		columns = null;
+	}
+}
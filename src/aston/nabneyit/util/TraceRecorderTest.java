@@ -0,0 +1,119 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.*;
+
+public class TraceRecorderTest {
+	private static final int numTicks = 500;
+
+	private LayeredFactory makeFactory() {
+		SimulationContext ctx = new SimulationContext(5);
+		LayeredFactory fac = new LayeredFactory(4);
+		for (int i = 0; i < 2; i++) {
+			fac.addUnit(new Source(ctx, new Perishable(30), 0.2), 0);
+			fac.addUnit(new Machine(ctx, 4, 0.05, 3), 1);
+		}
+		fac.addUnit(new Machine(ctx, 3, 0.05, 2), 2);
+		fac.addUnit(new Sink(ctx), 3);
+		fac.directConnectLayers(0);
+		fac.multiConnectLayers(1);
+		fac.multiConnectLayers(2);
+		return fac;
+	}
+
+	/**
+	 * Runs a factory, keeping the state of every unit after each time
+	 * step in the order of the columns of a trace
+	 */
+	private List<int[]> runInMemory(LayeredFactory fac) {
+		List<int[]> rows = new ArrayList<int[]>();
+		for (int t = 0; t < numTicks; t++) {
+			fac.tick();
+			List<Integer> row = new ArrayList<Integer>();
+			for (int l = 0; l < fac.numLayers(); l++) {
+				Iterator<Unit> i = fac.getLayer(l).iterator();
+				while (i.hasNext()) {
+					Unit u = i.next();
+					row.add(u.queueLength());
+					row.add(u.numEntered());
+					row.add(u.numProcessed());
+					row.add(u.numSpoiled());
+					if (u instanceof Machine)
+						row.add(((Machine) u).isJammed() ? 1 : 0);
+				}
+			}
+			int[] values = new int[row.size()];
+			for (int c = 0; c < values.length; c++)
+				values[c] = row.get(c);
+			rows.add(values);
+		}
+		return rows;
+	}
+
+	@Test
+	public void testReadColumns() throws IOException {
+		List<int[]> expected = runInMemory(makeFactory());
+		File file = File.createTempFile("trace", ".dat");
+		file.deleteOnExit();
+		LayeredFactory fac = makeFactory();
+		// Every third time step, in blocks of 16 rows
+		TraceRecorder rec = new TraceRecorder(fac, file, 3, 16);
+		for (int t = 0; t < numTicks; t++)
+			fac.tick();
+		rec.close();
+		// Time steps after closing are not recorded
+		fac.tick();
+		assertEquals((numTicks + 2) / 3, rec.numRows());
+
+		TraceReader in = new TraceReader(file);
+		try {
+			assertEquals(rec.numColumns(), in.numColumns());
+			assertEquals(expected.get(0).length, in.numColumns());
+			assertEquals(rec.numRows(), in.numRows());
+			assertEquals(3, in.interval());
+			assertEquals(0, in.column("layer0.unit0.queue"));
+			assertEquals("layer1.unit1.jammed", in.columnName(
+					in.column("layer1.unit1.jammed")));
+			assertEquals(-1, in.column("layer3.unit0.jammed"));
+			for (int c = 0; c < in.numColumns(); c++) {
+				int[] all = in.read(c, 0, numTicks);
+				assertEquals(in.numRows(), all.length);
+				for (int r = 0; r < all.length; r++)
+					assertEquals(expected.get(3 * r)[c], all[r]);
+			}
+			// A range that starts and ends part way through blocks
+			int c = in.column("layer2.unit0.entered");
+			int[] part = in.read("layer2.unit0.entered", 100, 250);
+			assertEquals(102, in.timeOf(34));
+			assertEquals(50, part.length);
+			for (int r = 0; r < part.length; r++)
+				assertEquals(expected.get(102 + 3 * r)[c], part[r]);
+			assertEquals(0, in.read(c, 101, 102).length);
+			assertEquals(0, in.read(c, numTicks, numTicks + 100).length);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testRecordingLeavesRunUnchanged() throws IOException {
+		LayeredFactory plain = makeFactory();
+		runInMemory(plain);
+		File file = File.createTempFile("trace", ".dat");
+		file.deleteOnExit();
+		LayeredFactory fac = makeFactory();
+		TraceRecorder rec = new TraceRecorder(fac, file);
+		for (int t = 0; t < numTicks; t++)
+			fac.tick();
+		rec.close();
+		assertEquals(numTicks, rec.numRows());
+		assertEquals(plain.toString(), fac.toString());
+	}
+}
@@ -1,6 +1,7 @@
 
 package aston.nabneyit.util;
 
+import java.util.*;
 
 /**
  * Defines the abstract base class for the processing units in a Factory.
@@ -11,20 +12,52 @@ package aston.nabneyit.util;
 public abstract class Unit {
 
 	protected int ID;
-	protected static int unitID = 0;
+	protected SimulationContext context;
 
 	protected Connector inC = null;
 	protected Connector outC = null;
+	protected SimClock clock = new SimClock();
+	protected ProductStore store = null;
 
 	protected int numSpoiled = 0;
 	protected int numProcessed = 0;
 	protected int numEntered = 0;
 
+	/** Most items the input queue may hold, or zero if there is no limit */
+	protected int capacity = 0;
+
+	/** Where the unit's time goes; null unless metrics are in use */
+	protected UnitMetrics metrics = null;
+
 	/**
-	 * Constructs a unit with a unique ID.
+	 * Time value used for events that will never happen
+	 */
+	public static final long NEVER = Long.MAX_VALUE;
+
+	// Variables associated with event-driven simulation
+	protected long lastTick = -1;
+	EventSimulator scheduler = null;
+
+	// Told about changes to the input queue; copied on write, as there are
+	// few of them and they are called far more often than changed
+	private static final QueueListener[] NO_LISTENERS = new QueueListener[0];
+	private volatile QueueListener[] queueListeners = NO_LISTENERS;
+
+	/**
+	 * Constructs a unit with a unique ID in the default context.
 	 */
 	public Unit() {
-		ID = unitID++;
+		this(SimulationContext.getDefault());
+	}
+
+	/**
+	 * Constructs a unit with a unique ID.
+	 *
+	 * @param ctx context of the simulation that the unit belongs to
+	 */
+	public Unit(SimulationContext ctx) {
+		context = ctx;
+		ID = ctx.nextUnitID();
 	}
 
 	/**
@@ -53,6 +86,64 @@ public abstract class Unit {
 	 */
 	public abstract void inputProduct(Product p);
 
+	/**
+	 * Takes in a chunk of food items, in order.  The default takes them
+	 * one at a time; units that can add a chunk to their queue in one go
+	 * should override this.
+	 *
+	 * @param ps Food items taken in.
+	 */
+	public void inputProducts(List<Product> ps) {
+		for (Product p : ps)
+			inputProduct(p);
+	}
+
+	/**
+	 * Takes in a food item held in a {@link ProductStore ProductStore}.
+	 * Units that do not keep stored products take in a
+	 * {@link Product Product} view instead.
+	 *
+	 * @param s store holding the food item
+	 * @param h handle of the food item
+	 */
+	public void inputHandle(ProductStore s, int h) {
+		inputProduct(s.get(h));
+	}
+
+	/**
+	 * Limits the number of items waiting in this unit.  A unit whose queue
+	 * is full does not {@link #acceptsInput() accept input}, so connectors
+	 * pass it over and units upstream have to hold on to their food.
+	 * Units without an input queue ignore the limit.
+	 *
+	 * @param capacity most items the queue may hold, or zero for no limit
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Negative capacity " +
+					capacity);
+		this.capacity = capacity;
+		queueChanged();
+	}
+
+	/**
+	 * Returns the most items that may wait in this unit.
+	 *
+	 * @return capacity of the input queue, or zero if there is no limit
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Checks whether the input queue has room for another item.
+	 *
+	 * @return true if the queue is below its capacity or has none
+	 */
+	protected boolean hasRoom() {
+		return capacity == 0 || queueLength() < capacity;
+	}
+
 	/**
 	 * Returns the number of items that have spoiled in this unit.
 	 *
@@ -80,6 +171,32 @@ public abstract class Unit {
 		return numEntered;
 	}
 
+	/**
+	 * Starts keeping {@link UnitMetrics metrics} for this unit, measured
+	 * from the current time step.  Units without metrics only pay for a
+	 * null check where they would be recorded.  Subclasses with servers
+	 * should override this to record their activity once the metrics
+	 * exist.
+	 */
+	public void useMetrics() {
+		if (metrics != null)
+			return;
+		metrics = new UnitMetrics(clock.now());
+		metrics.recordQueueLength(queueLength(), clock.now());
+	}
+
+	/**
+	 * Returns the metrics of this unit, complete up to the current time
+	 * step.
+	 *
+	 * @return metrics, or null unless {@link #useMetrics()} has been called
+	 */
+	public UnitMetrics metrics() {
+		if (metrics != null)
+			metrics.advanceTo(clock.now());
+		return metrics;
+	}
+
 	/**
 	 * Connects the specified {@link Connector Connector} as an input to
 	 * this unit.
@@ -100,6 +217,219 @@ public abstract class Unit {
 		outC = c;
 	}
 
+	/**
+	 * Sets the clock that this unit is timed against.  Each unit has
+	 * its own clock until it is added to a factory, which shares its clock
+	 * between all of its units.  Units that hold food move it onto the new
+	 * clock, which must show the same time as the old one.
+	 *
+	 * @param c simulation clock
+	 */
+	public void setClock(SimClock c) {
+		clock = c;
+	}
+
+	/**
+	 * Makes this unit keep its food in a {@link ProductStore ProductStore}
+	 * rather than as objects.  Units that support this override the method
+	 * to switch their queues over; it must be called before the unit is
+	 * used.
+	 *
+	 * @param s store shared by the units of a factory
+	 */
+	public void useStore(ProductStore s) {
+		store = s;
+	}
+
+	/**
+	 * Checks whether this unit calls its {@link QueueListener QueueListeners}
+	 * whenever its queue length or {@link #acceptsInput()} may have changed.
+	 * The default is false, as the unit cannot know how a subclass changes
+	 * its queue; subclasses that call {@link #queueChanged()} should
+	 * override this.
+	 *
+	 * @return true if queue changes are reported
+	 */
+	public boolean reportsQueueChanges() {
+		return false;
+	}
+
+	/**
+	 * Adds a listener to be told about changes to the input queue
+	 *
+	 * @param l listener
+	 */
+	public synchronized void addQueueListener(QueueListener l) {
+		QueueListener[] ls = new QueueListener[queueListeners.length + 1];
+		System.arraycopy(queueListeners, 0, ls, 0, queueListeners.length);
+		ls[queueListeners.length] = l;
+		queueListeners = ls;
+	}
+
+	/**
+	 * Removes a listener added by {@link #addQueueListener}
+	 *
+	 * @param l listener
+	 */
+	public synchronized void removeQueueListener(QueueListener l) {
+		for (int i = 0; i < queueListeners.length; i++) {
+			if (queueListeners[i] == l) {
+				QueueListener[] ls = new QueueListener[queueListeners.length - 1];
+				System.arraycopy(queueListeners, 0, ls, 0, i);
+				System.arraycopy(queueListeners, i + 1, ls, i, ls.length - i);
+				queueListeners = ls;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Called by subclasses after their input queue has changed length, to
+	 * tell the listeners and record the new length in the metrics
+	 */
+	protected void queueChanged() {
+		if (metrics != null)
+			metrics.recordQueueLength(queueLength(), clock.now());
+		QueueListener[] ls = queueListeners;
+		for (int i = 0; i < ls.length; i++)
+			ls[i].queueChanged(this);
+	}
+
+	/**
+	 * Called by subclasses just before a product is placed in their input
+	 * queue, so that an event-driven simulation can bring the unit up to
+	 * date and knows to run it.
+	 */
+	protected void inputArrived() {
+		if (scheduler != null)
+			scheduler.wake(this);
+	}
+
+	/**
+	 * Prepares this unit for event-driven simulation starting at the
+	 * given time step.
+	 *
+	 * @param t first time step to be simulated
+	 * @see EventSimulator
+	 */
+	protected void startEvents(long t) {
+		lastTick = t - 1;
+	}
+
+	/**
+	 * Returns the next time step at which this unit has something to do in
+	 * an event-driven simulation.  The default is to run at every time
+	 * step, which is always correct but gives no saving; subclasses should
+	 * override this when they can predict their next event.
+	 *
+	 * @return next time step at which this unit must run, or {@link #NEVER}
+	 */
+	protected long nextEventTime() {
+		return lastTick + 1;
+	}
+
+	/**
+	 * Runs this unit for time step <code>t</code> in an event-driven
+	 * simulation.  Subclasses that skip time steps must first bring their
+	 * state up to date for the steps since the last event.
+	 *
+	 * @param t time step to run
+	 */
+	protected void runEvent(long t) {
+		tick();
+		lastTick = t;
+	}
+
+	/**
+	 * Brings the state of this unit up to date at the end of an
+	 * event-driven simulation.
+	 *
+	 * @param t last time step that has been simulated
+	 */
+	protected void finishEvents(long t) {
+		lastTick = t;
+	}
+
+	/**
+	 * Saves the state of this unit so that a simulation can roll it back
+	 * later.  Subclasses that have state of their own should save it
+	 * alongside the state saved by this method.  Food held by the unit is
+	 * saved as {@link Product#duplicate() duplicates}, so that the saved
+	 * state is not changed when the unit carries on.
+	 *
+	 * @return saved state
+	 * @see TimeWarp
+	 */
+	protected Object saveState() {
+		long[] counts = {numSpoiled, numProcessed, numEntered, lastTick};
+		return new Object[] {counts,
+				metrics == null ? null : metrics.copy()};
+	}
+
+	/**
+	 * Puts this unit back into a state saved by {@link #saveState()}.  The
+	 * saved state may be restored more than once, so food must be
+	 * duplicated again rather than taken from it.
+	 *
+	 * @param state saved state
+	 */
+	protected void restoreState(Object state) {
+		Object[] saved = (Object[]) state;
+		long[] s = (long[]) saved[0];
+		numSpoiled = (int) s[0];
+		numProcessed = (int) s[1];
+		numEntered = (int) s[2];
+		lastTick = s[3];
+		if (saved[1] != null)
+			metrics = ((UnitMetrics) saved[1]).copy();
+	}
+
+	/**
+	 * Samples the number of time steps until the next success of a
+	 * Bernoulli trial that is repeated every time step; i.e. a draw from
+	 * the geometric distribution on 1, 2, ...
+	 *
+	 * @param gen random number generator to use
+	 * @param p probability of success in a single time step
+	 * @return number of time steps until the next success, or
+	 * {@link #NEVER} if <code>p</code> is zero
+	 */
+	protected static long ticksUntil(RandomStream gen, double p) {
+		if (p <= 0.0)
+			return NEVER;
+		if (p >= 1.0)
+			return 1;
+		return geometricGap(gen.nextDouble(), p);
+	}
+
+	/**
+	 * Turns a uniform random number into a draw from the geometric
+	 * distribution on 1, 2, ... by inverting its distribution function
+	 *
+	 * @param u random number in [0, 1)
+	 * @param p probability of success, strictly between 0 and 1
+	 * @return number of time steps until the next success
+	 */
+	static long geometricGap(double u, double p) {
+		double k = Math.floor(Math.log(1.0 - u) / Math.log1p(-p));
+		if (k >= NEVER / 2)
+			return NEVER;
+		return 1 + (long) k;
+	}
+
+	/**
+	 * Adds a number of time steps to a time, saturating at {@link #NEVER}.
+	 *
+	 * @param t start time
+	 * @param n number of time steps to add
+	 * @return the later time
+	 */
+	protected static long later(long t, long n) {
+		if (n == NEVER || t == NEVER)
+			return NEVER;
+		return t + n;
+	}
+
 	/**
 	 * Returns a string representation of this unit.  This consists of the
 	 * unit's ID in round brackets <tt>"()"</tt>.
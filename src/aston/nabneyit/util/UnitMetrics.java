@@ -0,0 +1,219 @@
+package aston.nabneyit.util;
+
+/**
+ * Records where the time of a {@link Unit Unit} goes: how long its
+ * servers spend busy, idle and jammed, how long its queue spends at each
+ * length, and how old the food is when it is taken off the queue.  A unit
+ * only keeps metrics once {@link Unit#useMetrics()} is called, so units
+ * without them pay nothing but a null check.
+ * <p>
+ * Nothing is counted up in every time step.  The unit reports its
+ * activity and queue length when they change, and the time since the last
+ * change is credited to the old values, so the figures are the same
+ * whether the unit is ticked or run by an {@link EventSimulator
+ * EventSimulator} that skips quiet time steps.  The state reported during
+ * time step <code>t</code> is taken to hold from <code>t</code> on.  The
+ * distributions are {@link Histogram Histograms}, so recording allocates
+ * nothing.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class UnitMetrics {
+
+	private final long start;
+
+	// Number of servers in each state, and the time step from which they
+	// have been in it
+	private int busy = 0;
+	private int idle = 0;
+	private int jammed = 0;
+	private long activitySince;
+	// Server time steps spent in each state before activitySince
+	private long busyTime = 0;
+	private long idleTime = 0;
+	private long jammedTime = 0;
+
+	private int length = 0;
+	private long lengthSince;
+	private Histogram queueLengths = new Histogram();
+	private Histogram waitingTimes = new Histogram();
+
+	/**
+	 * Creates metrics for a unit with an empty queue and no servers
+	 * @param start time step from which the unit is measured
+	 */
+	public UnitMetrics(long start) {
+		this.start = start;
+		activitySince = start;
+		lengthSince = start;
+	}
+
+	/**
+	 * Records how many servers are in each state from now on
+	 * @param busy servers holding an item, including blocked ones
+	 * @param idle servers free to take an item
+	 * @param jammed servers that are jammed
+	 * @param now current time step
+	 */
+	public void recordActivity(int busy, int idle, int jammed, long now) {
+		if (busy == this.busy && idle == this.idle && jammed == this.jammed)
+			return;
+		creditActivity(now);
+		this.busy = busy;
+		this.idle = idle;
+		this.jammed = jammed;
+	}
+
+	/**
+	 * Records the length of the queue from now on
+	 * @param length number of items waiting
+	 * @param now current time step
+	 */
+	public void recordQueueLength(int length, long now) {
+		if (length == this.length)
+			return;
+		creditLength(now);
+		this.length = length;
+	}
+
+	/**
+	 * Records the waiting time of an item as it is taken off the queue
+	 * @param waitingTime time since the item entered the factory
+	 */
+	public void recordWait(long waitingTime) {
+		waitingTimes.add(waitingTime);
+	}
+
+	/**
+	 * Credits the time up to now to the current state, so that the
+	 * figures are complete up to this time step
+	 * @param now current time step
+	 */
+	public void advanceTo(long now) {
+		creditActivity(now);
+		creditLength(now);
+	}
+
+	private void creditActivity(long now) {
+		long dt = now - activitySince;
+		if (dt <= 0)
+			return;
+		busyTime += busy * dt;
+		idleTime += idle * dt;
+		jammedTime += jammed * dt;
+		activitySince = now;
+	}
+
+	private void creditLength(long now) {
+		long dt = now - lengthSince;
+		if (dt <= 0)
+			return;
+		queueLengths.add(length, dt);
+		lengthSince = now;
+	}
+
+	/**
+	 * Returns the time step from which the unit has been measured
+	 */
+	public long start() {
+		return start;
+	}
+
+	/**
+	 * Returns the server time steps spent holding an item
+	 */
+	public long busyTime() {
+		return busyTime;
+	}
+
+	/**
+	 * Returns the server time steps spent free to take an item
+	 */
+	public long idleTime() {
+		return idleTime;
+	}
+
+	/**
+	 * Returns the server time steps spent jammed
+	 */
+	public long jammedTime() {
+		return jammedTime;
+	}
+
+	/**
+	 * Returns the fraction of server time spent holding an item
+	 * @return utilization, or 0 if the unit has no servers
+	 */
+	public double utilization() {
+		long total = busyTime + idleTime + jammedTime;
+		return total == 0 ? 0.0 : (double) busyTime / total;
+	}
+
+	/**
+	 * Returns the distribution of the queue length, with each length
+	 * counted once for every time step it held
+	 * @return histogram of queue lengths
+	 */
+	public Histogram queueLengths() {
+		return queueLengths;
+	}
+
+	/**
+	 * Returns the distribution of the waiting times of the items taken
+	 * off the queue
+	 * @return histogram of waiting times
+	 */
+	public Histogram waitingTimes() {
+		return waitingTimes;
+	}
+
+	/**
+	 * Makes an independent copy, so that the metrics can be saved along
+	 * with the rest of the state of a unit
+	 * @return copy
+	 */
+	public UnitMetrics copy() {
+		UnitMetrics m = new UnitMetrics(start);
+		m.busy = busy;
+		m.idle = idle;
+		m.jammed = jammed;
+		m.activitySince = activitySince;
+		m.busyTime = busyTime;
+		m.idleTime = idleTime;
+		m.jammedTime = jammedTime;
+		m.length = length;
+		m.lengthSince = lengthSince;
+		m.queueLengths = queueLengths.copy();
+		m.waitingTimes = waitingTimes.copy();
+		return m;
+	}
+
+	/**
+	 * Summarises the metrics on one line
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer();
+		long total = busyTime + idleTime + jammedTime;
+		if (total > 0)
+			buf.append("busy " + percent(busyTime, total) + ", idle " +
+					percent(idleTime, total) + ", jammed " +
+					percent(jammedTime, total) + "; ");
+		buf.append("queue mean " + format(queueLengths.mean()) +
+				", 95% within " + queueLengths.percentile(0.95) +
+				", max " + queueLengths.max());
+		if (waitingTimes.count() > 0)
+			buf.append("; wait mean " + format(waitingTimes.mean()) +
+					", 95% within " + waitingTimes.percentile(0.95) +
+					", max " + waitingTimes.max());
+		return buf.toString();
+	}
+
+	private static String percent(long part, long total) {
+		return format(100.0 * part / total) + "%";
+	}
+
+	private static String format(double x) {
+		return String.format("%.1f", x);
+	}
+}
@@ -0,0 +1,75 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class UnitMetricsTest {
+
+	@Test
+	public void testTimeWeighting() {
+		UnitMetrics m = new UnitMetrics(10);
+		m.recordActivity(0, 1, 0, 10);
+		m.recordQueueLength(2, 12);
+		m.recordActivity(1, 0, 0, 13);
+		m.recordQueueLength(0, 13);
+		m.recordQueueLength(5, 13);
+		m.recordActivity(0, 0, 1, 20);
+		m.advanceTo(25);
+		assertEquals(7, m.busyTime());
+		assertEquals(3, m.idleTime());
+		assertEquals(5, m.jammedTime());
+		assertEquals(0.7 * 10 / 15, m.utilization(), 1e-12);
+		// Queue empty for 2 steps, 2 long for 1, and 5 long for 12
+		Histogram h = m.queueLengths();
+		assertEquals(15, h.count());
+		assertEquals(2, h.bucketCount(Histogram.bucket(0)));
+		assertEquals(1, h.bucketCount(Histogram.bucket(2)));
+		assertEquals(12, h.bucketCount(Histogram.bucket(5)));
+		assertEquals(5, h.max());
+		// Catching up again adds nothing
+		m.advanceTo(25);
+		assertEquals(15, h.count());
+	}
+
+	@Test
+	public void testCopyIsIndependent() {
+		UnitMetrics m = new UnitMetrics(0);
+		m.recordActivity(2, 1, 0, 0);
+		m.recordWait(7);
+		UnitMetrics c = m.copy();
+		m.recordWait(9);
+		m.advanceTo(4);
+		assertEquals(8, m.busyTime());
+		assertEquals(0, c.busyTime());
+		assertEquals(1, c.waitingTimes().count());
+		c.advanceTo(2);
+		assertEquals(4, c.busyTime());
+		assertEquals(2, c.idleTime());
+	}
+
+	@Test
+	public void testMachineActivity() {
+		// A machine with no jams is busy for its processing time per item
+		SimClock clock = new SimClock();
+		Machine m = new Machine(new SimulationContext(1), 10, 0.0, 1);
+		Sink sink = new Sink(new SimulationContext(2));
+		m.setClock(clock);
+		sink.setClock(clock);
+		Connector c = new IntelligentRouter();
+		c.addOutputUnit(sink);
+		m.connectOutput(c);
+		m.useMetrics();
+		for (int i = 0; i < 3; i++)
+			m.inputProduct(new aston.nabneyit.model.NonPerishable());
+		for (int t = 0; t < 100; t++) {
+			m.tick();
+			clock.advance();
+		}
+		UnitMetrics um = m.metrics();
+		assertEquals(30, um.busyTime());
+		assertEquals(70, um.idleTime());
+		assertEquals(3, um.waitingTimes().count());
+		assertNull(sink.metrics());
+	}
+}
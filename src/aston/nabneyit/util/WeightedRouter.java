@@ -0,0 +1,105 @@
+package aston.nabneyit.util;
+
+import java.util.*;
+
+/**
+ * Defines a {@link Connector Connector} that sends each item to an output
+ * chosen at random in proportion to a fixed weight, such as the rate at
+ * which the output can process food.  Like {@link RoundRobinRouter
+ * RoundRobinRouter} it does not look at the queues, and choosing an
+ * output takes time in proportion to the logarithm of their number.
+ * <p>
+ * If the chosen output does not accept input, the item goes to the first
+ * one after it that does.
+ *
+ * @author Ian T. Nabney
+ * @version 2.0
+ */
+public class WeightedRouter extends Connector {
+
+	/** Running totals of the weights, one per output */
+	private final double[] cumulative;
+	private final RandomStream gen;
+
+	/**
+	 * Creates a router
+	 * @param weights weight of each output, in the order that the outputs
+	 * are added; at least one must be positive and none negative
+	 * @param gen random number stream used to choose the outputs
+	 */
+	public WeightedRouter(double[] weights, RandomStream gen) {
+		super();
+		cumulative = new double[weights.length];
+		double total = 0.0;
+		for (int i = 0; i < weights.length; i++) {
+			if (!(weights[i] >= 0.0))
+				throw new IllegalArgumentException("Negative weight " +
+						weights[i]);
+			total += weights[i];
+			cumulative[i] = total;
+		}
+		if (!(total > 0.0))
+			throw new IllegalArgumentException("No positive weight");
+		this.gen = gen;
+	}
+
+	/**
+	 * Checks that there is a weight for each output, as well as that one
+	 * of them accepts input
+	 */
+	public boolean check() {
+		return cumulative.length == outUnits.size() && super.check();
+	}
+
+	/**
+	 * Transfers product to an output chosen by weight
+	 */
+	public void transferProduct(Product p) {
+		outUnits.get(choose()).inputProduct(p);
+	}
+
+	/**
+	 * Shares out a chunk of products by weight, or one at a time if
+	 * an output queue might fill up
+	 */
+	public void transferProducts(List<Product> ps) {
+		if (hasBoundedOutputs()) {
+			super.transferProducts(ps);
+			return;
+		}
+		int[] choice = new int[ps.size()];
+		for (int k = 0; k < choice.length; k++)
+			choice[k] = choose();
+		deliver(ps, choice);
+	}
+
+	/**
+	 * Transfers stored product to an output chosen by weight
+	 */
+	public void transferHandle(ProductStore s, int h) {
+		outUnits.get(choose()).inputHandle(s, h);
+	}
+
+	private int choose() {
+		double x = gen.nextDouble() * cumulative[cumulative.length - 1];
+		// First output whose running total is above x; outputs with no
+		// weight have the same total as the one before and are passed over
+		int i = Arrays.binarySearch(cumulative, x);
+		i = i < 0 ? -i - 1 : i + 1;
+		while (i < cumulative.length - 1 && cumulative[i] <= x)
+			i++;
+		return nextAccepting(i);
+	}
+
+	protected Object saveState() {
+		return Long.valueOf(gen.getState());
+	}
+
+	protected void restoreState(Object state) {
+		gen.setState(((Long) state).longValue());
+	}
+
+	public String toString() {
+		return "Weighted " + super.toString();
+	}
+}
@@ -0,0 +1,42 @@
+package aston.nabneyit.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import aston.nabneyit.model.NonPerishable;
+
+public class WeightedRouterTest {
+
+	@Test
+	public void testSharesByWeight() {
+		double[] weights = {1.0, 0.0, 3.0, 4.0};
+		WeightedRouter r = new WeightedRouter(weights, new RandomStream(2));
+		Sink[] sinks = new Sink[weights.length];
+		for (int i = 0; i < sinks.length; i++) {
+			sinks[i] = new Sink(new SimulationContext(i));
+			r.addOutputUnit(sinks[i]);
+		}
+		assertTrue(r.check());
+		int n = 80000;
+		for (int k = 0; k < n; k++)
+			r.transferProduct(new NonPerishable());
+		assertEquals(0, sinks[1].queueLength());
+		for (int i = 0; i < sinks.length; i++)
+			assertEquals(weights[i] / 8.0,
+					(double) sinks[i].queueLength() / n, 0.01);
+	}
+
+	@Test
+	public void testCheckNeedsWeightPerOutput() {
+		WeightedRouter r = new WeightedRouter(new double[] {1.0, 1.0},
+				new RandomStream(2));
+		r.addOutputUnit(new Sink(new SimulationContext(1)));
+		assertFalse(r.check());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoPositiveWeight() {
+		new WeightedRouter(new double[] {0.0, 0.0}, new RandomStream(2));
+	}
+}
@@ -1,40 +1,121 @@
 package aston.nabneyit.view;
 
 import aston.nabneyit.util.*;
+import java.util.*;
 
 public class SimMain {
-	
+
+	// Settings from the command line
+	private static boolean eventDriven = false;
+	private static boolean useStore = false;
+	private static boolean recycle = false;
+	// Run each layer on its own thread
+	private static boolean pipeline = false;
+	// Run each layer as a logical process of an optimistic simulation
+	private static boolean timeWarp = false;
+	// Run a flat, array-based copy of the factory
+	private static boolean compiled = false;
+	// Number of independent replications of each setting; if more than
+	// one, the profit table shows the mean profit
+	private static int reps = 1;
+	// Number of replications run in lockstep by a replica engine
+	private static int lanes = 1;
+	// Most items waiting at each machine; zero for no limit
+	private static int capacity = 0;
+	// Run the packers as one bank of servers
+	private static boolean shared = false;
+	// Order in which machines serve their queues
+	private static QueueDiscipline discipline = QueueDiscipline.FIFO;
+	// Report where each unit's time goes
+	private static boolean metrics = false;
+	// Name the layer that limits the output of each run
+	private static boolean bottleneck = false;
+	// Race the settings against each other instead of running them all
+	private static boolean race = false;
+	// Length of the first round of a race
+	private static final int RACE_FIRST_TICKS = SimSetup.DEFAULT_NUM_TICKS / 16;
+
+	/**
+	 * Result of running one setting of the factory
+	 */
+	private static class Result {
+		String report;
+		double profit;
+	}
+
 	public static void main(String[] args) {
-		double pCheese = 0.01;
-		double pSoup;
+		// Use the discrete-event engine and product store if asked to
+		for (int a = 0; a < args.length; a++) {
+			String arg = args[a];
+			boolean hasValue = a + 1 < args.length;
+			if (arg.equals("-reps") && hasValue)
+				reps = intValue(arg, args[++a]);
+			else if (arg.equals("-lanes") && hasValue)
+				lanes = intValue(arg, args[++a]);
+			else if (arg.equals("-capacity") && hasValue)
+				capacity = intValue(arg, args[++a]);
+			else if (arg.equals("-discipline") && hasValue)
+				discipline = disciplineValue(args[++a]);
+			else if (arg.equals("-reps") || arg.equals("-lanes") ||
+					arg.equals("-capacity") || arg.equals("-discipline"))
+				usageError(arg + " needs a value");
+			else if (arg.equals("-events"))
+				eventDriven = true;
+			else if (arg.equals("-store"))
+				useStore = true;
+			else if (arg.equals("-recycle"))
+				recycle = true;
+			else if (arg.equals("-pipeline"))
+				pipeline = true;
+			else if (arg.equals("-timewarp"))
+				timeWarp = true;
+			else if (arg.equals("-compiled"))
+				compiled = true;
+			else if (arg.equals("-shared"))
+				shared = true;
+			else if (arg.equals("-metrics"))
+				metrics = true;
+			else if (arg.equals("-bottleneck"))
+				bottleneck = true;
+			else if (arg.equals("-race"))
+				race = true;
+		}
+		checkOptions();
 
-		int[][] profits = new int[5][5];
-		try {
-			for (int i = 0; i < 5; i++) {
-				pSoup = 0.01;
-				for (int j = 0; j < 5; j++) {
-					SimSetup sim = new SimSetup(pCheese, pCheese, pSoup);
-					LayeredFactory fac = sim.setUp();
-					if (!fac.check()) {
-						System.err.println("Error in simulation set up");
-						System.exit(42);
+		List<Parameter> params = new ArrayList<Parameter>();
+		params.add(Parameter.range("pCheese", 0.01, 0.01, 5));
+		params.add(Parameter.range("pSoup", 0.01, 0.01, 5));
+		ParameterSweep<Result> sweep = new ParameterSweep<Result>(params,
+				new SweepModel<Result>() {
+					public Result run(double[] point, long seed) {
+						return runSetting(point[0], point[1], seed);
 					}
-					for (int t = 0; t < SimSetup.DEFAULT_NUM_TICKS; t++)
-						fac.tick();
-					System.out.println(sim.report(fac));
-					profits[i][j] = fac.totalProcessed()*10 - fac.totalSpoiled()*20;
-					pSoup += 0.01;
-				}
-				pCheese += 0.01;
-			}
+				}, SimulationContext.DEFAULT_SEED);
+
+		if (race) {
+			race(sweep);
+			return;
+		}
+
+		// Print the reports in order as they come in
+		final double[] profits = new double[sweep.numPoints()];
+		try {
+			sweep.run(new OrderedSweepListener<Result>(
+					new SweepListener<Result>() {
+						public void pointFinished(int index, double[] point,
+								Result result) {
+							System.out.println(result.report);
+							profits[index] = result.profit;
+						}
+					}));
 
 			String newLine = System.getProperty("line.separator");
 			System.out.println("Profit table" + newLine);
-			for (int i = 0; i < 5; i++) {
-				for (int j = 0; j < 5; j++) {
-					System.out.print(profits[i][j] + "\t");
-
-				}
+			for (int i = 0; i < profits.length; i++) {
+				if (reps > 1)
+					System.out.print(SimSetup.formatter.format(profits[i]) + "\t");
+				else
+					System.out.print((int) profits[i] + "\t");
 			}
 			System.out.print(newLine);
 		}
@@ -43,5 +124,223 @@ public class SimMain {
 			System.exit(42);
 		}
 	}
-}
 
+	/**
+	 * Stops with a message if an option has a value out of range, or if
+	 * options that cannot be used together were given.  Replications are run by a {@link ReplicationRunner
+	 * ReplicationRunner}, which ticks each factory or runs it with the
+	 * event engine, so the options for other engines and for reports on
+	 * a single factory do not apply to them.
+	 */
+	private static void checkOptions() {
+		if (reps < 1)
+			usageError("-reps must be at least 1");
+		if (lanes < 1)
+			usageError("-lanes must be at least 1");
+		if (capacity < 0)
+			usageError("-capacity must not be negative; 0 means no limit");
+		List<String> engines = new ArrayList<String>();
+		if (eventDriven)
+			engines.add("-events");
+		if (pipeline)
+			engines.add("-pipeline");
+		if (timeWarp)
+			engines.add("-timewarp");
+		if (compiled)
+			engines.add("-compiled");
+		if (engines.size() > 1)
+			usageError("Only one engine can be chosen, not " + engines);
+		// Product stores are shared by the whole factory, and Time Warp
+		// cannot roll back a recycling pool; a pipeline can use pools
+		if (useStore && (pipeline || timeWarp))
+			usageError("-store cannot be used with " + engines.get(0));
+		if (recycle && timeWarp)
+			usageError("-recycle cannot be used with -timewarp");
+		// Whether there is room downstream depends on how far ahead the
+		// next layers have run
+		if (capacity > 0 && (pipeline || timeWarp))
+			usageError("-capacity cannot be used with " + engines.get(0));
+		if (compiled) {
+			// The compiled copy only has plain units with unbounded FIFO
+			// queues, and reports only the totals
+			List<String> unsupported = new ArrayList<String>();
+			if (useStore)
+				unsupported.add("-store");
+			if (recycle)
+				unsupported.add("-recycle");
+			if (capacity > 0)
+				unsupported.add("-capacity");
+			if (shared)
+				unsupported.add("-shared");
+			if (discipline != QueueDiscipline.FIFO)
+				unsupported.add("-discipline " + discipline);
+			if (metrics)
+				unsupported.add("-metrics");
+			if (bottleneck)
+				unsupported.add("-bottleneck");
+			if (!unsupported.isEmpty())
+				usageError("-compiled cannot be used with " + unsupported);
+		}
+		if (race) {
+			// A race runs each candidate once with the event engine
+			List<String> ignored = new ArrayList<String>();
+			if (reps > 1)
+				ignored.add("-reps");
+			if (lanes > 1)
+				ignored.add("-lanes");
+			if (useStore)
+				ignored.add("-store");
+			if (recycle)
+				ignored.add("-recycle");
+			if (pipeline)
+				ignored.add("-pipeline");
+			if (timeWarp)
+				ignored.add("-timewarp");
+			if (compiled)
+				ignored.add("-compiled");
+			if (metrics)
+				ignored.add("-metrics");
+			if (bottleneck)
+				ignored.add("-bottleneck");
+			if (!ignored.isEmpty())
+				usageError("-race cannot be used with " + ignored);
+		}
+		if (lanes > 1 && reps <= 1)
+			usageError("-lanes only applies with -reps greater than 1");
+		if (lanes > 1 && eventDriven)
+			usageError("-lanes runs its own engine, so cannot be used " +
+					"with -events");
+		if (reps <= 1)
+			return;
+		List<String> ignored = new ArrayList<String>();
+		if (useStore)
+			ignored.add("-store");
+		if (recycle)
+			ignored.add("-recycle");
+		if (compiled)
+			ignored.add("-compiled");
+		if (pipeline)
+			ignored.add("-pipeline");
+		if (timeWarp)
+			ignored.add("-timewarp");
+		if (metrics)
+			ignored.add("-metrics");
+		if (bottleneck)
+			ignored.add("-bottleneck");
+		if (!ignored.isEmpty())
+			usageError("-reps greater than 1 cannot be used with " + ignored);
+	}
+
+	private static int intValue(String option, String value) {
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			usageError(option + " needs a whole number, not " + value);
+			return 0;
+		}
+	}
+
+	private static QueueDiscipline disciplineValue(String value) {
+		try {
+			return QueueDiscipline.valueOf(value.toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			usageError("Unknown discipline " + value + "; use one of " +
+					Arrays.toString(QueueDiscipline.values()));
+			return null;
+		}
+	}
+
+	private static void usageError(String message) {
+		System.err.println(message);
+		System.exit(2);
+	}
+
+	/**
+	 * Ranks the settings of a sweep by successive halving, with the queue
+	 * settings from the command line
+	 * @param sweep sweep giving the settings
+	 */
+	private static void race(ParameterSweep<Result> sweep) {
+		List<SimSetup> candidates = new ArrayList<SimSetup>();
+		for (int i = 0; i < sweep.numPoints(); i++) {
+			double[] x = sweep.point(i);
+			SimSetup sim = new SimSetup(x[0], x[0], x[1]);
+			sim.setQueueCapacity(capacity);
+			sim.setSharedPacking(shared);
+			sim.setDiscipline(discipline);
+			candidates.add(sim);
+		}
+		Race r = new Race(candidates, SimSetup.DEFAULT_NUM_TICKS,
+				RACE_FIRST_TICKS, SimulationContext.DEFAULT_SEED);
+		r.run();
+		System.out.println(r.report(5));
+	}
+
+	/**
+	 * Runs the factory with one setting of the food probabilities
+	 * @param pCheese probability of cheese and of blue cheese
+	 * @param pSoup probability of soup
+	 * @param seed seed for the simulation context
+	 * @return report and profit
+	 */
+	private static Result runSetting(double pCheese, double pSoup, long seed) {
+		SimSetup sim = new SimSetup(pCheese, pCheese, pSoup);
+		sim.setQueueCapacity(capacity);
+		sim.setSharedPacking(shared);
+		sim.setDiscipline(discipline);
+		Result result = new Result();
+		if (reps > 1) {
+			ReplicationRunner runner = new ReplicationRunner(sim,
+					SimSetup.DEFAULT_NUM_TICKS, seed, 1);
+			runner.setEventDriven(eventDriven);
+			runner.setLanes(lanes);
+			runner.run(reps);
+			result.report = sim.report(runner);
+			result.profit = runner.profit().mean();
+			return result;
+		}
+		LayeredFactory fac = sim.setUp(new SimulationContext(seed));
+		if (!fac.check())
+			throw new ConnectionException("Error in simulation set up");
+		if (useStore)
+			fac.useProductStore();
+		if (recycle)
+			fac.useRecycling(SimSetup.DEFAULT_POOL_SIZE);
+		if (metrics || bottleneck)
+			fac.useMetrics();
+		if (compiled) {
+			CompiledFactory cf = CompiledFactory.compile(fac);
+			cf.run(SimSetup.DEFAULT_NUM_TICKS);
+			result.report = sim.report(cf.totalProcessed(), cf.totalSpoiled());
+			result.profit = sim.profit(cf.totalProcessed(), cf.totalSpoiled());
+			return result;
+		}
+		if (eventDriven)
+			new EventSimulator(fac).run(SimSetup.DEFAULT_NUM_TICKS);
+		else if (timeWarp)
+			new TimeWarp(fac, fac.numLayers()).run(SimSetup.DEFAULT_NUM_TICKS);
+		else if (pipeline)
+			new Pipeline(fac, fac.numLayers()).run(SimSetup.DEFAULT_NUM_TICKS);
+		else
+			for (int t = 0; t < SimSetup.DEFAULT_NUM_TICKS; t++)
+				fac.tick();
+		result.report = sim.report(fac);
+		if (recycle)
+			result.report += System.getProperty("line.separator") +
+					"Pool hit rate = " +
+					SimSetup.formatter.format(fac.poolHitRate());
+		if (capacity > 0)
+			result.report += System.getProperty("line.separator") +
+					"Time machines spent blocked = " + fac.totalBlockedTime();
+		if (metrics)
+			result.report += System.getProperty("line.separator") +
+					fac.metricsReport();
+		if (bottleneck)
+			result.report += System.getProperty("line.separator") +
+					new BottleneckAnalyzer(fac).report();
+		result.profit = sim.profit(fac);
+		return result;
+	}
+}
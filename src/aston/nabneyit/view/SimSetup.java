@@ -4,10 +4,14 @@ package aston.nabneyit.view;
 import aston.nabneyit.model.*;
 import aston.nabneyit.util.*;
 import java.text.NumberFormat;
+import java.util.Map;
 
-public class SimSetup {
+public class SimSetup implements FactoryBuilder {
 	// Public constants
 	public static final int DEFAULT_NUM_TICKS = 7200;
+	public static final int DEFAULT_POOL_SIZE = 256;
+	public static final int ITEM_VALUE = 10;
+	public static final int SPOILED_COST = 20;
 	// Formatter to give consistent output
 	public static final NumberFormat formatter = 
 		NumberFormat.getInstance();
@@ -15,14 +19,26 @@ public class SimSetup {
 	// Simulation constants
 	private static final int cheeseSpoilTime = 45;
 	private static final int blueCheeseSpoilTime = 40;
-	private static final int cheeseProcessTime = 20;
-	private static final int soupProcessTime = 22;
-	private static final int packTime = 10;
+	// Names of the kinds of food, in the order they are reported
+	private static final String[] foodTypes = {"cheese", "blue cheese",
+		"soup"};
 
-	private static final int jamTime = 60;
-	private static final double jamProb = 0.001;
+	// Settings of the machines, which can be changed for a sweep
+	private int cheeseProcessTime = 20;
+	private int soupProcessTime = 22;
+	private int packTime = 10;
+	private int numPackers = 1;
+	// Run the packers as one bank with a shared queue and a single sink
+	private boolean sharedPacking = false;
+	// Most items waiting at each machine; zero for no limit
+	private int queueCapacity = 0;
+	// Order in which every machine serves its queue
+	private QueueDiscipline discipline = QueueDiscipline.FIFO;
 
-	private static final int sourceSeed = 42;
+	private int jamTime = 60;
+	private double jamProb = 0.001;
+
+	private static final long defaultSeed = 42;
 
 	private double pCheese;
 	private double pBlueCheese;
@@ -35,21 +51,116 @@ public class SimSetup {
 		this.pSoup = pSoup;
 	}
 
+	/**
+	 * Sets the probability that a machine jams in a single time step
+	 * @param jamProb jam probability
+	 */
+	public void setJamProb(double jamProb) {
+		this.jamProb = jamProb;
+	}
+
+	/**
+	 * Sets the length of time that a machine stays jammed
+	 * @param jamTime jam time
+	 */
+	public void setJamTime(int jamTime) {
+		this.jamTime = jamTime;
+	}
+
+	/**
+	 * Sets the time taken by the processing machines
+	 * @param cheeseProcessTime time to process cheese and blue cheese
+	 * @param soupProcessTime time to process soup
+	 */
+	public void setProcessTimes(int cheeseProcessTime, int soupProcessTime) {
+		this.cheeseProcessTime = cheeseProcessTime;
+		this.soupProcessTime = soupProcessTime;
+	}
+
+	/**
+	 * Sets the time taken by the packing machines
+	 * @param packTime time to pack an item
+	 */
+	public void setPackTime(int packTime) {
+		this.packTime = packTime;
+	}
+
+	/**
+	 * Sets the number of packing machines; each has its own sink
+	 * @param numPackers number of packing machines
+	 */
+	public void setNumPackers(int numPackers) {
+		if (numPackers < 1)
+			throw new IllegalArgumentException("Need at least one packer");
+		this.numPackers = numPackers;
+	}
+
+	/**
+	 * Makes the packing machines one {@link MultiServerMachine
+	 * MultiServerMachine} with a server for each packer, so that food
+	 * waits in one queue for the first free packer and goes to a single
+	 * sink.  This is much cheaper to simulate when there are many packers.
+	 * @param sharedPacking true for a bank of packers, false for separate
+	 * machines
+	 */
+	public void setSharedPacking(boolean sharedPacking) {
+		this.sharedPacking = sharedPacking;
+	}
+
+	/**
+	 * Limits the queue of every machine; food that arrives when there is
+	 * no room is turned away, and machines whose output is full are blocked
+	 * @param queueCapacity most items waiting at a machine, or zero for no
+	 * limit
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 0)
+			throw new IllegalArgumentException("Negative capacity");
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets the order in which every machine serves its queue.  Each
+	 * processing machine only ever sees one kind of food, so the choice
+	 * matters most at the packers, where cheese that spoils sooner
+	 * can be packed ahead of soup that never spoils.
+	 * @param discipline queue discipline
+	 */
+	public void setDiscipline(QueueDiscipline discipline) {
+		this.discipline = discipline;
+	}
+
+	/**
+	 * Builds the factory using a new context with the default seed
+	 * @return factory ready to run
+	 */
 	public LayeredFactory setUp() {
+		return setUp(new SimulationContext(defaultSeed));
+	}
+
+	/**
+	 * Builds the factory.  All the units get their IDs and random number
+	 * streams from the context, so factories built with different contexts
+	 * share nothing and can be run at the same time.
+	 * @param ctx context of the simulation
+	 * @return factory ready to run
+	 */
+	public LayeredFactory setUp(SimulationContext ctx) {
 
 		LayeredFactory fac = new LayeredFactory(4);
 
 		// Create source food items
-		Perishable cheese = new Perishable(cheeseSpoilTime);
-		Perishable blueCheese = new Perishable(blueCheeseSpoilTime);
+		Perishable cheese = new Perishable(foodTypes[0], cheeseSpoilTime);
+		Perishable blueCheese = new Perishable(foodTypes[1],
+				blueCheeseSpoilTime);
 
 
-		NonPerishable soup = new NonPerishable();
+		NonPerishable soup = new NonPerishable(foodTypes[2]);
 
 		// Create Source objects
-		Source cSource = new Source(cheese, pCheese, sourceSeed);
-		Source bcSource = new Source(blueCheese, pBlueCheese);
-		Source sSource = new Source(soup, pSoup);
+		Source cSource = new Source(ctx, cheese, pCheese);
+		Source bcSource = new Source(ctx, blueCheese, pBlueCheese);
+		Source sSource = new Source(ctx, soup, pSoup);
 
 		// Add sources to first layer
 		fac.addUnit(cSource, 0);
@@ -57,27 +168,50 @@ public class SimSetup {
 		fac.addUnit(sSource, 0);
 
 		// Create processing machines
-		Machine cProcMachine = new Machine(cheeseProcessTime,
+		Machine cProcMachine = new Machine(ctx, cheeseProcessTime,
 				jamProb, jamTime);
-		Machine bcProcMachine = new Machine(cheeseProcessTime,
+		Machine bcProcMachine = new Machine(ctx, cheeseProcessTime,
 				jamProb, jamTime);
-		Machine sProcMachine = new Machine(soupProcessTime,
+		Machine sProcMachine = new Machine(ctx, soupProcessTime,
 				jamProb, jamTime);
 
+		cProcMachine.setCapacity(queueCapacity);
+		bcProcMachine.setCapacity(queueCapacity);
+		sProcMachine.setCapacity(queueCapacity);
+		cProcMachine.setDiscipline(discipline);
+		bcProcMachine.setDiscipline(discipline);
+		sProcMachine.setDiscipline(discipline);
+
 		// Add processing machines to second layer
 		fac.addUnit(cProcMachine, 1);
 		fac.addUnit(bcProcMachine, 1);
 		fac.addUnit(sProcMachine, 1);
 
-		// Create packing machines and add to third layer
-		for (int i = 0; i < 1; i++) {
-			Machine packMachine = new Machine(packTime, jamProb, jamTime);
-			fac.addUnit(packMachine, 2);
+		// Create packing machines and add to third layer, either as
+		// separate machines or as one bank with a server for each packer
+		int numPackingUnits = sharedPacking ? 1 : numPackers;
+		if (sharedPacking) {
+			MultiServerMachine packers = new MultiServerMachine(ctx,
+					packTime, jamProb, jamTime, numPackers);
+			packers.setCapacity(queueCapacity);
+			packers.setDiscipline(discipline);
+			fac.addUnit(packers, 2);
+		}
+		else {
+			for (int i = 0; i < numPackers; i++) {
+				Machine packMachine = new Machine(ctx, packTime, jamProb,
+						jamTime);
+				packMachine.setCapacity(queueCapacity);
+				packMachine.setDiscipline(discipline);
+				fac.addUnit(packMachine, 2);
+			}
 		}
 
-		// Create sinks and add to last layer
-		for (int i = 0; i < 1; i++) {
-			Sink s = new Sink();
+		// Create sinks and add to last layer; they count the food by type
+		// as it arrives rather than queueing it
+		for (int i = 0; i < numPackingUnits; i++) {
+			Sink s = new Sink(ctx);
+			s.useCounting();
 			fac.addUnit(s, 3);
 		}
 
@@ -89,15 +223,90 @@ public class SimSetup {
 		return fac;
 	}
 
+	/**
+	 * Works out the profit: each item packed is worth ITEM_VALUE and each
+	 * item spoiled costs SPOILED_COST
+	 * @param f factory that has been run
+	 * @return profit
+	 */
+	public int profit(LayeredFactory f) {
+		return profit(f.totalProcessed(), f.totalSpoiled());
+	}
+
+	/**
+	 * Works out the profit from the totals of a run
+	 * @param processed number of items packed
+	 * @param spoiled number of items spoiled
+	 * @return profit
+	 */
+	public int profit(int processed, int spoiled) {
+		return processed*ITEM_VALUE - spoiled*SPOILED_COST;
+	}
+
+	/**
+	 * Summarises independent replications of the factory
+	 * @param r runner that has run the replications
+	 * @return report of the means with their confidence intervals
+	 */
+	public String report(ReplicationRunner r) {
+		StringBuffer buf = new StringBuffer("");
+		String newLine = System.getProperty("line.separator");
+
+		buf.append("pCheese = " + pCheese + "; pSoup = " + pSoup + newLine);
+		buf.append("Replications = " + r.profit().count() + newLine);
+		buf.append(r.processed() + newLine);
+		buf.append(r.spoiled() + newLine);
+		buf.append(r.profit());
+
+		buf.append(newLine);
+		return buf.toString();
+	}
+
+	public String toString() {
+		return "pCheese = " + pCheese + "; pSoup = " + pSoup;
+	}
+
+	/**
+	 * Reports the totals of a run, with the food packed of each kind and
+	 * the time it took to pass through the factory
+	 * @param f factory that has been run
+	 * @return report
+	 */
 	public String report(LayeredFactory f) {
+		StringBuffer buf = new StringBuffer(report(f.totalProcessed(),
+				f.totalSpoiled()));
+		String newLine = System.getProperty("line.separator");
+
+		Map<String, Integer> packed = f.processedByType();
+		for (String type : foodTypes) {
+			Integer n = packed.get(type);
+			buf.append("Number of " + type + " packed = " +
+					(n == null ? 0 : n) + newLine);
+		}
+		Histogram latency = f.latency();
+		if (latency.count() > 0) {
+			buf.append("Time through factory: mean = " +
+					formatter.format(latency.mean()) + "; 95% within " +
+					latency.percentile(0.95) + "; max = " + latency.max() +
+					newLine);
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Reports the totals of a run
+	 * @param processed number of items packed
+	 * @param spoiled number of items spoiled
+	 * @return report
+	 */
+	public String report(int processed, int spoiled) {
 		StringBuffer buf = new StringBuffer("");
 		String newLine = System.getProperty("line.separator");
 
 		buf.append("pCheese = " + pCheese + "; pSoup = " + pSoup + newLine);
-		buf.append("Number of items packed = " + f.totalProcessed() + newLine);
-		buf.append("Number of items spoiled = " + f.totalSpoiled() + newLine);
-		buf.append("Total profit made = " + (f.totalProcessed()*10 -
-				f.totalSpoiled()*20));
+		buf.append("Number of items packed = " + processed + newLine);
+		buf.append("Number of items spoiled = " + spoiled + newLine);
+		buf.append("Total profit made = " + profit(processed, spoiled));
 
 		buf.append(newLine);
 		return buf.toString();